@@ -0,0 +1,153 @@
+package com.overthink.mechmaid.util;
+
+/**
+ * Keeps a snapshot of "now" broken down into the fields list rendering asks for (start and end of today, minute of
+ * the day and so on), computed once and reused until the clock has moved on by a given granularity. Reading the
+ * current time field by field then costs a clock read and a comparison instead of a Calendar per call.
+ * <p>
+ * Snapshots are in the default time zone, and are refreshed early when the day ends or the default time zone changes.
+ * Instances are thread safe.
+ */
+public class CachedClock {
+
+    private final Clock clock;
+    private final long granularityMs;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Constructs a cached clock
+     *
+     * @param clock the clock to read
+     * @param granularityMs how long a snapshot is reused, in milliseconds; 0 takes a new snapshot on every read
+     */
+    public CachedClock(Clock clock, long granularityMs) {
+        if (granularityMs < 0) {
+            throw new IllegalArgumentException("Granularity must not be negative");
+        }
+        this.clock = clock;
+        this.granularityMs = granularityMs;
+    }
+
+    /**
+     * @return the clock read by this cached clock
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return how long a snapshot is reused, in milliseconds
+     */
+    public long getGranularityMs() {
+        return granularityMs;
+    }
+
+    /**
+     * Returns a snapshot of the current time, no older than the granularity
+     *
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot() {
+        long nowMillis = clock.currentTimeMillis();
+        ZoneOffsetCache zone = ZoneOffsetCache.getDefault();
+        Snapshot current = snapshot;
+        if (current == null || nowMillis < current.millis || nowMillis - current.millis >= granularityMs
+                || nowMillis >= current.tomorrowMillis || current.zone != zone) {
+            current = new Snapshot(nowMillis, zone);
+            snapshot = current;
+        }
+        return current;
+    }
+
+    /**
+     * The current time at some instant, broken down into fields in the default time zone
+     */
+    public static class Snapshot {
+
+        private final long millis;
+        private final ZoneOffsetCache zone;
+        private final long localDay;
+        private final long dayStartMillis;
+        private final long dayEndMillis;
+        // First instant of tomorrow; earlier than dayEndMillis when the offset goes back over midnight
+        private final long tomorrowMillis;
+        private final int millisOfDay;
+        private final long year;
+        private final int dayOfYear;
+
+        Snapshot(long millis, ZoneOffsetCache zone) {
+            this.millis = millis;
+            this.zone = zone;
+            long localMillis = zone.toLocalMillis(millis);
+            localDay = CivilDate.floorDiv(localMillis, TimeUtils.MS_PER_DAY);
+            millisOfDay = (int) (localMillis - localDay * TimeUtils.MS_PER_DAY);
+            dayStartMillis = localMidnightToUnixMillis(localDay, zone);
+            dayEndMillis = localMidnightToUnixMillis(localDay + 1, zone);
+            tomorrowMillis = firstMillisOfDay(localDay + 1, dayEndMillis, zone);
+            year = CivilDate.yearOf(localDay);
+            dayOfYear = CivilDate.dayOfYear(localDay);
+        }
+
+        /**
+         * @return Unix time of a local midnight, resolving a midnight skipped by a daylight saving transition the way
+         *         GregorianCalendar does
+         */
+        private static long localMidnightToUnixMillis(long localDay, ZoneOffsetCache zone) {
+            return ZoneOffsetCache.toUnixMillis(localDay * TimeUtils.MS_PER_DAY, zone.getZone());
+        }
+
+        /**
+         * @return the first instant whose local day is a given day, given the local midnight as resolved by
+         *         localMidnightToUnixMillis()
+         */
+        private static long firstMillisOfDay(long localDay, long midnightMillis, ZoneOffsetCache zone) {
+            int offsetBefore = zone.getOffset(midnightMillis - TimeUtils.MS_PER_DAY);
+            long earlierMidnightMillis = localDay * TimeUtils.MS_PER_DAY - offsetBefore;
+            if (earlierMidnightMillis < midnightMillis && zone.getOffset(earlierMidnightMillis) == offsetBefore) {
+                return earlierMidnightMillis;
+            }
+            return midnightMillis;
+        }
+
+        /** The time of the snapshot, as UTC Unix time in milliseconds **/
+        public long getMillis() { return millis; }
+
+        /** Days from 1970-01-01 to today **/
+        public long getLocalDay() { return localDay; }
+
+        /** Start of today, as UTC Unix time in milliseconds **/
+        public long getDayStartMillis() { return dayStartMillis; }
+
+        /** Start of tomorrow, as UTC Unix time in milliseconds **/
+        public long getDayEndMillis() { return dayEndMillis; }
+
+        /** Milliseconds elapsed in the current day (wall-clock time) **/
+        public int getMillisOfDay() { return millisOfDay; }
+
+        /** Minutes elapsed in the current day **/
+        public int getMinuteOfDay() { return millisOfDay / TimeUtils.MS_PER_MINUTE; }
+
+        /** Minutes elapsed in the current hour **/
+        public int getMinuteOfHour() { return millisOfDay / TimeUtils.MS_PER_MINUTE % TimeUtils.MINUTES_PER_HOUR; }
+
+        /** Hours elapsed in the current day (24 hour format) **/
+        public int getHourOfDay() { return millisOfDay / TimeUtils.MS_PER_HOUR; }
+
+        /** The current year **/
+        public long getYear() { return year; }
+
+        /** Days elapsed in the current year, 1 on January 1st **/
+        public int getDayOfYear() { return dayOfYear; }
+
+        /**
+         * @param millis UTC Unix time in milliseconds
+         * @return true if the time falls on the same day as the snapshot
+         */
+        public boolean isToday(long millis) {
+            if (millis >= dayStartMillis && millis < tomorrowMillis) {
+                return true;
+            }
+            return CivilDate.floorDiv(zone.toLocalMillis(millis), TimeUtils.MS_PER_DAY) == localDay;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.overthink.mechmaid.util;
+
+/**
+ * Date arithmetic on day counts in the proleptic Gregorian calendar, shared by the allocation-free date code in this
+ * package. Days are counted from 1970-01-01; months run from 1 to 12.
+ */
+class CivilDate {
+
+    // Days from 0000-03-01 to 1970-01-01
+    static final long DAYS_0000_TO_1970 = 719468;
+    static final int DAYS_PER_400_YEARS = 146097;
+
+    /**
+     * @return days from 1970-01-01 to a date, counting years from March so that leap days fall at the end of the year
+     */
+    static long daysSinceEpoch(long year, int month, int day) {
+        long marchYear = month <= 2 ? year - 1 : year;
+        long era = floorDiv(marchYear, 400);
+        int yearOfEra = (int) (marchYear - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * DAYS_PER_400_YEARS + dayOfEra - DAYS_0000_TO_1970;
+    }
+
+    /**
+     * @return the year and month of a day, as year * 12 + month - 1
+     */
+    static long yearMonthOf(long epochDay) {
+        long dayOfEra = epochDay + DAYS_0000_TO_1970;
+        long era = floorDiv(dayOfEra, DAYS_PER_400_YEARS);
+        int dayOfEraCycle = (int) (dayOfEra - era * DAYS_PER_400_YEARS);
+        int yearOfEra = (dayOfEraCycle - dayOfEraCycle / 1460 + dayOfEraCycle / 36524 - dayOfEraCycle / 146096) / 365;
+        int dayOfYear = dayOfEraCycle - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthFromMarch = (5 * dayOfYear + 2) / 153;
+        int month = monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9;
+        long year = era * 400 + yearOfEra + (month <= 2 ? 1 : 0);
+        return year * 12 + month - 1;
+    }
+
+    /**
+     * @return the year of a day
+     */
+    static long yearOf(long epochDay) {
+        return floorDiv(yearMonthOf(epochDay), 12);
+    }
+
+    /**
+     * @return the day of the year of a day, 1 for January 1st
+     */
+    static int dayOfYear(long epochDay) {
+        return (int) (epochDay - daysSinceEpoch(yearOf(epochDay), 1, 1)) + 1;
+    }
+
+    /**
+     * @return the day of the week of a day, 1 for Sunday as in Calendar
+     */
+    static int dayOfWeek(long epochDay) {
+        // 1970-01-01 was a Thursday
+        return (int) floorMod(epochDay + 4, 7) + 1;
+    }
+
+    static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        if ((dividend % divisor != 0) && ((dividend < 0) != (divisor < 0))) {
+            quotient--;
+        }
+        return quotient;
+    }
+
+    static long floorMod(long dividend, long divisor) {
+        return dividend - floorDiv(dividend, divisor) * divisor;
+    }
+}
@@ -0,0 +1,21 @@
+package com.overthink.mechmaid.util;
+
+/**
+ * Source of the current time for {@link TimeUtils}. Replace the system clock with
+ * {@link TimeUtils#setClock(Clock)} to make time-dependent code deterministic, e.g. in tests.
+ */
+public interface Clock {
+
+    /** The system clock **/
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return the current time, as UTC Unix time in milliseconds
+     */
+    long currentTimeMillis();
+}
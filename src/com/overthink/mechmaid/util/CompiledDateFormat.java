@@ -0,0 +1,363 @@
+package com.overthink.mechmaid.util;
+
+import java.text.DateFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A date pattern compiled into a sequence of field emitters that write epoch milliseconds straight into a
+ * StringBuilder or char array, without going through Date, Calendar or FieldPosition objects. Output matches
+ * SimpleDateFormat in the US locale character for character.
+ * <p>
+ * Supports the pattern letters used by the {@link TimeUtils} FORMAT_* patterns and a few more: y, M, d, E, a, h, H,
+ * k, K, m, s, S and quoted text. Compiled formats are immutable and can be shared between threads.
+ */
+public class CompiledDateFormat {
+
+    // Start of the Gregorian calendar as used by SimpleDateFormat; earlier dates use the Julian calendar
+    private static final long GREGORIAN_CUTOVER_MS = -12219292800000L;
+
+    // Emitter opcodes; each is followed by a width, or by an index into the literal table for OP_LITERAL
+    private static final int OP_LITERAL = 0;
+    private static final int OP_YEAR = 1;
+    private static final int OP_YEAR_2_DIGITS = 2;
+    private static final int OP_MONTH = 3;
+    private static final int OP_MONTH_SHORT_NAME = 4;
+    private static final int OP_MONTH_NAME = 5;
+    private static final int OP_DAY_OF_MONTH = 6;
+    private static final int OP_DAY_SHORT_NAME = 7;
+    private static final int OP_DAY_NAME = 8;
+    private static final int OP_AM_PM = 9;
+    private static final int OP_HOUR_1_12 = 10;
+    private static final int OP_HOUR_0_23 = 11;
+    private static final int OP_HOUR_1_24 = 12;
+    private static final int OP_HOUR_0_11 = 13;
+    private static final int OP_MINUTE = 14;
+    private static final int OP_SECOND = 15;
+    private static final int OP_MILLISECOND = 16;
+
+    // Names in the US locale, indexed by Calendar.JANUARY.. and Calendar.SUNDAY..
+    private static final String[] MONTH_NAMES;
+    private static final String[] MONTH_SHORT_NAMES;
+    private static final String[] DAY_NAMES;
+    private static final String[] DAY_SHORT_NAMES;
+    private static final String[] AM_PM;
+
+    static {
+        DateFormatSymbols symbols = DateFormatSymbols.getInstance(Locale.US);
+        MONTH_NAMES = symbols.getMonths();
+        MONTH_SHORT_NAMES = symbols.getShortMonths();
+        DAY_NAMES = symbols.getWeekdays();
+        DAY_SHORT_NAMES = symbols.getShortWeekdays();
+        AM_PM = symbols.getAmPmStrings();
+    }
+
+    // Buffer for formatting into Strings and char arrays, reused by each thread
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(64);
+        }
+    };
+
+    private final String pattern;
+    // Pairs of opcode and operand
+    private final int[] program;
+    private final String[] literals;
+
+    private CompiledDateFormat(String pattern, int[] program, String[] literals) {
+        this.pattern = pattern;
+        this.program = program;
+        this.literals = literals;
+    }
+
+    /**
+     * Compiles a SimpleDateFormat pattern
+     *
+     * @param pattern the pattern
+     * @return the compiled format
+     * @throws IllegalArgumentException if the pattern uses a letter that isn't supported, or has unterminated quotes
+     */
+    public static CompiledDateFormat compile(String pattern) {
+        List<Integer> program = new ArrayList<Integer>();
+        List<String> literals = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int length = pattern.length();
+        int i = 0;
+        while (i < length) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                // Quoted text, where two quotes stand for one
+                if (i + 1 < length && pattern.charAt(i + 1) == '\'') {
+                    literal.append('\'');
+                    i += 2;
+                    continue;
+                }
+                int end = i + 1;
+                while (true) {
+                    if (end >= length) {
+                        throw new IllegalArgumentException("Unterminated quote in date pattern: " + pattern);
+                    }
+                    if (pattern.charAt(end) == '\'') {
+                        if (end + 1 < length && pattern.charAt(end + 1) == '\'') {
+                            literal.append('\'');
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    literal.append(pattern.charAt(end++));
+                }
+                i = end + 1;
+                continue;
+            }
+            if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z')) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            int count = 1;
+            while (i + count < length && pattern.charAt(i + count) == c) {
+                count++;
+            }
+            i += count;
+            if (literal.length() > 0) {
+                program.add(OP_LITERAL);
+                program.add(literals.size());
+                literals.add(literal.toString());
+                literal.setLength(0);
+            }
+            program.add(opcodeFor(c, count, pattern));
+            program.add(count);
+        }
+        if (literal.length() > 0) {
+            program.add(OP_LITERAL);
+            program.add(literals.size());
+            literals.add(literal.toString());
+        }
+
+        int[] compiled = new int[program.size()];
+        for (int j = 0; j < compiled.length; j++) {
+            compiled[j] = program.get(j);
+        }
+        return new CompiledDateFormat(pattern, compiled, literals.toArray(new String[literals.size()]));
+    }
+
+    /**
+     * Formats a time in the default time zone
+     *
+     * @param millis Unix time in milliseconds
+     * @return the formatted time
+     */
+    public String format(long millis) {
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        format(millis, ZoneOffsetCache.getDefault(), out);
+        return out.toString();
+    }
+
+    /**
+     * Formats a time
+     *
+     * @param millis Unix time in milliseconds
+     * @param zone time zone to format the time in
+     * @return the formatted time
+     */
+    public String format(long millis, TimeZone zone) {
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        format(millis, zone, out);
+        return out.toString();
+    }
+
+    /**
+     * Formats a time into a character array
+     *
+     * @param millis Unix time in milliseconds
+     * @param zone time zone to format the time in
+     * @param out array to write into
+     * @param offset index in the array to start writing at
+     * @return index in the array after the last character written
+     * @throws IndexOutOfBoundsException if the array is too small
+     */
+    public int format(long millis, TimeZone zone, char[] out, int offset) {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        format(millis, zone, buffer);
+        int length = buffer.length();
+        buffer.getChars(0, length, out, offset);
+        return offset + length;
+    }
+
+    /**
+     * Formats a time, appending it to a StringBuilder
+     *
+     * @param millis Unix time in milliseconds
+     * @param zone time zone to format the time in
+     * @param out builder to append to
+     */
+    public void format(long millis, TimeZone zone, StringBuilder out) {
+        format(millis, zone.getOffset(millis), zone, out);
+    }
+
+    /**
+     * Formats a time, appending it to a StringBuilder, using cached time zone offsets
+     *
+     * @param millis Unix time in milliseconds
+     * @param zone time zone to format the time in, e.g. {@link ZoneOffsetCache#getDefault()}
+     * @param out builder to append to
+     */
+    public void format(long millis, ZoneOffsetCache zone, StringBuilder out) {
+        format(millis, zone.getOffset(millis), zone.getZone(), out);
+    }
+
+    private void format(long millis, int offset, TimeZone zone, StringBuilder out) {
+        if (millis < GREGORIAN_CUTOVER_MS + TimeUtils.MS_PER_DAY) {
+            // Dates in the Julian calendar are too rare to be worth handling here; the margin covers time zones
+            // whose local date is still before the cutover
+            out.append(DateFormatCache.get(pattern, Locale.US, zone).format(millis));
+            return;
+        }
+
+        long localMillis = millis + offset;
+        long epochDay = CivilDate.floorDiv(localMillis, TimeUtils.MS_PER_DAY);
+        int millisOfDay = (int) (localMillis - epochDay * TimeUtils.MS_PER_DAY);
+
+        // Civil date from a day count, counting years from March so that leap days fall at the end of the year
+        long dayOfEra = epochDay + CivilDate.DAYS_0000_TO_1970;
+        long era = CivilDate.floorDiv(dayOfEra, CivilDate.DAYS_PER_400_YEARS);
+        int dayOfEraCycle = (int) (dayOfEra - era * CivilDate.DAYS_PER_400_YEARS);
+        int yearOfEra = (dayOfEraCycle - dayOfEraCycle / 1460 + dayOfEraCycle / 36524 - dayOfEraCycle / 146096) / 365;
+        int dayOfYear = dayOfEraCycle - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int monthFromMarch = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+        // 0 for January
+        int month = monthFromMarch < 10 ? monthFromMarch + 2 : monthFromMarch - 10;
+        long year = era * 400 + yearOfEra + (month <= 1 ? 1 : 0);
+        int dayOfWeek = CivilDate.dayOfWeek(epochDay);
+
+        int hourOfDay = millisOfDay / TimeUtils.MS_PER_HOUR;
+        int minute = millisOfDay / TimeUtils.MS_PER_MINUTE % TimeUtils.MINUTES_PER_HOUR;
+        int second = millisOfDay / TimeUtils.MS_PER_SECOND % TimeUtils.SECONDS_PER_MINUTE;
+        int millisecond = millisOfDay % TimeUtils.MS_PER_SECOND;
+
+        for (int pc = 0; pc < program.length; pc += 2) {
+            int operand = program[pc + 1];
+            switch (program[pc]) {
+                case OP_LITERAL:
+                    out.append(literals[operand]);
+                    break;
+                case OP_YEAR:
+                    appendPadded(out, year, operand);
+                    break;
+                case OP_YEAR_2_DIGITS:
+                    appendPadded(out, year % 100, 2);
+                    break;
+                case OP_MONTH:
+                    appendPadded(out, month + 1, operand);
+                    break;
+                case OP_MONTH_SHORT_NAME:
+                    out.append(MONTH_SHORT_NAMES[month]);
+                    break;
+                case OP_MONTH_NAME:
+                    out.append(MONTH_NAMES[month]);
+                    break;
+                case OP_DAY_OF_MONTH:
+                    appendPadded(out, dayOfMonth, operand);
+                    break;
+                case OP_DAY_SHORT_NAME:
+                    out.append(DAY_SHORT_NAMES[dayOfWeek]);
+                    break;
+                case OP_DAY_NAME:
+                    out.append(DAY_NAMES[dayOfWeek]);
+                    break;
+                case OP_AM_PM:
+                    out.append(AM_PM[hourOfDay < 12 ? 0 : 1]);
+                    break;
+                case OP_HOUR_1_12:
+                    appendPadded(out, hourOfDay % 12 == 0 ? 12 : hourOfDay % 12, operand);
+                    break;
+                case OP_HOUR_0_23:
+                    appendPadded(out, hourOfDay, operand);
+                    break;
+                case OP_HOUR_1_24:
+                    appendPadded(out, hourOfDay == 0 ? 24 : hourOfDay, operand);
+                    break;
+                case OP_HOUR_0_11:
+                    appendPadded(out, hourOfDay % 12, operand);
+                    break;
+                case OP_MINUTE:
+                    appendPadded(out, minute, operand);
+                    break;
+                case OP_SECOND:
+                    appendPadded(out, second, operand);
+                    break;
+                case OP_MILLISECOND:
+                    appendPadded(out, millisecond, operand);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + program[pc]);
+            }
+        }
+    }
+
+    /**
+     * @return the pattern this format was compiled from
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private static int opcodeFor(char letter, int count, String pattern) {
+        switch (letter) {
+            case 'y':
+                return count == 2 ? OP_YEAR_2_DIGITS : OP_YEAR;
+            case 'M':
+                return count >= 4 ? OP_MONTH_NAME : count == 3 ? OP_MONTH_SHORT_NAME : OP_MONTH;
+            case 'd':
+                return OP_DAY_OF_MONTH;
+            case 'E':
+                return count >= 4 ? OP_DAY_NAME : OP_DAY_SHORT_NAME;
+            case 'a':
+                return OP_AM_PM;
+            case 'h':
+                return OP_HOUR_1_12;
+            case 'H':
+                return OP_HOUR_0_23;
+            case 'k':
+                return OP_HOUR_1_24;
+            case 'K':
+                return OP_HOUR_0_11;
+            case 'm':
+                return OP_MINUTE;
+            case 's':
+                return OP_SECOND;
+            case 'S':
+                return OP_MILLISECOND;
+            default:
+                throw new IllegalArgumentException("Unsupported letter '" + letter + "' in date pattern: " + pattern);
+        }
+    }
+
+    /**
+     * Appends a non-negative number, padded with leading zeros to a minimum width
+     */
+    private static void appendPadded(StringBuilder out, long value, int width) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            out.append('0');
+        }
+        out.append(value);
+    }
+}
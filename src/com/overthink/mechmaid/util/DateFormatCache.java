@@ -0,0 +1,119 @@
+package com.overthink.mechmaid.util;
+
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Static registry of compiled SimpleDateFormats, keyed by pattern, locale and time zone. Building a SimpleDateFormat
+ * parses its pattern and loads locale data, which is far more work than the formatting itself, so each pattern is
+ * built once per thread and reused from then on.
+ * <p>
+ * SimpleDateFormat is not thread safe, so every thread gets formatters of its own. A formatter handed out by this class
+ * belongs to the calling thread: use it right away and don't keep it or pass it to other threads.
+ */
+public class DateFormatCache {
+
+    // Formatters kept per thread; the cache is cleared if it grows past this, e.g. from patterns built on the fly
+    private static final int MAX_FORMATTERS_PER_THREAD = 32;
+
+    private static final ThreadLocal<ThreadCache> CACHE = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    /**
+     * Returns a formatter for a pattern in the US locale and the default time zone
+     *
+     * @param pattern SimpleDateFormat pattern
+     * @return a formatter owned by the calling thread
+     */
+    public static SimpleDateFormat get(String pattern) {
+        return get(pattern, Locale.US, null);
+    }
+
+    /**
+     * Returns a formatter for a pattern, locale and time zone
+     *
+     * @param pattern SimpleDateFormat pattern
+     * @param locale locale of month and day names
+     * @param zone time zone, or null to follow the default time zone even if it changes
+     * @return a formatter owned by the calling thread
+     */
+    public static SimpleDateFormat get(String pattern, Locale locale, TimeZone zone) {
+        ThreadCache cache = CACHE.get();
+        Key probe = cache.probe;
+        probe.set(pattern, locale, zone == null ? null : zone.getID());
+        SimpleDateFormat format = cache.formats.get(probe);
+        if (format == null) {
+            if (cache.formats.size() >= MAX_FORMATTERS_PER_THREAD) {
+                cache.formats.clear();
+            }
+            format = new SimpleDateFormat(pattern, locale);
+            if (zone != null) {
+                format.setTimeZone(zone);
+            }
+            cache.formats.put(new Key(probe), format);
+        }
+        if (zone == null) {
+            // Track changes to the default time zone, e.g. when the user travels
+            TimeZone defaultZone = TimeZone.getDefault();
+            if (!defaultZone.getID().equals(format.getTimeZone().getID())) {
+                format.setTimeZone(defaultZone);
+            }
+        }
+        return format;
+    }
+
+    /**
+     * Formatters of a single thread, with a reusable key for lookups
+     */
+    private static class ThreadCache {
+
+        final HashMap<Key, SimpleDateFormat> formats = new HashMap<Key, SimpleDateFormat>();
+        final Key probe = new Key();
+    }
+
+    /**
+     * Pattern, locale and time zone ID of a formatter; a null zone ID stands for the default time zone
+     */
+    private static class Key {
+
+        private String pattern;
+        private Locale locale;
+        private String zoneId;
+        private int hashCode;
+
+        Key() {
+        }
+
+        Key(Key other) {
+            set(other.pattern, other.locale, other.zoneId);
+        }
+
+        void set(String pattern, Locale locale, String zoneId) {
+            this.pattern = pattern;
+            this.locale = locale;
+            this.zoneId = zoneId;
+            hashCode = (pattern.hashCode() * 31 + locale.hashCode()) * 31 + (zoneId == null ? 0 : zoneId.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return pattern.equals(other.pattern) && locale.equals(other.locale)
+                    && (zoneId == null ? other.zoneId == null : zoneId.equals(other.zoneId));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.overthink.mechmaid.util;
+
+import java.text.ParsePosition;
+import java.util.TimeZone;
+
+/**
+ * Parsers for the fixed {@link TimeUtils} formats that scan characters straight to Unix milliseconds, without creating
+ * Date, Calendar or exception objects. Only well-formed input with in-range fields is accepted; SimpleDateFormat is
+ * lenient and also accepts things like month 13, which these parsers report as errors instead.
+ * <p>
+ * Each parser comes in two forms: one that takes a whole string and returns {@link #INVALID_TIME} if it doesn't
+ * parse, and one that parses from a {@link ParsePosition}, as SimpleDateFormat does, and reports where parsing failed
+ * through its error index.
+ */
+public class FixedDateParser {
+
+    /** Returned when text doesn't parse; not a time any of the formats can express **/
+    public static final long INVALID_TIME = Long.MIN_VALUE;
+
+    // First year of the Gregorian calendar; earlier dates would use the Julian calendar
+    private static final int FIRST_GREGORIAN_YEAR = 1583;
+    private static final int[] DAYS_PER_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    /**
+     * Parses a whole {@link TimeUtils#FORMAT_URL_TIME} string, such as "10172026", to midnight of that day
+     *
+     * @param text the text to parse
+     * @param zone time zone the text is in
+     * @return Unix time in milliseconds, or {@link #INVALID_TIME}
+     */
+    public static long parseUrlTime(CharSequence text, TimeZone zone) {
+        return parseUrlTime(text, 0, null, zone);
+    }
+
+    /**
+     * Parses a {@link TimeUtils#FORMAT_URL_TIME} string ("MMddyyyy"), starting at a position in the text
+     *
+     * @param text the text to parse
+     * @param position where to start; on success its index is moved past the parsed text, on failure its error index
+     *                 is set to the offending character and its index is left unchanged
+     * @param zone time zone the text is in
+     * @return Unix time in milliseconds, or {@link #INVALID_TIME}
+     */
+    public static long parseUrlTime(CharSequence text, ParsePosition position, TimeZone zone) {
+        return parseUrlTime(text, position.getIndex(), position, zone);
+    }
+
+    /**
+     * @param position receives the outcome, or null to require the whole text to parse
+     */
+    private static long parseUrlTime(CharSequence text, int index, ParsePosition position, TimeZone zone) {
+        int end = text.length();
+        if (digitCount(text, index, end, 8) != 8) {
+            return fail(position, index + digitCount(text, index, end, 8));
+        }
+        int month = digitsValue(text, index, 2);
+        int day = digitsValue(text, index + 2, 2);
+        int year = digitsValue(text, index + 4, 4);
+        if (month < 1 || month > 12) {
+            return fail(position, index);
+        }
+        if (day < 1 || day > daysInMonth(year, month)) {
+            return fail(position, index + 2);
+        }
+        if (year < FIRST_GREGORIAN_YEAR) {
+            return fail(position, index + 4);
+        }
+        return succeed(text, position, index + 8, toUnixMillis(year, month, day, 0, zone));
+    }
+
+    /**
+     * Parses a whole {@link TimeUtils#FORMAT_DATE_TIME_LONG} string, such as "10/17/2026 09:05:00 PM"
+     *
+     * @param text the text to parse
+     * @param zone time zone the text is in
+     * @return Unix time in milliseconds, or {@link #INVALID_TIME}
+     */
+    public static long parseDateTimeLong(CharSequence text, TimeZone zone) {
+        return parseDateTimeLong(text, 0, null, zone);
+    }
+
+    /**
+     * Parses a {@link TimeUtils#FORMAT_DATE_TIME_LONG} string ("M/d/yyyy hh:mm:ss a"), starting at a position in the
+     * text. Like SimpleDateFormat, this accepts one or two digits for every field but the year, and AM/PM in any case.
+     *
+     * @param text the text to parse
+     * @param position where to start; on success its index is moved past the parsed text, on failure its error index
+     *                 is set to the offending character and its index is left unchanged
+     * @param zone time zone the text is in
+     * @return Unix time in milliseconds, or {@link #INVALID_TIME}
+     */
+    public static long parseDateTimeLong(CharSequence text, ParsePosition position, TimeZone zone) {
+        return parseDateTimeLong(text, position.getIndex(), position, zone);
+    }
+
+    /**
+     * @param position receives the outcome, or null to require the whole text to parse
+     */
+    private static long parseDateTimeLong(CharSequence text, int index, ParsePosition position, TimeZone zone) {
+        int end = text.length();
+
+        int count = digitCount(text, index, end, 2);
+        int month = digitsValue(text, index, count);
+        if (count == 0 || month < 1 || month > 12) {
+            return fail(position, index);
+        }
+        index += count;
+        if (!isChar(text, index, end, '/')) {
+            return fail(position, index);
+        }
+        index++;
+
+        count = digitCount(text, index, end, 2);
+        int day = digitsValue(text, index, count);
+        int dayIndex = index;
+        if (count == 0) {
+            return fail(position, index);
+        }
+        index += count;
+        if (!isChar(text, index, end, '/')) {
+            return fail(position, index);
+        }
+        index++;
+
+        count = digitCount(text, index, end, 4);
+        int year = digitsValue(text, index, count);
+        if (count != 4 || year < FIRST_GREGORIAN_YEAR) {
+            return fail(position, index);
+        }
+        if (day < 1 || day > daysInMonth(year, month)) {
+            return fail(position, dayIndex);
+        }
+        index += count;
+        if (!isChar(text, index, end, ' ')) {
+            return fail(position, index);
+        }
+        index++;
+
+        count = digitCount(text, index, end, 2);
+        int hour = digitsValue(text, index, count);
+        if (count == 0 || hour < 1 || hour > 12) {
+            return fail(position, index);
+        }
+        index += count;
+        if (!isChar(text, index, end, ':')) {
+            return fail(position, index);
+        }
+        index++;
+
+        count = digitCount(text, index, end, 2);
+        int minute = digitsValue(text, index, count);
+        if (count == 0 || minute > 59) {
+            return fail(position, index);
+        }
+        index += count;
+        if (!isChar(text, index, end, ':')) {
+            return fail(position, index);
+        }
+        index++;
+
+        count = digitCount(text, index, end, 2);
+        int second = digitsValue(text, index, count);
+        if (count == 0 || second > 59) {
+            return fail(position, index);
+        }
+        index += count;
+        if (!isChar(text, index, end, ' ')) {
+            return fail(position, index);
+        }
+        index++;
+
+        if (index + 2 > end || Character.toUpperCase(text.charAt(index + 1)) != 'M') {
+            return fail(position, index);
+        }
+        char amPm = Character.toUpperCase(text.charAt(index));
+        if (amPm != 'A' && amPm != 'P') {
+            return fail(position, index);
+        }
+        index += 2;
+
+        int hourOfDay = hour % 12 + (amPm == 'P' ? 12 : 0);
+        int millisOfDay = hourOfDay * TimeUtils.MS_PER_HOUR + minute * TimeUtils.MS_PER_MINUTE
+                + second * TimeUtils.MS_PER_SECOND;
+        return succeed(text, position, index, toUnixMillis(year, month, day, millisOfDay, zone));
+    }
+
+    /**
+     * Converts a local date and time to Unix time, resolving local times skipped or repeated by daylight saving
+     * transitions the way GregorianCalendar does
+     */
+    private static long toUnixMillis(int year, int month, int day, int millisOfDay, TimeZone zone) {
+        long localMillis = CivilDate.daysSinceEpoch(year, month, day) * TimeUtils.MS_PER_DAY + millisOfDay;
+        return ZoneOffsetCache.toUnixMillis(localMillis, zone);
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2 && !(year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+            return 28;
+        }
+        return DAYS_PER_MONTH[month - 1];
+    }
+
+    /**
+     * @return the number of consecutive ASCII digits at an index, up to a maximum
+     */
+    private static int digitCount(CharSequence text, int index, int end, int maxDigits) {
+        int count = 0;
+        while (count < maxDigits && index + count < end) {
+            char c = text.charAt(index + count);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the value of a run of ASCII digits already counted by digitCount()
+     */
+    private static int digitsValue(CharSequence text, int index, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = value * 10 + (text.charAt(index + i) - '0');
+        }
+        return value;
+    }
+
+    private static boolean isChar(CharSequence text, int index, int end, char expected) {
+        return index < end && text.charAt(index) == expected;
+    }
+
+    /**
+     * @return the parsed time, after checking that the whole text was used if there is no position to report to
+     */
+    private static long succeed(CharSequence text, ParsePosition position, int index, long millis) {
+        if (position == null) {
+            return index == text.length() ? millis : INVALID_TIME;
+        }
+        position.setIndex(index);
+        return millis;
+    }
+
+    private static long fail(ParsePosition position, int errorIndex) {
+        if (position != null) {
+            position.setErrorIndex(errorIndex);
+        }
+        return INVALID_TIME;
+    }
+}
@@ -8,6 +8,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A library of methods for dealing with Dates, Calendars, and all of their ugliness.
@@ -71,6 +72,57 @@ public class TimeUtils {
     private static final String ERR_MESSAGE_INVALID_FIELD = "Invalid time field requested";
     public static final TimeZone TIME_ZONE_UTC = TimeZone.getTimeZone("UTC");
 
+    //Compiled format patterns, with a placeholder for patterns CompiledDateFormat doesn't support
+    private static final ConcurrentHashMap<String, CompiledDateFormat> COMPILED_FORMATS =
+            new ConcurrentHashMap<String, CompiledDateFormat>();
+    private static final CompiledDateFormat UNSUPPORTED_FORMAT = CompiledDateFormat.compile("");
+
+    //First day of the week in the default locale, as in Calendar
+    private static final int FIRST_DAY_OF_WEEK = Calendar.getInstance().getFirstDayOfWeek();
+
+    /**How long a snapshot of the current time is reused by default, in milliseconds**/
+    public static final long DEFAULT_CLOCK_GRANULARITY_MS = 1000;
+
+    //Source of the current time for all current-time helpers
+    private static volatile CachedClock clock = new CachedClock(Clock.SYSTEM, DEFAULT_CLOCK_GRANULARITY_MS);
+
+    /**
+     * Replaces the source of the current time, e.g. with a fixed clock in tests
+     *
+     * @param newClock the clock to read the current time from, or null for the system clock
+     */
+    public static void setClock(Clock newClock) {
+        clock = new CachedClock(newClock == null ? Clock.SYSTEM : newClock, clock.getGranularityMs());
+    }
+
+    /**
+     * Sets how long a snapshot of the current time is reused by the current-time helpers. Coarser granularity makes
+     * them cheaper but lets minute and hour fields lag behind the clock by up to the granularity; the day is always
+     * current.
+     *
+     * @param granularityMs how long a snapshot is reused, in milliseconds; 0 reads the clock afresh every time
+     */
+    public static void setClockGranularity(long granularityMs) {
+        clock = new CachedClock(clock.getClock(), granularityMs);
+    }
+
+    /**
+     * Returns the current time broken down into fields in the default time zone, computed at most once per clock
+     * granularity. Use it to read several fields of "now" consistently, or to test many times against today.
+     *
+     * @return a snapshot of the current time
+     */
+    public static CachedClock.Snapshot getCurrentTime() {
+        return clock.getSnapshot();
+    }
+
+    /**
+     * @return the current time from the installed clock, as UTC Unix time in milliseconds
+     */
+    public static long currentTimeMillis() {
+        return clock.getClock().currentTimeMillis();
+    }
+
     /**
      * Returns a field of the current time as an integer.  Fields accepted: MINUTE_OF_DAY, MINUTE_OF_HOUR, HOUR_OF_DAY,
      * DAY_OF_YEAR
@@ -79,18 +131,18 @@ public class TimeUtils {
      * @return the desired field
      */
     public static int getCurrentTimeField(int field) {
-        //Get calendar for current time
-        Calendar now = Calendar.getInstance();
+        //Get snapshot of current time
+        CachedClock.Snapshot now = clock.getSnapshot();
         //Select appropriate field
         switch (field) {
             case MINUTE_OF_DAY:
-                return (now.get(Calendar.HOUR_OF_DAY) * MINUTES_PER_HOUR) + now.get(Calendar.MINUTE);
+                return now.getMinuteOfDay();
             case MINUTE_OF_HOUR:
-                return now.get(Calendar.MINUTE);
+                return now.getMinuteOfHour();
             case HOUR_OF_DAY:
-                return now.get(Calendar.HOUR_OF_DAY);
+                return now.getHourOfDay();
             case DAY_OF_YEAR:
-                return now.get(Calendar.DAY_OF_YEAR);
+                return now.getDayOfYear();
             default:
                 Log.e(TAG, ERR_MESSAGE_INVALID_FIELD + "(in getCurrentTimeField())");
                 return -1;
@@ -131,7 +183,33 @@ public class TimeUtils {
      * @return the desired field
      */
     public static int getTimeField(Date date, int field) {
-        return getTimeField(dateToCalendar(date), field);
+        return getTimeField(date.getTime(), field);
+    }
+
+    /**
+     * Returns a field of a Unix time in the default time zone as an integer, without creating a Calendar. Fields
+     * accepted: MINUTE_OF_DAY, MINUTE_OF_HOUR, HOUR_OF_DAY, DAY_OF_YEAR
+     *
+     * @param millis UTC Unix time in milliseconds
+     * @param field The field (i.e. minute, hour, etc) to retrieve
+     * @return the desired field
+     */
+    public static int getTimeField(long millis, int field) {
+        long localMillis = ZoneOffsetCache.getDefault().toLocalMillis(millis);
+        int millisOfDay = (int) CivilDate.floorMod(localMillis, MS_PER_DAY);
+        switch (field) {
+            case MINUTE_OF_DAY:
+                return millisOfDay / MS_PER_MINUTE;
+            case MINUTE_OF_HOUR:
+                return millisOfDay / MS_PER_MINUTE % MINUTES_PER_HOUR;
+            case HOUR_OF_DAY:
+                return millisOfDay / MS_PER_HOUR;
+            case DAY_OF_YEAR:
+                return CivilDate.dayOfYear(CivilDate.floorDiv(localMillis, MS_PER_DAY));
+            default:
+                Log.e(TAG, ERR_MESSAGE_INVALID_FIELD + "(in getTimeField())");
+                return -1;
+        }
     }
 
     /**
@@ -141,14 +219,14 @@ public class TimeUtils {
      * @return the desired field
      */
     public static double getCurrentTimeFieldFractional(int field) {
-        //Get calendar for current time
-        Calendar now = Calendar.getInstance();
+        //Get snapshot of current time
+        CachedClock.Snapshot now = clock.getSnapshot();
         //Select appropriate field
         switch (field) {
             case HOUR_OF_DAY:
-                return now.get(Calendar.HOUR_OF_DAY) + (now.get(Calendar.MINUTE) / (double)MINUTES_PER_HOUR) ;
+                return now.getHourOfDay() + (now.getMinuteOfHour() / (double)MINUTES_PER_HOUR) ;
             case DAY_OF_YEAR:
-                return now.get(Calendar.DAY_OF_YEAR) + (now.get(Calendar.HOUR_OF_DAY) / (float)HOURS_PER_DAY);
+                return now.getDayOfYear() + (now.getHourOfDay() / (float)HOURS_PER_DAY);
             default:
                 Log.e(TAG, ERR_MESSAGE_INVALID_FIELD + "(in getCurrentTimeFieldFractional())");
                 return -1;
@@ -162,9 +240,8 @@ public class TimeUtils {
      * @return true if it is set to today
      */
     public static boolean isToday(Calendar cal) {
-        Calendar now = Calendar.getInstance();
-        return (cal.get(Calendar.YEAR) == now.get(Calendar.YEAR)) && (
-                cal.get(Calendar.DAY_OF_YEAR) == now.get(Calendar.DAY_OF_YEAR));
+        CachedClock.Snapshot now = clock.getSnapshot();
+        return (cal.get(Calendar.YEAR) == now.getYear()) && (cal.get(Calendar.DAY_OF_YEAR) == now.getDayOfYear());
     }
 
     /**
@@ -174,7 +251,40 @@ public class TimeUtils {
      * @return true if it is set to today
      */
     public static boolean isToday(Date date) {
-        return isToday(dateToCalendar(date));
+        return isToday(date.getTime());
+    }
+
+    /**
+     * Determines if a Unix time falls on today in the default time zone
+     *
+     * @param millis UTC Unix time in milliseconds
+     * @return true if it is today
+     */
+    public static boolean isToday(long millis) {
+        return clock.getSnapshot().isToday(millis);
+    }
+
+    /**
+     * Determines if two Unix times fall on the same day in the default time zone
+     *
+     * @param millis1 first UTC Unix time in milliseconds
+     * @param millis2 second UTC Unix time in milliseconds
+     * @return true if both are on the same day
+     */
+    public static boolean isSameDay(long millis1, long millis2) {
+        return localDay(millis1) == localDay(millis2);
+    }
+
+    /**
+     * Determines if two Unix times fall in the same week in the default time zone, with weeks starting on the first
+     * day of the week of the default locale
+     *
+     * @param millis1 first UTC Unix time in milliseconds
+     * @param millis2 second UTC Unix time in milliseconds
+     * @return true if both are in the same week
+     */
+    public static boolean isSameWeek(long millis1, long millis2) {
+        return weekStartDay(localDay(millis1)) == weekStartDay(localDay(millis2));
     }
 
     /**
@@ -230,7 +340,9 @@ public class TimeUtils {
      * @return 0 if equal, 1 if date1 is later, and -1 if date2 is later
      */
     public static int compareDates(Date date1, Date date2) {
-        return (compareCalendars(dateToCalendar(date1), dateToCalendar(date2)));
+        long millis1 = date1.getTime();
+        long millis2 = date2.getTime();
+        return millis1 < millis2 ? -1 : (millis1 == millis2 ? 0 : 1);
     }
 
     /**
@@ -241,9 +353,7 @@ public class TimeUtils {
      * @return a formatted date/time String
      */
     public static String createDateTimeString(Calendar cal, String formatString) {
-        SimpleDateFormat sdf = new SimpleDateFormat(formatString, Locale.US);
-//        sdf.setTimeZone(TIME_ZONE_UTC);
-        return sdf.format(calendarToDate(cal));
+        return createDateTimeString(cal.getTimeInMillis(), formatString);
     }
 
     /**
@@ -254,11 +364,13 @@ public class TimeUtils {
      * @return a formatted date/time String
      */
     public static String createDateTimeString(long millis, String formatString) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(millis);
-        SimpleDateFormat sdf = new SimpleDateFormat(formatString, Locale.US);
+        CompiledDateFormat format = getCompiledFormat(formatString);
+        if (format != null) {
+            return format.format(millis);
+        }
+        SimpleDateFormat sdf = DateFormatCache.get(formatString);
 //        sdf.setTimeZone(TIME_ZONE_UTC);
-        return sdf.format(calendarToDate(cal));
+        return sdf.format(new Date(millis));
     }
 
     /**
@@ -269,11 +381,52 @@ public class TimeUtils {
      * @return a formatted date/time String
      */
     public static String createDateTimeString(Date date, String formatString) {
-        SimpleDateFormat sdf = new SimpleDateFormat(formatString, Locale.US);
-        sdf.setTimeZone(TIME_ZONE_UTC);
+        CompiledDateFormat format = getCompiledFormat(formatString);
+        if (format != null) {
+            return format.format(date.getTime(), TIME_ZONE_UTC);
+        }
+        SimpleDateFormat sdf = DateFormatCache.get(formatString, Locale.US, TIME_ZONE_UTC);
         return sdf.format(date);
     }
 
+    /**
+     * Appends a date string according to a format string and a Unix milliseconds time to a StringBuilder, without
+     * creating intermediate objects for the FORMAT_* patterns. Useful when formatting many rows at once.
+     *
+     * @param millis UTC Unix time in milliseconds to format, in the default time zone
+     * @param formatString String specifying time format
+     * @param out the StringBuilder to append to
+     */
+    public static void appendDateTimeString(long millis, String formatString, StringBuilder out) {
+        CompiledDateFormat format = getCompiledFormat(formatString);
+        if (format != null) {
+            format.format(millis, ZoneOffsetCache.getDefault(), out);
+        }
+        else {
+            out.append(DateFormatCache.get(formatString).format(new Date(millis)));
+        }
+    }
+
+    /**
+     * Returns the compiled form of a format string, compiling it on first use
+     *
+     * @param formatString String specifying time format
+     * @return the compiled format, or null if the format string uses features only SimpleDateFormat supports
+     */
+    private static CompiledDateFormat getCompiledFormat(String formatString) {
+        CompiledDateFormat format = COMPILED_FORMATS.get(formatString);
+        if (format == null) {
+            try {
+                format = CompiledDateFormat.compile(formatString);
+            }
+            catch (IllegalArgumentException e) {
+                format = UNSUPPORTED_FORMAT;
+            }
+            COMPILED_FORMATS.putIfAbsent(formatString, format);
+        }
+        return format == UNSUPPORTED_FORMAT ? null : format;
+    }
+
     /**
      * Compares two Calendars for equality down to a given precision. To specify precision use one of the following
      * class constants
@@ -331,8 +484,69 @@ public class TimeUtils {
      * @return true if Dates are equal down to specified precision
      */
     public static boolean compareDatesToPrecision(Date date1, Date date2, int field) {
-        //Call through to calendar version of method
-        return compareCalendarsToPrecision(dateToCalendar(date1), dateToCalendar(date2), field);
+        return compareTimesToPrecision(date1.getTime(), date2.getTime(), field);
+    }
+
+    /**
+     * Compares two Unix times in the default time zone for equality down to a given precision, without creating
+     * Calendars. Fields accepted: SECOND, MINUTE, HOUR, DAY, WEEK, MONTH, YEAR. As with
+     * {@link #compareCalendarsToPrecision(Calendar, Calendar, int)}, times in the same week must also be in the same
+     * month.
+     *
+     * @param millis1 first UTC Unix time in milliseconds
+     * @param millis2 second UTC Unix time in milliseconds
+     * @param field precision required for equality
+     * @return true if the times are equal down to specified precision
+     */
+    public static boolean compareTimesToPrecision(long millis1, long millis2, int field) {
+        ZoneOffsetCache zone = ZoneOffsetCache.getDefault();
+        long localMillis1 = zone.toLocalMillis(millis1);
+        long localMillis2 = zone.toLocalMillis(millis2);
+        switch (field) {
+            case SECOND:
+                return isSameUnit(localMillis1, localMillis2, MS_PER_SECOND);
+            case MINUTE:
+                return isSameUnit(localMillis1, localMillis2, MS_PER_MINUTE);
+            case HOUR:
+                return isSameUnit(localMillis1, localMillis2, MS_PER_HOUR);
+            case DAY:
+                return isSameUnit(localMillis1, localMillis2, MS_PER_DAY);
+            case WEEK:
+                long day1 = CivilDate.floorDiv(localMillis1, MS_PER_DAY);
+                long day2 = CivilDate.floorDiv(localMillis2, MS_PER_DAY);
+                return weekStartDay(day1) == weekStartDay(day2)
+                        && CivilDate.yearMonthOf(day1) == CivilDate.yearMonthOf(day2);
+            case MONTH:
+                return CivilDate.yearMonthOf(CivilDate.floorDiv(localMillis1, MS_PER_DAY))
+                        == CivilDate.yearMonthOf(CivilDate.floorDiv(localMillis2, MS_PER_DAY));
+            case YEAR:
+                return CivilDate.yearOf(CivilDate.floorDiv(localMillis1, MS_PER_DAY))
+                        == CivilDate.yearOf(CivilDate.floorDiv(localMillis2, MS_PER_DAY));
+            default:
+                Log.e(TAG, ERR_MESSAGE_INVALID_FIELD + "(in compareTimesToPrecision)");
+                return true;
+        }
+    }
+
+    /**
+     * @return true if two local times fall in the same whole unit of time since 1970-01-01
+     */
+    private static boolean isSameUnit(long localMillis1, long localMillis2, long unitMs) {
+        return CivilDate.floorDiv(localMillis1, unitMs) == CivilDate.floorDiv(localMillis2, unitMs);
+    }
+
+    /**
+     * @return days from 1970-01-01 to the day a Unix time falls on in the default time zone
+     */
+    private static long localDay(long millis) {
+        return CivilDate.floorDiv(ZoneOffsetCache.getDefault().toLocalMillis(millis), MS_PER_DAY);
+    }
+
+    /**
+     * @return the first day of the week containing a day, both as days from 1970-01-01
+     */
+    private static long weekStartDay(long epochDay) {
+        return epochDay - CivilDate.floorMod(CivilDate.dayOfWeek(epochDay) - FIRST_DAY_OF_WEEK, DAYS_PER_WEEK);
     }
 
     /**
@@ -354,7 +568,19 @@ public class TimeUtils {
      * @return a Date based on parsed string
      */
     public static Date parseStringToDate(String timeString, String format) {
-        SimpleDateFormat sdf = new SimpleDateFormat(format, Locale.US);
+        long millis = FixedDateParser.INVALID_TIME;
+        if (FORMAT_URL_TIME.equals(format)) {
+            millis = FixedDateParser.parseUrlTime(timeString, ZoneOffsetCache.getDefault().getZone());
+        }
+        else if (FORMAT_DATE_TIME_LONG.equals(format)) {
+            millis = FixedDateParser.parseDateTimeLong(timeString, ZoneOffsetCache.getDefault().getZone());
+        }
+        if (millis != FixedDateParser.INVALID_TIME) {
+            return new Date(millis);
+        }
+
+        //Anything the fast parsers don't accept, SimpleDateFormat may still parse leniently
+        SimpleDateFormat sdf = DateFormatCache.get(format);
         try {
             return sdf.parse(timeString);
         } catch (ParseException e) {
@@ -0,0 +1,139 @@
+package com.overthink.mechmaid.util;
+
+import java.util.TimeZone;
+
+/**
+ * Remembers the UTC offset of a time zone day by day, so that converting many times to local time doesn't go through
+ * the zone's transition tables (or a Calendar) for each of them. Days with a daylight saving transition are not
+ * cached and are looked up every time.
+ * <p>
+ * {@link #getDefault()} tracks the default time zone without cloning it on every call, as TimeZone.getDefault() does.
+ * Instances are thread safe.
+ */
+public class ZoneOffsetCache {
+
+    // Cached days per zone; a direct-mapped table indexed by day
+    private static final int SLOT_COUNT = 64;
+    // How often getDefault() checks whether the default time zone changed
+    private static final long DEFAULT_ZONE_CHECK_INTERVAL_MS = 1000;
+
+    private static volatile ZoneOffsetCache defaultCache = new ZoneOffsetCache(TimeZone.getDefault());
+    private static volatile long nextDefaultZoneCheckMillis;
+
+    private final TimeZone zone;
+    // Written and read without locking: each slot holds an immutable day, so a racing reader sees a whole one
+    private final Day[] slots = new Day[SLOT_COUNT];
+
+    /**
+     * Constructs a cache for a time zone
+     *
+     * @param zone the time zone; it must not be modified afterwards
+     */
+    public ZoneOffsetCache(TimeZone zone) {
+        this.zone = zone;
+    }
+
+    /**
+     * Returns the cache of the default time zone. Changes to the default time zone are picked up within a second, or
+     * right away after {@link #invalidateDefault()}.
+     *
+     * @return the cache of the default time zone
+     */
+    public static ZoneOffsetCache getDefault() {
+        long nowMillis = System.currentTimeMillis();
+        if (nowMillis >= nextDefaultZoneCheckMillis || nowMillis < nextDefaultZoneCheckMillis
+                - DEFAULT_ZONE_CHECK_INTERVAL_MS) {
+            nextDefaultZoneCheckMillis = nowMillis + DEFAULT_ZONE_CHECK_INTERVAL_MS;
+            TimeZone current = TimeZone.getDefault();
+            if (!current.getID().equals(defaultCache.zone.getID())) {
+                defaultCache = new ZoneOffsetCache(current);
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Makes the next {@link #getDefault()} check the default time zone, e.g. from a receiver of
+     * Intent.ACTION_TIMEZONE_CHANGED
+     */
+    public static void invalidateDefault() {
+        nextDefaultZoneCheckMillis = 0;
+    }
+
+    /**
+     * @return the time zone
+     */
+    public TimeZone getZone() {
+        return zone;
+    }
+
+    /**
+     * Returns the zone's offset from UTC at a time, daylight saving included
+     *
+     * @param millis Unix time in milliseconds
+     * @return the offset, in milliseconds
+     */
+    public int getOffset(long millis) {
+        long utcDay = CivilDate.floorDiv(millis, TimeUtils.MS_PER_DAY);
+        int slot = (int) CivilDate.floorMod(utcDay, SLOT_COUNT);
+        Day day = slots[slot];
+        if (day == null || day.utcDay != utcDay) {
+            day = load(utcDay);
+            slots[slot] = day;
+        }
+        return day.hasTransition ? zone.getOffset(millis) : day.offset;
+    }
+
+    /**
+     * @param millis Unix time in milliseconds
+     * @return the local time in the zone, as milliseconds since 1970-01-01 00:00 local time
+     */
+    public long toLocalMillis(long millis) {
+        return millis + getOffset(millis);
+    }
+
+    /**
+     * Converts a local time to Unix time, resolving local times the way GregorianCalendar does: a time repeated when
+     * the offset goes back is taken at its later occurrence, and a time skipped when the offset goes forward is taken
+     * with the offset from before the transition, which moves it forward
+     *
+     * @param localMillis milliseconds since 1970-01-01 00:00 local time
+     * @param zone the time zone
+     * @return UTC Unix time in milliseconds
+     */
+    static long toUnixMillis(long localMillis, TimeZone zone) {
+        // Offsets from well before and after; time zones never change offset twice in a day
+        int offsetBefore = zone.getOffset(localMillis - TimeUtils.MS_PER_DAY);
+        int offsetAfter = zone.getOffset(localMillis + TimeUtils.MS_PER_DAY);
+        long millisAfter = localMillis - offsetAfter;
+        if (offsetBefore == offsetAfter || zone.getOffset(millisAfter) == offsetAfter) {
+            return millisAfter;
+        }
+        // Either only valid before the transition, or skipped by it; both take the earlier offset
+        return localMillis - offsetBefore;
+    }
+
+    private Day load(long utcDay) {
+        long start = utcDay * TimeUtils.MS_PER_DAY;
+        int startOffset = zone.getOffset(start);
+        int endOffset = zone.getOffset(start + TimeUtils.MS_PER_DAY - 1);
+        // Time zones never change offset twice in a day
+        return new Day(utcDay, startOffset, startOffset != endOffset);
+    }
+
+    /**
+     * Offset of the zone during one UTC day
+     */
+    private static class Day {
+
+        final long utcDay;
+        final int offset;
+        final boolean hasTransition;
+
+        Day(long utcDay, int offset, boolean hasTransition) {
+            this.utcDay = utcDay;
+            this.offset = offset;
+            this.hasTransition = hasTransition;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it, used to report how many bytes of a request body were produced and sent
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    long getCount() {
+        return count;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        out.write(oneByte);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        // FilterOutputStream would otherwise write one byte at a time
+        out.write(buffer, offset, length);
+        count += length;
+    }
+}
@@ -0,0 +1,79 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes JSON response bodies straight into model objects with a {@link JsonStreamReader}, without building a tree of
+ * the whole document first and without reflection. Each model type gets a small hand-written (or generated) mapper:
+ * <pre>
+ * static final JsonDecoder&lt;Shop&gt; SHOP = new JsonDecoder&lt;Shop&gt;() {
+ *     public Shop read(JsonStreamReader reader) throws IOException {
+ *         Shop shop = new Shop();
+ *         reader.beginObject();
+ *         while (reader.hasNext()) {
+ *             String name = reader.nextName();
+ *             if (name.equals("id")) shop.id = reader.nextLong();
+ *             else if (name.equals("name")) shop.name = reader.nextString();
+ *             else reader.skipValue();
+ *         }
+ *         reader.endObject();
+ *         return shop;
+ *     }
+ * };
+ * TypedWebServiceResponse&lt;List&lt;Shop&gt;&gt; shops =
+ *         WebServiceUtils.makeHttpGetRequestFor(url, JsonDecoder.listOf(SHOP));
+ * </pre>
+ *
+ * @param <T> the type of model object produced
+ */
+public abstract class JsonDecoder<T> implements WebServiceDecoder<T> {
+
+    /**
+     * Reads one value from the reader
+     *
+     * @param reader the reader, positioned before the value
+     * @return the model object
+     * @throws IOException if the JSON is malformed or doesn't fit the model
+     */
+    public abstract T read(JsonStreamReader reader) throws IOException;
+
+    @Override
+    public T decode(InputStream body, Charset charset, WebServiceResponse response) throws IOException {
+        JsonStreamReader reader = new JsonStreamReader(new InputStreamReader(body, charset));
+        T result = read(reader);
+        reader.endDocument();
+        return result;
+    }
+
+    /**
+     * Creates a decoder for a JSON array of values
+     *
+     * @param elementDecoder decoder of each element
+     * @return a decoder producing the elements in order; null elements are kept
+     */
+    public static <E> JsonDecoder<List<E>> listOf(final JsonDecoder<E> elementDecoder) {
+        return new JsonDecoder<List<E>>() {
+            @Override
+            public List<E> read(JsonStreamReader reader) throws IOException {
+                List<E> elements = new ArrayList<E>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonStreamReader.Token.NULL) {
+                        reader.nextNull();
+                        elements.add(null);
+                    }
+                    else {
+                        elements.add(elementDecoder.read(reader));
+                    }
+                }
+                reader.endArray();
+                return elements;
+            }
+        };
+    }
+}
@@ -0,0 +1,461 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a JSON document one token at a time, without building a tree of it in memory. Used by {@link JsonDecoder}
+ * mappers to fill model objects directly from a response body.
+ * <p>
+ * This does the job of android.util.JsonReader, which is not available before API level 11. Numbers may be read from
+ * JSON strings and strings from JSON numbers, since servers are not always consistent about quoting them.
+ */
+public class JsonStreamReader implements Closeable {
+
+    /**
+     * Kind of the next token in the document
+     */
+    public enum Token {
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    // Scopes on the nesting stack
+    private static final int SCOPE_EMPTY_ARRAY = 1;
+    private static final int SCOPE_NONEMPTY_ARRAY = 2;
+    private static final int SCOPE_EMPTY_OBJECT = 3;
+    // In an object, after a name and before its value
+    private static final int SCOPE_DANGLING_NAME = 4;
+    private static final int SCOPE_NONEMPTY_OBJECT = 5;
+    private static final int SCOPE_EMPTY_DOCUMENT = 6;
+    private static final int SCOPE_NONEMPTY_DOCUMENT = 7;
+
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+
+    private int[] stack = new int[32];
+    private int stackSize;
+
+    // Next token, or null if it hasn't been peeked yet
+    private Token peeked;
+    // Text of a peeked NAME, STRING or NUMBER token
+    private String peekedText;
+    private boolean peekedBoolean;
+
+    private final StringBuilder text = new StringBuilder();
+
+    public JsonStreamReader(Reader in) {
+        this.in = in;
+        stack[stackSize++] = SCOPE_EMPTY_DOCUMENT;
+    }
+
+    /**
+     * @return the kind of the next token, without consuming it
+     * @throws IOException if the document can't be read or is malformed
+     */
+    public Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = doPeek();
+        }
+        return peeked;
+    }
+
+    /**
+     * @return true if the current array or object has another element
+     * @throws IOException if the document can't be read or is malformed
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END_DOCUMENT;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(SCOPE_EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        stackSize--;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(SCOPE_EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        stackSize--;
+    }
+
+    /**
+     * Checks that the document has nothing left after its top-level value
+     *
+     * @throws IOException if the document can't be read or has trailing content
+     */
+    public void endDocument() throws IOException {
+        expect(Token.END_DOCUMENT);
+    }
+
+    /**
+     * @return the name of the next property of the current object
+     * @throws IOException if the next token is not a name
+     */
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return peekedText;
+    }
+
+    /**
+     * @return the next value as a string, which must be a JSON string or number
+     * @throws IOException if the next token is not a string or number
+     */
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token != Token.STRING && token != Token.NUMBER) {
+            throw syntaxError("Expected a string but was " + token);
+        }
+        peeked = null;
+        return peekedText;
+    }
+
+    /**
+     * @return the next value, or null if it's a JSON null
+     * @throws IOException if the next token is not a string, number or null
+     */
+    public String nextStringOrNull() throws IOException {
+        if (peek() == Token.NULL) {
+            peeked = null;
+            return null;
+        }
+        return nextString();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return peekedBoolean;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+    }
+
+    public long nextLong() throws IOException {
+        String number = nextString();
+        try {
+            return Long.parseLong(number);
+        }
+        catch (NumberFormatException e) {
+            // Allow integral values written with a fraction or exponent, like 1.0 or 1e3
+            double value = parseDouble(number);
+            long integral = (long) value;
+            if (integral != value) {
+                throw syntaxError("Expected a long but was " + number);
+            }
+            return integral;
+        }
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if ((int) value != value) {
+            throw syntaxError("Expected an int but was " + value);
+        }
+        return (int) value;
+    }
+
+    public double nextDouble() throws IOException {
+        return parseDouble(nextString());
+    }
+
+    /**
+     * Skips the next value, including everything nested in it
+     *
+     * @throws IOException if the document can't be read or is malformed
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            Token token = peek();
+            switch (token) {
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("Expected a value but was " + token);
+                default:
+                    // A name, or a single-token value
+                    peeked = null;
+            }
+        }
+        while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            int[] grown = new int[stackSize * 2];
+            System.arraycopy(stack, 0, grown, 0, stackSize);
+            stack = grown;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private Token doPeek() throws IOException {
+        int top = stackSize - 1;
+        int scope = stack[top];
+        switch (scope) {
+            case SCOPE_EMPTY_ARRAY:
+                stack[top] = SCOPE_NONEMPTY_ARRAY;
+                if (nextNonWhitespace() == ']') {
+                    return Token.END_ARRAY;
+                }
+                pos--;
+                break;
+            case SCOPE_NONEMPTY_ARRAY:
+                char separator = nextNonWhitespace();
+                if (separator == ']') {
+                    return Token.END_ARRAY;
+                }
+                if (separator != ',') {
+                    throw syntaxError("Expected ',' or ']' but was '" + separator + "'");
+                }
+                break;
+            case SCOPE_EMPTY_OBJECT:
+            case SCOPE_NONEMPTY_OBJECT:
+                stack[top] = SCOPE_DANGLING_NAME;
+                char c = nextNonWhitespace();
+                if (c == '}') {
+                    return Token.END_OBJECT;
+                }
+                if (scope == SCOPE_NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or '}' but was '" + c + "'");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected a name but was '" + c + "'");
+                }
+                peekedText = readString();
+                return Token.NAME;
+            case SCOPE_DANGLING_NAME:
+                stack[top] = SCOPE_NONEMPTY_OBJECT;
+                char colon = nextNonWhitespace();
+                if (colon != ':') {
+                    throw syntaxError("Expected ':' but was '" + colon + "'");
+                }
+                break;
+            case SCOPE_EMPTY_DOCUMENT:
+                stack[top] = SCOPE_NONEMPTY_DOCUMENT;
+                break;
+            default:
+                if (skipWhitespace()) {
+                    throw syntaxError("Expected the end of the document");
+                }
+                return Token.END_DOCUMENT;
+        }
+        return peekValue();
+    }
+
+    private Token peekValue() throws IOException {
+        char c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                peekedText = readString();
+                return Token.STRING;
+            case 't':
+                readLiteral("rue");
+                peekedBoolean = true;
+                return Token.BOOLEAN;
+            case 'f':
+                readLiteral("alse");
+                peekedBoolean = false;
+                return Token.BOOLEAN;
+            case 'n':
+                readLiteral("ull");
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    peekedText = readNumber();
+                    return Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + c + "'");
+        }
+    }
+
+    /**
+     * @return true if there are more characters, with pos at the first one that isn't whitespace
+     */
+    private boolean skipWhitespace() throws IOException {
+        while (pos < limit || fill()) {
+            char c = buffer[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return true;
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    private char nextNonWhitespace() throws IOException {
+        if (!skipWhitespace()) {
+            throw syntaxError("Unexpected end of document");
+        }
+        return buffer[pos++];
+    }
+
+    private char nextChar() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unexpected end of document");
+        }
+        return buffer[pos++];
+    }
+
+    /**
+     * Refills the buffer once it has been consumed
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = in.read(buffer, 0, buffer.length);
+        }
+        while (read == 0);
+        if (read < 0) {
+            return false;
+        }
+        pos = 0;
+        limit = read;
+        return true;
+    }
+
+    private String readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            // Copy runs of plain characters straight from the buffer
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            text.append(buffer, start, pos - start);
+            char c = nextChar();
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c == '\\') {
+                text.append(readEscape());
+            }
+            else {
+                // Only reached at the end of the buffer
+                pos--;
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        char c = nextChar();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextChar(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Malformed unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            default:
+                throw syntaxError("Invalid escape '\\" + c + "'");
+        }
+    }
+
+    private void readLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (nextChar() != rest.charAt(i)) {
+                throw syntaxError("Malformed literal");
+            }
+        }
+    }
+
+    private String readNumber() throws IOException {
+        text.setLength(0);
+        while (pos < limit || fill()) {
+            char c = buffer[pos];
+            if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E') {
+                break;
+            }
+            text.append(c);
+            pos++;
+        }
+        return text.toString();
+    }
+
+    private double parseDouble(String number) throws IOException {
+        try {
+            return Double.parseDouble(number);
+        }
+        catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was " + number);
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
@@ -0,0 +1,128 @@
+package com.overthink.mechmaid.webservices;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of latencies in milliseconds. Values below 16 ms are recorded exactly; larger
+ * values fall into buckets eight to a power of two, so reported percentiles are within 12.5% of the true value.
+ * Recording never allocates, which makes it cheap enough to call for every request.
+ */
+public class LatencyHistogram {
+
+    // Values below this are recorded in their own bucket
+    private static final int LINEAR_BUCKETS = 16;
+    // Log2 of the number of buckets per power of two above the linear range
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Power of two of the first logarithmic bucket (LINEAR_BUCKETS == 1 << FIRST_EXPONENT)
+    private static final int FIRST_EXPONENT = 4;
+    // Largest value recorded, anything larger is clamped (about 24 days)
+    private static final long MAX_VALUE = Integer.MAX_VALUE;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one latency
+     *
+     * @param millis the latency in milliseconds; negative values are recorded as 0
+     */
+    public void record(long millis) {
+        long value = Math.max(0, Math.min(millis, MAX_VALUE));
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the latency at or below which the given fraction of recorded latencies fall
+     *
+     * @param percentile the fraction, between 0 and 1 (e.g. 0.95 for the 95th percentile)
+     * @return the latency in milliseconds, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return number of latencies recorded
+     */
+    public long getCount() { return count.get(); }
+
+    /**
+     * @return mean latency in milliseconds, or 0 if nothing has been recorded
+     */
+    public long getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : sum.get() / total;
+    }
+
+    /**
+     * @return largest latency recorded, in milliseconds
+     */
+    public long getMax() { return max.get(); }
+
+    /**
+     * Clears all recorded latencies
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "count=%d mean=%dms p50=%dms p95=%dms p99=%dms max=%dms", getCount(), getMean(),
+                getPercentile(0.50), getPercentile(0.95), getPercentile(0.99), getMax());
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls into the given bucket
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+        int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long bucketWidth = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * bucketWidth - 1;
+    }
+}
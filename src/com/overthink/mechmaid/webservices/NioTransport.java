@@ -0,0 +1,1382 @@
+package com.overthink.mechmaid.webservices;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking transport that drives every socket from a small, fixed set of selector threads instead of a blocked
+ * thread per call.
+ * <p>
+ * Exchanges opened through {@link WebServiceUtils} keep their usual blocking API, but all socket I/O happens on the
+ * selector threads; the calling thread only waits on its own buffers. {@link #execute(String, String,
+ * WebServiceRequestBody, WebServiceCallback)} goes further and makes a call without tying up any thread while it is
+ * in flight, so thousands of calls can be outstanding at once. Such calls skip the retries, caching and compression
+ * of {@link WebServiceUtils}. Host name lookups and request bodies of these calls are handled by a few background
+ * threads, so they can be made from the main thread.
+ * <p>
+ * Only plain HTTP is supported, and every exchange uses its own connection, closed once the response has been read.
+ */
+public class NioTransport implements WebServiceTransport {
+
+    private static final String TAG = NioTransport.class.getName();
+
+    public static final int DEFAULT_SELECTOR_THREADS = 1;
+    // Threads resolving host names and encoding request bodies for execute(), and how long they are kept when idle
+    private static final int RESOLVER_THREADS = 2;
+    private static final long RESOLVER_KEEP_ALIVE_SECONDS = 30;
+    private static final String PROTOCOL_HTTP = "http";
+    private static final int DEFAULT_HTTP_PORT = 80;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+    // Received bytes buffered for a blocking reader before reading from the socket pauses
+    private static final int MAX_BUFFERED_BYTES = 256 * 1024;
+    // Request bytes queued ahead of the socket before a blocking writer waits
+    private static final int MAX_QUEUED_WRITE_BYTES = 64 * 1024;
+    // How often the selector threads check for timed out connections
+    private static final long SELECT_TIMEOUT_MS = 100;
+    // Request body length of requests without a body
+    private static final long NO_REQUEST_BODY = WebServiceRequestBody.UNKNOWN_LENGTH - 1;
+    private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ThreadPoolExecutor resolverPool;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Constructs a transport with a single selector thread
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    public NioTransport() throws IOException {
+        this(DEFAULT_SELECTOR_THREADS);
+    }
+
+    /**
+     * Constructs a transport
+     *
+     * @param selectorThreads number of selector threads sharing the connections
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioTransport(int selectorThreads) throws IOException {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("Invalid number of selector threads: " + selectorThreads);
+        }
+        loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            loops[i] = new SelectorLoop("NioTransport #" + (i + 1));
+            loops[i].start();
+        }
+
+        final AtomicInteger resolverCount = new AtomicInteger();
+        resolverPool = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, RESOLVER_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "NioTransport resolver #" + resolverCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        resolverPool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public WebServiceExchange openExchange(URL url) throws IOException {
+        if (!PROTOCOL_HTTP.equalsIgnoreCase(url.getProtocol())) {
+            throw new IOException("NioTransport only supports plain HTTP: " + url);
+        }
+        return new NioExchange(url, nextLoop());
+    }
+
+    /**
+     * Makes a call without blocking any thread while it is in flight, nor the calling thread: the host name is looked
+     * up and the request body written in the background. Timeouts come from the timeout policy installed in
+     * {@link WebServiceUtils}, and the installed metrics listener is notified when the call completes.
+     *
+     * @param method the HTTP method, e.g. "GET" or "POST"
+     * @param url the URL of the web service to call, as a string
+     * @param requestBody the body of the request (optional)
+     * @param callback called on the main thread when the call completes (optional)
+     * @return a future holding the response from the server; cancel it with interruption to abort the call
+     */
+    public Future<WebServiceResponse> execute(final String method, String url, final WebServiceRequestBody requestBody,
+                                              WebServiceCallback callback) {
+        final URL webServiceUrl;
+        try {
+            webServiceUrl = new URL(url);
+        }
+        catch (MalformedURLException e) {
+            // Fails without reaching the metrics listener, as WebServiceUtils does
+            Log.e(TAG, "Malformed request URL: " + url);
+            AsyncCall call = new AsyncCall(method, null, callback);
+            WebServiceResponse response = new WebServiceResponse();
+            response.setException(e);
+            call.finish(response);
+            return call;
+        }
+
+        final AsyncCall call = new AsyncCall(method, webServiceUrl, callback);
+        try {
+            if (!PROTOCOL_HTTP.equalsIgnoreCase(webServiceUrl.getProtocol())) {
+                throw new IOException("NioTransport only supports plain HTTP: " + url);
+            }
+
+            // Picked on the calling thread, which may have its timeouts overridden
+            WebServiceTimeoutPolicy timeouts = WebServiceUtils.getTimeoutPolicy();
+            String host = webServiceUrl.getHost();
+            final int connectTimeoutMs = timeouts.getConnectTimeoutMs(host);
+            final int readTimeoutMs = timeouts.getReadTimeoutMs(host);
+            resolverPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connect(call, method, webServiceUrl, requestBody, connectTimeoutMs, readTimeoutMs);
+                }
+            });
+        }
+        catch (IOException e) {
+            call.fail(e);
+        }
+        catch (RejectedExecutionException e) {
+            call.fail(new InterruptedIOException("Transport shut down"));
+        }
+        return call;
+    }
+
+    /**
+     * Resolves the host of a call made with {@link #execute(String, String, WebServiceRequestBody,
+     * WebServiceCallback)} and hands the whole request to a selector thread
+     */
+    private void connect(AsyncCall call, String method, URL webServiceUrl, WebServiceRequestBody requestBody,
+                         int connectTimeoutMs, int readTimeoutMs) {
+        if (call.isDone()) {
+            // Cancelled while waiting
+            return;
+        }
+        try {
+            // The whole request is queued up front, so the call needs no thread of its own
+            Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            ByteArrayOutputStream body = null;
+            if (requestBody != null) {
+                body = new ByteArrayOutputStream();
+                requestBody.writeTo(body);
+                headers.put(WebServiceUtils.REQUEST_PROPERTY_KEY_CONTENT_TYPE, requestBody.getContentType());
+            }
+            long contentLength = body == null ? NO_REQUEST_BODY : body.size();
+            byte[] head = encodeRequestHead(method, webServiceUrl, headers, contentLength);
+
+            AsyncConnection connection = new AsyncConnection(nextLoop(), addressOf(webServiceUrl), connectTimeoutMs,
+                    readTimeoutMs, call);
+            call.connection = connection;
+            connection.write(ByteBuffer.wrap(head));
+            if (body != null) {
+                connection.write(ByteBuffer.wrap(body.toByteArray()));
+            }
+            connection.awaitResponse();
+            connection.start();
+            if (call.isCancelled()) {
+                // Cancelled before the connection could be seen
+                connection.close(new InterruptedIOException("Call cancelled"));
+            }
+        }
+        catch (IOException e) {
+            call.fail(e);
+        }
+    }
+
+    /**
+     * Stops the selector threads and closes every connection. The transport cannot be used afterwards.
+     */
+    public void shutdown() {
+        resolverPool.shutdown();
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private SelectorLoop nextLoop() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    private static InetSocketAddress addressOf(URL url) throws IOException {
+        int port = url.getPort() == -1 ? DEFAULT_HTTP_PORT : url.getPort();
+        InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+        if (address.isUnresolved()) {
+            throw new IOException("Unable to resolve host " + url.getHost());
+        }
+        return address;
+    }
+
+    /**
+     * Encodes the request line and headers of a request
+     *
+     * @param contentLength length of the body, {@link WebServiceRequestBody#UNKNOWN_LENGTH} to send it chunked, or
+     *                      {@link #NO_REQUEST_BODY}
+     */
+    private static byte[] encodeRequestHead(String method, URL url, Map<String, String> headers, long contentLength) {
+        StringBuilder head = new StringBuilder();
+        String path = url.getFile();
+        head.append(method).append(' ').append(path.length() == 0 ? "/" : path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\nConnection: close\r\n");
+        if (contentLength == WebServiceRequestBody.UNKNOWN_LENGTH) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        else if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(HEADER_CHARSET);
+    }
+
+    /**
+     * Reads a response status line and headers, skipping interim 1xx responses
+     */
+    private static ResponseHead readResponseHead(InputStream in) throws IOException {
+        while (true) {
+            String statusLine = readLine(in);
+            // e.g. "HTTP/1.1 200 OK"
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed HTTP status line: " + statusLine);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(parts[1]);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Malformed HTTP status line: " + statusLine);
+            }
+
+            Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+            headers.put(null, Collections.singletonList(statusLine));
+            String line;
+            while ((line = readLine(in)).length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    throw new IOException("Malformed HTTP header: " + line);
+                }
+                String name = line.substring(0, colon).trim();
+                List<String> values = headers.get(name);
+                if (values == null) {
+                    values = new ArrayList<String>(1);
+                    headers.put(name, values);
+                }
+                values.add(line.substring(colon + 1).trim());
+            }
+
+            if (code / 100 != 1) {
+                return new ResponseHead(code, headers);
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Unexpected end of HTTP response");
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, HEADER_CHARSET);
+    }
+
+    /**
+     * Frames the body of a response read from the given stream
+     */
+    private static InputStream openResponseBody(InputStream in, String method, ResponseHead head) throws IOException {
+        int code = head.code;
+        if ("HEAD".equals(method) || code == 204 || code == 304) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        String transferEncoding = head.getHeader("Transfer-Encoding");
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            return new ChunkedInputStream(in);
+        }
+        String contentLength = head.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                return new FixedLengthInputStream(in, Long.parseLong(contentLength));
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + contentLength);
+            }
+        }
+        // The body runs until the server closes the connection
+        return in;
+    }
+
+    private static IOException errorResponseException(int code, URL url) {
+        return new IOException("Server returned HTTP response code: " + code + " for URL: " + url);
+    }
+
+    /**
+     * A selector thread, driving the connections registered with it
+     */
+    private static class SelectorLoop extends Thread {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+
+        SelectorLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs a task on this thread
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(SELECT_TIMEOUT_MS);
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Selector failed", e);
+                    break;
+                }
+
+                // A failure only takes down the connection it happened on, never the loop and its other connections
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException e) {
+                        Log.e(TAG, "Selector task failed", e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        connection.onReady(key, readBuffer);
+                    }
+                    catch (RuntimeException e) {
+                        connection.close(new IOException("Connection failed: " + e));
+                    }
+                }
+
+                long nowNanos = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        connection.checkTimeout(nowNanos);
+                    }
+                    catch (RuntimeException e) {
+                        connection.close(new IOException("Connection failed: " + e));
+                    }
+                }
+            }
+
+            // Shut down, fail whatever is still open
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close(new InterruptedIOException("Transport shut down"));
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                // Nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * A socket driven by a selector thread. Request bytes are queued by any thread and written as the socket accepts
+     * them; received bytes are handed to {@link #onData(ByteBuffer)} on the selector thread.
+     */
+    private abstract static class Connection {
+
+        final SelectorLoop loop;
+        private final InetSocketAddress address;
+        private final long connectTimeoutNanos;
+        private final long readTimeoutNanos;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private long startNanos;
+        private long lastActivityNanos;
+
+        // Guarded by this
+        private final Deque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+        private int queuedWriteBytes;
+        private boolean connected;
+        private boolean awaitingResponse;
+        private boolean paused;
+        private boolean closed;
+        private IOException error;
+
+        Connection(SelectorLoop loop, InetSocketAddress address, int connectTimeoutMs, int readTimeoutMs) {
+            this.loop = loop;
+            this.address = address;
+            this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeoutMs);
+            this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+        }
+
+        /** Called on the selector thread once the connection is established **/
+        abstract void onConnected();
+
+        /** Called on the selector thread with received bytes, which must be copied if kept **/
+        abstract void onData(ByteBuffer data);
+
+        /** Called once when the connection closes, with null if the server closed it normally **/
+        abstract void onClosed(IOException error);
+
+        /**
+         * Starts connecting, from any thread
+         */
+        void start() throws IOException {
+            SocketChannel opened = SocketChannel.open();
+            synchronized (this) {
+                if (closed) {
+                    // Closed before it got a channel, e.g. a call cancelled while its host was being looked up
+                    opened.close();
+                    return;
+                }
+                channel = opened;
+            }
+            opened.configureBlocking(false);
+            startNanos = System.nanoTime();
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (Connection.this) {
+                            if (closed) {
+                                return;
+                            }
+                        }
+                        // A close() from here on closes the channel, which fails the register or connect
+                        key = channel.register(loop.selector, 0, Connection.this);
+                        if (channel.connect(address)) {
+                            finishConnect();
+                        }
+                        updateInterest();
+                    }
+                    catch (IOException e) {
+                        close(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Queues bytes to send, from any thread
+         */
+        void write(ByteBuffer data) throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    throw failure();
+                }
+                writes.add(data);
+                queuedWriteBytes += data.remaining();
+            }
+            requestInterestUpdate();
+        }
+
+        /**
+         * Waits until the queued bytes fall below the limit, from a blocking writer's thread
+         */
+        synchronized void awaitWriteCapacity() throws IOException {
+            while (queuedWriteBytes > MAX_QUEUED_WRITE_BYTES && !closed) {
+                waitUninterruptibly();
+            }
+            if (closed) {
+                throw failure();
+            }
+        }
+
+        /**
+         * Waits until the connection is established, from a blocking caller's thread
+         */
+        synchronized void awaitConnected() throws IOException {
+            while (!connected && !closed) {
+                waitUninterruptibly();
+            }
+            if (closed) {
+                throw failure();
+            }
+        }
+
+        /**
+         * Marks the request complete, from which point silence from the server counts towards the read timeout
+         */
+        synchronized void awaitResponse() {
+            awaitingResponse = true;
+        }
+
+        /**
+         * Stops or resumes reading from the socket, from any thread
+         */
+        void setPaused(boolean pause) {
+            synchronized (this) {
+                if (paused == pause) {
+                    return;
+                }
+                paused = pause;
+            }
+            requestInterestUpdate();
+        }
+
+        /**
+         * Closes the connection, from any thread. Only the first call has an effect.
+         *
+         * @param cause the failure, or null if the exchange completed normally
+         */
+        void close(IOException cause) {
+            SocketChannel openedChannel;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                error = cause;
+                openedChannel = channel;
+                notifyAll();
+            }
+            try {
+                if (openedChannel != null) {
+                    // Also cancels the selection key
+                    openedChannel.close();
+                }
+            }
+            catch (IOException e) {
+                // Nothing more can be done
+            }
+            onClosed(cause);
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return the failure that closed the connection
+         */
+        synchronized IOException failure() {
+            return error != null ? error : new IOException("Connection closed");
+        }
+
+        /**
+         * @return the failure that closed the connection, or null if it was closed normally
+         */
+        synchronized IOException getCloseError() {
+            return error;
+        }
+
+        private void requestInterestUpdate() {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateInterest();
+                }
+            });
+        }
+
+        /**
+         * Selects the events the connection is waiting for. Selector thread only.
+         */
+        private void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops;
+            synchronized (this) {
+                if (!connected) {
+                    ops = SelectionKey.OP_CONNECT;
+                }
+                else {
+                    ops = writes.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+                    if (!paused) {
+                        ops |= SelectionKey.OP_READ;
+                        // Time spent paused doesn't count towards the read timeout
+                        lastActivityNanos = Math.max(lastActivityNanos, System.nanoTime() - readTimeoutNanos / 2);
+                    }
+                }
+            }
+            try {
+                key.interestOps(ops);
+            }
+            catch (CancelledKeyException e) {
+                // Closed from another thread since the check above
+            }
+        }
+
+        /**
+         * Handles the events selected for the connection. Selector thread only.
+         */
+        void onReady(SelectionKey selectedKey, ByteBuffer readBuffer) {
+            try {
+                if (!selectedKey.isValid()) {
+                    return;
+                }
+                if (selectedKey.isConnectable() && channel.finishConnect()) {
+                    finishConnect();
+                }
+                if (selectedKey.isValid() && selectedKey.isWritable()) {
+                    flushWrites();
+                }
+                if (selectedKey.isValid() && selectedKey.isReadable()) {
+                    readBuffer.clear();
+                    int read = channel.read(readBuffer);
+                    if (read == -1) {
+                        close(null);
+                        return;
+                    }
+                    if (read > 0) {
+                        lastActivityNanos = System.nanoTime();
+                        readBuffer.flip();
+                        onData(readBuffer);
+                    }
+                }
+                updateInterest();
+            }
+            catch (IOException e) {
+                close(e);
+            }
+            catch (CancelledKeyException e) {
+                // Closed from another thread while its events were handled
+                close(new InterruptedIOException("Connection closed"));
+            }
+        }
+
+        private void finishConnect() {
+            synchronized (this) {
+                connected = true;
+                notifyAll();
+            }
+            lastActivityNanos = System.nanoTime();
+            onConnected();
+        }
+
+        private void flushWrites() throws IOException {
+            while (true) {
+                ByteBuffer next;
+                synchronized (this) {
+                    next = writes.peek();
+                }
+                if (next == null) {
+                    return;
+                }
+                int written = channel.write(next);
+                if (written > 0) {
+                    lastActivityNanos = System.nanoTime();
+                }
+                synchronized (this) {
+                    queuedWriteBytes -= written;
+                    if (!next.hasRemaining()) {
+                        writes.poll();
+                    }
+                    notifyAll();
+                }
+                if (next.hasRemaining()) {
+                    // The socket buffer is full
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Fails the connection if it has been silent for too long. Selector thread only.
+         */
+        void checkTimeout(long nowNanos) {
+            boolean connecting;
+            boolean waiting;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                connecting = !connected;
+                waiting = !paused && (awaitingResponse || !writes.isEmpty());
+            }
+            if (connecting && nowNanos - startNanos > connectTimeoutNanos) {
+                close(new SocketTimeoutException("Connect timed out: " + address));
+            }
+            else if (!connecting && waiting && nowNanos - lastActivityNanos > readTimeoutNanos) {
+                close(new SocketTimeoutException("Read timed out: " + address));
+            }
+        }
+
+        private void waitUninterruptibly() throws InterruptedIOException {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " + address);
+            }
+        }
+    }
+
+    /**
+     * A connection read by a blocking caller through a bounded buffer
+     */
+    private static class PipedConnection extends Connection {
+
+        // Received bytes not read yet. Guarded by this.
+        private final Deque<byte[]> received = new ArrayDeque<byte[]>();
+        private int receivedBytes;
+        private byte[] current;
+        private int currentOffset;
+        private boolean ended;
+
+        PipedConnection(SelectorLoop loop, InetSocketAddress address, int connectTimeoutMs, int readTimeoutMs) {
+            super(loop, address, connectTimeoutMs, readTimeoutMs);
+        }
+
+        @Override
+        void onConnected() {
+            // Blocked callers are woken up by the connection itself
+        }
+
+        @Override
+        void onData(ByteBuffer data) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            boolean full;
+            synchronized (this) {
+                received.add(bytes);
+                receivedBytes += bytes.length;
+                full = receivedBytes >= MAX_BUFFERED_BYTES;
+                notifyAll();
+            }
+            if (full) {
+                // Stop reading until the caller catches up
+                setPaused(true);
+            }
+        }
+
+        @Override
+        synchronized void onClosed(IOException error) {
+            ended = true;
+            notifyAll();
+        }
+
+        /**
+         * Reads received bytes, waiting for them if needed
+         *
+         * @return the number of bytes read, or -1 once the server has closed the connection
+         */
+        int read(byte[] buffer, int offset, int length) throws IOException {
+            int read;
+            boolean resume;
+            synchronized (this) {
+                while (current == null) {
+                    current = received.poll();
+                    currentOffset = 0;
+                    if (current != null) {
+                        break;
+                    }
+                    if (ended) {
+                        IOException error = getCloseError();
+                        if (error != null) {
+                            throw error;
+                        }
+                        return -1;
+                    }
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the response");
+                    }
+                }
+                read = Math.min(length, current.length - currentOffset);
+                System.arraycopy(current, currentOffset, buffer, offset, read);
+                currentOffset += read;
+                if (currentOffset == current.length) {
+                    current = null;
+                }
+                receivedBytes -= read;
+                resume = receivedBytes < MAX_BUFFERED_BYTES / 2;
+            }
+            if (resume) {
+                setPaused(false);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * An exchange made through a {@link PipedConnection}, for {@link WebServiceUtils}
+     */
+    private static class NioExchange implements WebServiceExchange {
+
+        private final URL url;
+        private final SelectorLoop loop;
+        private final Map<String, String> requestHeaders =
+                new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private String method = "GET";
+        private int connectTimeoutMs = WebServiceTimeoutPolicy.DEFAULT_CONNECT_TIMEOUT_MS;
+        private int readTimeoutMs = WebServiceTimeoutPolicy.DEFAULT_READ_TIMEOUT_MS;
+        private long requestBodyLength = NO_REQUEST_BODY;
+        private PipedConnection connection;
+        private boolean requestHeadSent;
+        private InputStream responseStream;
+        private ResponseHead responseHead;
+        // Set once the connection is aborted, possibly before it was opened
+        private volatile boolean aborted;
+
+        NioExchange(URL url, SelectorLoop loop) {
+            this.url = url;
+            this.loop = loop;
+        }
+
+        @Override
+        public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+        }
+
+        @Override
+        public void setRequestMethod(String method) {
+            this.method = method;
+        }
+
+        @Override
+        public void setRequestHeader(String name, String value) {
+            requestHeaders.put(name, value);
+        }
+
+        @Override
+        public void setRequestBodyLength(long contentLength) {
+            requestBodyLength = contentLength;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            PipedConnection opened = new PipedConnection(loop, addressOf(url), connectTimeoutMs, readTimeoutMs);
+            synchronized (this) {
+                if (aborted) {
+                    throw new InterruptedIOException("Exchange aborted");
+                }
+                connection = opened;
+            }
+            opened.start();
+            opened.awaitConnected();
+        }
+
+        @Override
+        public OutputStream getRequestBodyStream() throws IOException {
+            sendRequestHead();
+            return new RequestBodyStream(connection, requestBodyLength);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if (responseHead == null) {
+                if (!requestHeadSent) {
+                    // A request without a body is complete once its head is sent
+                    sendRequestHead();
+                    connection.awaitResponse();
+                }
+                responseStream = new PipedInputStream(connection);
+                responseHead = readResponseHead(responseStream);
+            }
+            return responseHead.code;
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return responseHead == null ? Collections.<String, List<String>>emptyMap() : responseHead.headers;
+        }
+
+        @Override
+        public String getResponseHeader(String name) {
+            return responseHead == null ? null : responseHead.getHeader(name);
+        }
+
+        @Override
+        public InputStream getResponseBodyStream() throws IOException {
+            int code = getResponseCode();
+            if (code >= 400) {
+                throw errorResponseException(code, url);
+            }
+            return openResponseBody(responseStream, method, responseHead);
+        }
+
+        @Override
+        public void release(boolean reuse) {
+            // Connections are never reused, see Connection: close
+            if (connection != null) {
+                connection.close(null);
+            }
+        }
+
+        @Override
+        public void abort() {
+            PipedConnection current;
+            synchronized (this) {
+                aborted = true;
+                current = connection;
+            }
+            if (current != null) {
+                current.close(new InterruptedIOException("Exchange aborted"));
+            }
+        }
+
+        private void sendRequestHead() throws IOException {
+            if (connection == null) {
+                throw new IOException("Exchange not connected");
+            }
+            if (!requestHeadSent) {
+                connection.write(ByteBuffer.wrap(encodeRequestHead(method, url, requestHeaders, requestBodyLength)));
+                requestHeadSent = true;
+            }
+        }
+    }
+
+    /**
+     * Writes a request body to a connection, chunked if its length is unknown
+     */
+    private static class RequestBodyStream extends OutputStream {
+
+        private final Connection connection;
+        private final long contentLength;
+        private final boolean chunked;
+        private byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        private int count;
+        private long written;
+        private boolean closed;
+
+        RequestBodyStream(Connection connection, long contentLength) {
+            this.connection = connection;
+            this.contentLength = contentLength;
+            this.chunked = contentLength == WebServiceRequestBody.UNKNOWN_LENGTH;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+            written++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+                int copied = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+                written += copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushBuffer();
+            if (chunked) {
+                connection.write(ByteBuffer.wrap(LAST_CHUNK));
+            }
+            else if (written != contentLength) {
+                throw new IOException("Request body was " + written + " bytes, expected " + contentLength);
+            }
+            connection.awaitResponse();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (closed && count == 0) {
+                return;
+            }
+            if (count == 0) {
+                return;
+            }
+            if (chunked) {
+                connection.write(ByteBuffer.wrap((Integer.toHexString(count) + "\r\n").getBytes(HEADER_CHARSET)));
+                connection.write(ByteBuffer.wrap(buffer, 0, count));
+                connection.write(ByteBuffer.wrap(CRLF));
+            }
+            else {
+                connection.write(ByteBuffer.wrap(buffer, 0, count));
+            }
+            // The queued buffer now belongs to the connection
+            buffer = new byte[WRITE_BUFFER_SIZE];
+            count = 0;
+            connection.awaitWriteCapacity();
+        }
+    }
+
+    /**
+     * Reads the bytes received by a {@link PipedConnection}
+     */
+    private static class PipedInputStream extends InputStream {
+
+        private final PipedConnection connection;
+        private final byte[] single = new byte[1];
+
+        PipedInputStream(PipedConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            return connection.read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            connection.close(null);
+        }
+    }
+
+    /**
+     * Status code and headers of a response
+     */
+    private static class ResponseHead {
+
+        final int code;
+        final Map<String, List<String>> headers;
+
+        ResponseHead(int code, Map<String, List<String>> headers) {
+            this.code = code;
+            this.headers = headers;
+        }
+
+        String getHeader(String name) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    List<String> values = header.getValue();
+                    return values.isEmpty() ? null : values.get(values.size() - 1);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads a body of known length
+     */
+    private static class FixedLengthInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Unexpected end of HTTP response body");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read == -1) {
+                throw new IOException("Unexpected end of HTTP response body");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * Decodes a body sent with chunked transfer encoding
+     */
+    private static class ChunkedInputStream extends FilterInputStream {
+
+        // Bytes left in the current chunk, or -1 before the first chunk
+        private long remaining = -1;
+        private boolean ended;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            if (remaining <= 0) {
+                if (remaining == 0) {
+                    // CRLF closing the previous chunk
+                    readLine(in);
+                }
+                String sizeLine = readLine(in);
+                int extension = sizeLine.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(),
+                            16);
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Malformed HTTP chunk size: " + sizeLine);
+                }
+                if (remaining == 0) {
+                    // Skip trailers
+                    while (readLine(in).length() > 0) {
+                        // Trailers are not exposed
+                    }
+                    ended = true;
+                    return -1;
+                }
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read == -1) {
+                throw new IOException("Unexpected end of HTTP response body");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return ended || remaining <= 0 ? 0 : (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * A connection whose whole response is collected on the selector thread, for {@link #execute(String, String,
+     * WebServiceRequestBody, WebServiceCallback)}
+     */
+    private static class AsyncConnection extends Connection {
+
+        private final AsyncCall call;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+
+        AsyncConnection(SelectorLoop loop, InetSocketAddress address, int connectTimeoutMs, int readTimeoutMs,
+                        AsyncCall call) {
+            super(loop, address, connectTimeoutMs, readTimeoutMs);
+            this.call = call;
+        }
+
+        @Override
+        void onConnected() {
+            // The request was queued before connecting
+        }
+
+        @Override
+        void onData(ByteBuffer data) {
+            if (data.hasArray()) {
+                received.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            }
+            else {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                received.write(bytes, 0, bytes.length);
+            }
+        }
+
+        @Override
+        void onClosed(IOException error) {
+            if (error != null) {
+                call.fail(error);
+                return;
+            }
+            // The server closes the connection after the response, see Connection: close
+            try {
+                call.complete(received.toByteArray());
+            }
+            catch (IOException e) {
+                call.fail(e);
+            }
+        }
+    }
+
+    /**
+     * A call made with {@link #execute(String, String, WebServiceRequestBody, WebServiceCallback)}
+     */
+    private class AsyncCall extends FutureTask<WebServiceResponse> {
+
+        private final String method;
+        private final URL url;
+        private final WebServiceCallback callback;
+        private final long startNanos = System.nanoTime();
+        volatile Connection connection;
+
+        AsyncCall(String method, URL url, WebServiceCallback callback) {
+            super(new Callable<WebServiceResponse>() {
+                @Override
+                public WebServiceResponse call() {
+                    throw new UnsupportedOperationException("Asynchronous calls are completed by their connection");
+                }
+            });
+            this.method = method;
+            this.url = url;
+            this.callback = callback;
+        }
+
+        /**
+         * Parses the bytes received over the connection into the response
+         */
+        void complete(byte[] received) throws IOException {
+            InputStream in = new ByteArrayInputStream(received);
+            ResponseHead head = readResponseHead(in);
+            WebServiceResponse response = new WebServiceResponse();
+            response.setHttpResponseCode(head.code);
+            response.setHeaders(head.headers);
+            response.setResponseBodyBytesReceived(received.length);
+            if (head.code >= 400) {
+                response.setException(errorResponseException(head.code, url));
+            }
+            else {
+                response.setRawResponseBody(WebServiceUtils.readFully(openResponseBody(in, method, head),
+                        WebServiceUtils.getCharsetFromContentType(head.getHeader("Content-Type"))));
+            }
+            finish(response);
+        }
+
+        void fail(IOException e) {
+            Log.e(TAG, "HTTP " + method + " request to " + url + " failed: " + e);
+            WebServiceResponse response = new WebServiceResponse();
+            response.setException(e);
+            finish(response);
+        }
+
+        private void finish(WebServiceResponse response) {
+            response.setAttemptCount(1);
+            response.setTotalTimeMs((System.nanoTime() - startNanos) / 1000000);
+            WebServiceMetricsListener listener = WebServiceUtils.getMetricsListener();
+            if (listener != null && url != null) {
+                listener.onRequestCompleted(method, url, response);
+            }
+            set(response);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Connection current = connection;
+            if (cancelled && mayInterruptIfRunning && current != null) {
+                current.close(new InterruptedIOException("Call cancelled"));
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            try {
+                final WebServiceResponse response = get();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResponse(response);
+                    }
+                });
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Asynchronous call failed unexpectedly", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.overthink.mechmaid.webservices;
+
+/**
+ * A web service response together with the model object its body was decoded into
+ *
+ * @param <T> the type of the decoded body
+ */
+public class TypedWebServiceResponse<T> {
+
+    private final WebServiceResponse response;
+    private final T result;
+
+    TypedWebServiceResponse(WebServiceResponse response, T result) {
+        this.response = response;
+        this.result = result;
+    }
+
+    /** The underlying response, for its status code, headers and timings **/
+    public WebServiceResponse getResponse() { return response; }
+
+    /** The decoded body, or null if the call or decoding failed **/
+    public T getResult() { return result; }
+
+    /** The failure of the call or of decoding, or null if the body was decoded **/
+    public Exception getException() { return response.getException(); }
+
+    public int getHttpResponseCode() { return response.getHttpResponseCode(); }
+}
@@ -0,0 +1,148 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default transport, carrying each exchange over an {@link HttpURLConnection}. Connections are pooled by the
+ * platform; see {@link WebServiceUtils#setConnectionPoolLimits(int, long)}.
+ */
+public class UrlConnectionTransport implements WebServiceTransport {
+
+    private static final String TAG = UrlConnectionTransport.class.getName();
+
+    // Largest leftover response body that is drained to keep a connection alive; larger bodies close the connection
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    @Override
+    public WebServiceExchange openExchange(URL url) throws IOException {
+        return new UrlConnectionExchange((HttpURLConnection) url.openConnection());
+    }
+
+    /**
+     * An exchange over an HttpURLConnection
+     */
+    private static class UrlConnectionExchange implements WebServiceExchange {
+
+        private final HttpURLConnection connection;
+        // Response body stream as received, drained on release so the connection can be reused
+        private InputStream in;
+
+        UrlConnectionExchange(HttpURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+            connection.setConnectTimeout(connectTimeoutMs);
+            connection.setReadTimeout(readTimeoutMs);
+        }
+
+        @Override
+        public void setRequestMethod(String method) throws IOException {
+            connection.setRequestMethod(method);
+        }
+
+        @Override
+        public void setRequestHeader(String name, String value) {
+            connection.setRequestProperty(name, value);
+        }
+
+        @Override
+        public void setRequestBodyLength(long contentLength) {
+            connection.setDoOutput(true);
+            if (contentLength == WebServiceRequestBody.UNKNOWN_LENGTH || contentLength > Integer.MAX_VALUE) {
+                connection.setChunkedStreamingMode(0);
+            }
+            else {
+                connection.setFixedLengthStreamingMode((int) contentLength);
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+            connection.connect();
+        }
+
+        @Override
+        public OutputStream getRequestBodyStream() throws IOException {
+            return new BufferedOutputStream(connection.getOutputStream());
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return connection.getResponseCode();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() {
+            return connection.getHeaderFields();
+        }
+
+        @Override
+        public String getResponseHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getResponseBodyStream() throws IOException {
+            in = new BufferedInputStream(connection.getInputStream());
+            return in;
+        }
+
+        /**
+         * With reuse the response (or error) stream is drained and closed, which hands the socket back to the pool.
+         * The connection is disconnected instead if reuse is not wanted, the leftover body is too large to be worth
+         * draining, or draining fails.
+         */
+        @Override
+        public void release(boolean reuse) {
+            if (!reuse) {
+                connection.disconnect();
+                return;
+            }
+
+            // Error responses are only readable through the error stream
+            InputStream body = in;
+            if (body == null) {
+                body = connection.getErrorStream();
+            }
+            if (body == null) {
+                // Nothing was read, which means the connection never got as far as a response
+                connection.disconnect();
+                return;
+            }
+
+            try {
+                byte[] buffer = new byte[1024];
+                int drained = 0;
+                int read;
+                while (drained <= MAX_DRAIN_BYTES && (read = body.read(buffer)) != -1) {
+                    drained += read;
+                }
+                body.close();
+                if (drained > MAX_DRAIN_BYTES) {
+                    connection.disconnect();
+                }
+            }
+            catch (IOException e) {
+                Log.d(TAG, "Could not drain response, closing connection\n" + e.toString());
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void abort() {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.overthink.mechmaid.webservices;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects small JSON POST requests to one endpoint and sends them together as a single request whose body is a JSON
+ * array of the individual bodies. The endpoint must reply with a JSON array holding one result per request, in the
+ * same order; each caller then receives a {@link WebServiceResponse} carrying its own element of that array.
+ * <p>
+ * A batch is sent once it holds the maximum number of requests, or once the oldest request in it has waited for the
+ * maximum delay, whichever comes first. Batches are sent through a {@link WebServiceExecutor}.
+ */
+public class WebServiceBatcher {
+
+    private static final String TAG = WebServiceBatcher.class.getName();
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+    public static final long DEFAULT_MAX_DELAY_MS = 200;
+
+    // Shared by all batchers to schedule delayed flushes
+    private static final ScheduledThreadPoolExecutor FLUSH_TIMER = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WebServiceBatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final String url;
+    private final int maxBatchSize;
+    private final long maxDelayMs;
+    private final WebServiceExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Requests waiting to be sent. Guarded by this.
+    private List<BatchedCall> pendingCalls = new ArrayList<BatchedCall>();
+    // Delayed flush of the pending requests, if scheduled. Guarded by this.
+    private ScheduledFuture<?> scheduledFlush;
+
+    // Statistics
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * Constructs a batcher with the default limits, sending batches through the shared executor
+     *
+     * @param url the URL of the endpoint accepting batched requests
+     */
+    public WebServiceBatcher(String url) {
+        this(url, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MS, WebServiceExecutor.getDefault());
+    }
+
+    /**
+     * Constructs a batcher
+     *
+     * @param url the URL of the endpoint accepting batched requests
+     * @param maxBatchSize largest number of requests sent in one batch
+     * @param maxDelayMs longest a request waits for others to join its batch, in milliseconds
+     * @param executor executor sending the batches
+     */
+    public WebServiceBatcher(String url, int maxBatchSize, long maxDelayMs, WebServiceExecutor executor) {
+        if (maxBatchSize < 1 || maxDelayMs < 0) {
+            throw new IllegalArgumentException("Invalid batching limits");
+        }
+        this.url = url;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMs = maxDelayMs;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a request to the current batch
+     *
+     * @param requestBody the JSON body of the individual request
+     * @param callback called on the main thread with the individual response (optional)
+     * @return a future holding the individual response; cancelling it before the batch is sent leaves the request out
+     */
+    public Future<WebServiceResponse> submit(String requestBody, WebServiceCallback callback) {
+        BatchedCall call = new BatchedCall(requestBody, callback);
+        requestCount.incrementAndGet();
+
+        List<BatchedCall> fullBatch = null;
+        synchronized (this) {
+            pendingCalls.add(call);
+            if (pendingCalls.size() >= maxBatchSize) {
+                fullBatch = takePendingCalls();
+            }
+            else if (scheduledFlush == null) {
+                scheduledFlush = FLUSH_TIMER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, maxDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (fullBatch != null) {
+            send(fullBatch);
+        }
+        return call;
+    }
+
+    /**
+     * Sends the pending requests right away, e.g. before the app goes to the background
+     */
+    public void flush() {
+        List<BatchedCall> batch;
+        synchronized (this) {
+            batch = takePendingCalls();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    /**
+     * @return number of individual requests submitted
+     */
+    public long getRequestCount() { return requestCount.get(); }
+
+    /**
+     * @return number of batched requests sent
+     */
+    public long getBatchCount() { return batchCount.get(); }
+
+    /**
+     * Removes the pending requests and cancels their delayed flush. Must hold the lock on this.
+     */
+    private List<BatchedCall> takePendingCalls() {
+        List<BatchedCall> batch = pendingCalls;
+        pendingCalls = new ArrayList<BatchedCall>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    /**
+     * Sends a batch in the background and completes its requests with their share of the reply
+     */
+    private void send(List<BatchedCall> batch) {
+        // Leave out requests cancelled while they were waiting
+        final List<BatchedCall> calls = new ArrayList<BatchedCall>(batch.size());
+        for (BatchedCall call : batch) {
+            if (!call.isCancelled()) {
+                calls.add(call);
+            }
+        }
+        if (calls.isEmpty()) {
+            return;
+        }
+
+        batchCount.incrementAndGet();
+        executor.submit(url, new Callable<WebServiceResponse>() {
+            @Override
+            public WebServiceResponse call() {
+                StringBuilder body = new StringBuilder();
+                body.append('[');
+                for (int i = 0; i < calls.size(); i++) {
+                    if (i > 0) {
+                        body.append(',');
+                    }
+                    body.append(calls.get(i).requestBody);
+                }
+                body.append(']');
+
+                Log.i(TAG, "Sending batch of " + calls.size() + " requests to " + url);
+                return WebServiceUtils.makeHttpPostRequestWith(url, body.toString());
+            }
+        }, WebServiceExecutor.Priority.NORMAL, null, null, new WebServiceCallback() {
+            @Override
+            public void onResponse(WebServiceResponse batchResponse) {
+                // Also reached when the executor rejects, bumps or cancels the batch without running it
+                complete(calls, batchResponse);
+            }
+        });
+    }
+
+    /**
+     * Splits a batch reply between the requests of the batch
+     */
+    private void complete(List<BatchedCall> calls, WebServiceResponse batchResponse) {
+        List<String> results = null;
+        Exception exception = batchResponse.getException();
+        if (exception == null) {
+            try {
+                results = splitJsonArray(batchResponse.getRawResponseBody());
+                if (results.size() != calls.size()) {
+                    throw new IOException("Batch reply has " + results.size() + " results for " + calls.size()
+                            + " requests");
+                }
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Could not split batch reply", e);
+                exception = e;
+                results = null;
+            }
+        }
+
+        for (int i = 0; i < calls.size(); i++) {
+            WebServiceResponse response = new WebServiceResponse();
+            response.setHttpResponseCode(batchResponse.getHttpResponseCode());
+            response.setHeaders(batchResponse.getHeaders());
+            response.setException(exception);
+            if (results != null) {
+                response.setRawResponseBody(results.get(i));
+            }
+            calls.get(i).complete(response);
+        }
+    }
+
+    /**
+     * Splits a JSON array into the raw text of its elements, without parsing the elements themselves
+     *
+     * @param json a JSON array
+     * @return the elements, in order
+     * @throws IOException if the text is not a well-formed JSON array
+     */
+    static List<String> splitJsonArray(String json) throws IOException {
+        if (json == null) {
+            throw new IOException("Batch reply has no body");
+        }
+        List<String> elements = new ArrayList<String>();
+        int length = json.length();
+        int i = skipWhitespace(json, 0);
+        if (i >= length || json.charAt(i) != '[') {
+            throw new IOException("Batch reply is not a JSON array");
+        }
+        i = skipWhitespace(json, i + 1);
+        if (i < length && json.charAt(i) == ']') {
+            return elements;
+        }
+
+        int depth = 0;
+        boolean inString = false;
+        int elementStart = i;
+        for (; i < length; i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                }
+                else if (c == '"') {
+                    inString = false;
+                }
+            }
+            else if (c == '"') {
+                inString = true;
+            }
+            else if (c == '[' || c == '{') {
+                depth++;
+            }
+            else if ((c == ',' || c == ']') && depth == 0) {
+                elements.add(json.substring(elementStart, i).trim());
+                if (c == ']') {
+                    return elements;
+                }
+                elementStart = i + 1;
+            }
+            else if (c == ']' || c == '}') {
+                depth--;
+            }
+        }
+        throw new IOException("Batch reply is not a complete JSON array");
+    }
+
+    private static int skipWhitespace(String json, int start) {
+        int i = start;
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * A request waiting for its share of a batch reply
+     */
+    private class BatchedCall extends FutureTask<WebServiceResponse> {
+
+        private final String requestBody;
+        private final WebServiceCallback callback;
+
+        BatchedCall(String requestBody, WebServiceCallback callback) {
+            super(new Callable<WebServiceResponse>() {
+                @Override
+                public WebServiceResponse call() {
+                    throw new UnsupportedOperationException("Batched calls are completed by their batch");
+                }
+            });
+            this.requestBody = requestBody;
+            this.callback = callback;
+        }
+
+        void complete(WebServiceResponse response) {
+            set(response);
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            try {
+                final WebServiceResponse response = get();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResponse(response);
+                    }
+                });
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Batched call failed unexpectedly", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.overthink.mechmaid.webservices;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles the byte arrays that hold response bodies, so that screens making many calls don't churn the garbage
+ * collector with a fresh body-sized allocation per response.
+ * <p>
+ * Buffers come in size classes, powers of two from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}. Each class
+ * keeps a bounded number of released buffers. Larger buffers are allocated as needed and left to the garbage
+ * collector.
+ */
+public class WebServiceBufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    // Bytes kept idle per size class
+    private static final int MAX_IDLE_BYTES_PER_CLASS = 256 * 1024;
+    // Buffers kept idle per size class, at least
+    private static final int MIN_IDLE_BUFFERS_PER_CLASS = 2;
+    private static final int MIN_SIZE_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SIZE_SHIFT + 1;
+
+    private static final WebServiceBufferPool DEFAULT = new WebServiceBufferPool();
+
+    private final SizeClass[] sizeClasses = new SizeClass[CLASS_COUNT];
+
+    private WebServiceBufferPool() {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            int size = MIN_BUFFER_SIZE << i;
+            sizeClasses[i] = new SizeClass(size, Math.max(MIN_IDLE_BUFFERS_PER_CLASS, MAX_IDLE_BYTES_PER_CLASS / size));
+        }
+    }
+
+    /**
+     * @return the pool shared by all responses
+     */
+    public static WebServiceBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if none of the right size is idle
+     *
+     * @param minSize the smallest acceptable size, in bytes
+     * @return a buffer of at least the given size, with undefined contents
+     */
+    public byte[] acquire(int minSize) {
+        int index = classIndexFor(minSize);
+        if (index >= CLASS_COUNT) {
+            return new byte[minSize];
+        }
+        SizeClass sizeClass = sizeClasses[index];
+        byte[] buffer = sizeClass.idle.poll();
+        if (buffer == null) {
+            return new byte[sizeClass.size];
+        }
+        sizeClass.idleCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not touch the buffer afterwards.
+     *
+     * @param buffer a buffer obtained from {@link #acquire(int)}
+     */
+    public void release(byte[] buffer) {
+        int index = classIndexFor(buffer.length);
+        if (index >= CLASS_COUNT || sizeClasses[index].size != buffer.length) {
+            // Not one of ours
+            return;
+        }
+        SizeClass sizeClass = sizeClasses[index];
+        if (sizeClass.idleCount.incrementAndGet() > sizeClass.maxIdle) {
+            sizeClass.idleCount.decrementAndGet();
+            return;
+        }
+        sizeClass.idle.add(buffer);
+    }
+
+    /**
+     * @return the number of idle bytes held by the pool
+     */
+    public long getIdleBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            bytes += (long) sizeClass.size * sizeClass.idleCount.get();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return index of the smallest size class holding the given size, CLASS_COUNT or above if none does
+     */
+    private static int classIndexFor(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        // Round up to the next power of two
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+    /**
+     * Idle buffers of one size
+     */
+    private static class SizeClass {
+
+        final int size;
+        final int maxIdle;
+        final ConcurrentLinkedQueue<byte[]> idle = new ConcurrentLinkedQueue<byte[]>();
+        final AtomicInteger idleCount = new AtomicInteger();
+
+        SizeClass(int size, int maxIdle) {
+            this.size = size;
+            this.maxIdle = maxIdle;
+        }
+    }
+}
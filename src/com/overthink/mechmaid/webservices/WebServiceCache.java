@@ -0,0 +1,657 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An opt-in cache for the bodies of successful GET requests, installed with
+ * {@link WebServiceUtils#setResponseCache(WebServiceCache)}.
+ * <p>
+ * Entries are kept in an in-memory LRU tier bounded by size in bytes, backed by an optional on-disk tier that survives
+ * process death. Freshness follows the response's Cache-Control (max-age, no-cache, no-store) and Expires headers.
+ * Stale entries carrying an ETag or Last-Modified validator are revalidated with a conditional GET, and a 304 Not
+ * Modified reply reuses the cached body. Hit, miss and revalidation counts are tracked so the tier sizes can be tuned.
+ * <p>
+ * Only {@link WebServiceUtils#makeHttpGetRequestWith(String)} consults the cache; streamed calls always hit the
+ * network.
+ */
+public class WebServiceCache {
+
+    private static final String TAG = WebServiceCache.class.getName();
+
+    // Header names
+    public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    public static final String HEADER_EXPIRES = "Expires";
+    public static final String HEADER_DATE = "Date";
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    // Format of HTTP date headers (RFC 1123)
+    private static final String FORMAT_HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    // Version of the on-disk entry format, bumped whenever it changes
+    private static final int DISK_FORMAT_VERSION = 3;
+    private static final String DISK_ENTRY_SUFFIX = ".entry";
+    private static final String DISK_TEMP_SUFFIX = ".tmp";
+    // Rough fixed cost of an in-memory entry beyond its URL and body
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final long maxMemoryBytes;
+    private final File diskDirectory;
+    private final long maxDiskBytes;
+
+    // Memory tier in access order, least recently used first. Guarded by this.
+    private final LinkedHashMap<String, Entry> memoryEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long memoryBytes;
+    // Size of the disk tier. Guarded by this.
+    private long diskBytes;
+
+    // Statistics
+    private final AtomicLong memoryHitCount = new AtomicLong();
+    private final AtomicLong diskHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+
+    /**
+     * Constructs a memory-only cache
+     *
+     * @param maxMemoryBytes maximum size of the memory tier, in bytes
+     */
+    public WebServiceCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * Constructs a cache with both a memory and a disk tier
+     *
+     * @param maxMemoryBytes maximum size of the memory tier, in bytes
+     * @param diskDirectory directory holding the disk tier (e.g. a subdirectory of Context.getCacheDir()), or null for
+     *                      a memory-only cache
+     * @param maxDiskBytes maximum size of the disk tier, in bytes
+     */
+    public WebServiceCache(long maxMemoryBytes, File diskDirectory, long maxDiskBytes) {
+        if (maxMemoryBytes < 0 || maxDiskBytes < 0) {
+            throw new IllegalArgumentException("Cache sizes must not be negative");
+        }
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.diskDirectory = diskDirectory;
+        this.maxDiskBytes = maxDiskBytes;
+
+        if (diskDirectory != null) {
+            if (!diskDirectory.isDirectory() && !diskDirectory.mkdirs()) {
+                Log.e(TAG, "Could not create cache directory " + diskDirectory);
+            }
+            // Account for entries left by earlier processes
+            for (File file : listDiskEntries()) {
+                diskBytes += file.length();
+            }
+        }
+    }
+
+    /**
+     * Looks up the cached entry for a URL, checking memory first and then disk. Entries found on disk are promoted to
+     * the memory tier.
+     *
+     * @param url the URL the entry was stored under
+     * @return the entry, fresh or stale, or null if none is cached
+     */
+    Entry get(String url) {
+        synchronized (this) {
+            Entry entry = memoryEntries.get(url);
+            if (entry != null) {
+                entry.fromDisk = false;
+                return entry;
+            }
+        }
+
+        Entry entry = readFromDisk(url);
+        if (entry != null) {
+            entry.fromDisk = true;
+            synchronized (this) {
+                putInMemory(entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a successful response in the cache if its headers allow it
+     *
+     * @param url the URL the response was requested from
+     * @param body the undecoded response body
+     * @param charset the charset to decode the body with
+     * @param response the response carrying the caching headers
+     */
+    void put(String url, byte[] body, Charset charset, WebServiceResponse response) {
+        String cacheControl = response.getHeaderField(HEADER_CACHE_CONTROL);
+        if (hasDirective(cacheControl, "no-store")) {
+            remove(url);
+            return;
+        }
+
+        long lifetimeMillis = computeFreshnessLifetime(response, cacheControl);
+        store(new Entry(url, body, charset, response.getHeaderField(HEADER_ETAG),
+                response.getHeaderField(HEADER_LAST_MODIFIED), Math.max(0, lifetimeMillis)));
+    }
+
+    /**
+     * Refreshes a stale entry after the server confirmed it is unchanged with a 304 Not Modified reply
+     *
+     * @param entry the stale entry
+     * @param notModified the 304 response, whose headers may update the entry's freshness and validators. Without
+     *                    freshness headers of its own, the entry keeps the lifetime it was first stored with.
+     */
+    void update(Entry entry, WebServiceResponse notModified) {
+        String cacheControl = notModified.getHeaderField(HEADER_CACHE_CONTROL);
+        if (hasDirective(cacheControl, "no-store")) {
+            remove(entry.url);
+            return;
+        }
+
+        String etag = notModified.getHeaderField(HEADER_ETAG);
+        String lastModified = notModified.getHeaderField(HEADER_LAST_MODIFIED);
+        long lifetimeMillis = computeFreshnessLifetime(notModified, cacheControl);
+        store(new Entry(entry.url, entry.body, entry.charset, etag != null ? etag : entry.etag,
+                lastModified != null ? lastModified : entry.lastModified,
+                lifetimeMillis >= 0 ? lifetimeMillis : entry.lifetimeMillis));
+    }
+
+    private void store(Entry entry) {
+        if (!entry.hasValidators() && !entry.isFresh()) {
+            // Never fresh and can't be revalidated, so there's no point keeping it
+            remove(entry.url);
+            return;
+        }
+
+        synchronized (this) {
+            putInMemory(entry);
+        }
+        writeToDisk(entry);
+    }
+
+    /**
+     * Removes the entry for a URL from both tiers
+     *
+     * @param url the URL the entry was stored under
+     */
+    public void remove(String url) {
+        synchronized (this) {
+            Entry entry = memoryEntries.remove(url);
+            if (entry != null) {
+                memoryBytes -= entry.sizeInBytes();
+            }
+        }
+        if (diskDirectory != null) {
+            deleteDiskEntry(diskFileFor(url));
+        }
+    }
+
+    /**
+     * Removes every entry from both tiers
+     */
+    public void evictAll() {
+        synchronized (this) {
+            memoryEntries.clear();
+            memoryBytes = 0;
+        }
+        if (diskDirectory != null) {
+            for (File file : listDiskEntries()) {
+                deleteDiskEntry(file);
+            }
+        }
+    }
+
+    void recordHit(Entry entry) {
+        if (entry.fromDisk) {
+            diskHitCount.incrementAndGet();
+        }
+        else {
+            memoryHitCount.incrementAndGet();
+        }
+    }
+
+    void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        revalidationCount.incrementAndGet();
+    }
+
+    /**
+     * @return number of requests served from the memory tier without going to the network
+     */
+    public long getMemoryHitCount() { return memoryHitCount.get(); }
+
+    /**
+     * @return number of requests served from the disk tier without going to the network
+     */
+    public long getDiskHitCount() { return diskHitCount.get(); }
+
+    /**
+     * @return number of requests served from either tier without going to the network
+     */
+    public long getHitCount() { return memoryHitCount.get() + diskHitCount.get(); }
+
+    /**
+     * @return number of requests that downloaded a full body from the network
+     */
+    public long getMissCount() { return missCount.get(); }
+
+    /**
+     * @return number of requests answered with a 304 Not Modified that reused the cached body
+     */
+    public long getRevalidationCount() { return revalidationCount.get(); }
+
+    /**
+     * @return current size of the memory tier, in bytes
+     */
+    public synchronized long getMemorySize() { return memoryBytes; }
+
+    /**
+     * @return current size of the disk tier, in bytes
+     */
+    public synchronized long getDiskSize() { return diskBytes; }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "WebServiceCache[memoryHits=%d, diskHits=%d, misses=%d, revalidations=%d, " +
+                "memorySize=%d/%d, diskSize=%d/%d]", getMemoryHitCount(), getDiskHitCount(), getMissCount(),
+                getRevalidationCount(), getMemorySize(), maxMemoryBytes, getDiskSize(), maxDiskBytes);
+    }
+
+    /**
+     * Adds an entry to the memory tier, evicting least recently used entries to stay within bounds. Must hold the lock
+     * on this.
+     */
+    private void putInMemory(Entry entry) {
+        if (entry.sizeInBytes() > maxMemoryBytes) {
+            // Too big for the memory tier, it can only live on disk
+            Entry previous = memoryEntries.remove(entry.url);
+            if (previous != null) {
+                memoryBytes -= previous.sizeInBytes();
+            }
+            return;
+        }
+
+        Entry previous = memoryEntries.put(entry.url, entry);
+        if (previous != null) {
+            memoryBytes -= previous.sizeInBytes();
+        }
+        memoryBytes += entry.sizeInBytes();
+
+        Iterator<Entry> eldest = memoryEntries.values().iterator();
+        while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            memoryBytes -= eldest.next().sizeInBytes();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Works out how long a response stays fresh, in milliseconds. Responses that must always be revalidated have a
+     * lifetime of zero.
+     *
+     * @return the lifetime, or -1 if the response carries no freshness information
+     */
+    private static long computeFreshnessLifetime(WebServiceResponse response, String cacheControl) {
+        if (hasDirective(cacheControl, "no-cache")) {
+            return 0;
+        }
+
+        long maxAgeSeconds = getDirectiveValue(cacheControl, "max-age");
+        if (maxAgeSeconds >= 0) {
+            return maxAgeSeconds * 1000;
+        }
+
+        long expires = parseHttpDate(response.getHeaderField(HEADER_EXPIRES));
+        if (expires > 0) {
+            // Measure against the server's clock when possible to tolerate skew
+            long serverDate = parseHttpDate(response.getHeaderField(HEADER_DATE));
+            return Math.max(0, expires - (serverDate > 0 ? serverDate : System.currentTimeMillis()));
+        }
+        return -1;
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String token : cacheControl.split(",")) {
+            if (token.trim().equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the numeric value of a directive such as max-age=60, or -1 if it is absent or malformed
+     */
+    private static long getDirectiveValue(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        for (String token : cacheControl.split(",")) {
+            token = token.trim();
+            int equals = token.indexOf('=');
+            if (equals > 0 && token.substring(0, equals).trim().equalsIgnoreCase(directive)) {
+                try {
+                    return Long.parseLong(token.substring(equals + 1).trim().replace("\"", ""));
+                }
+                catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the parsed date in milliseconds since the epoch, or -1 if absent or malformed
+     */
+    private static long parseHttpDate(String date) {
+        if (date == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(FORMAT_HTTP_DATE, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(date).getTime();
+        }
+        catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private Entry readFromDisk(String url) {
+        if (diskDirectory == null) {
+            return null;
+        }
+        File file = diskFileFor(url);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != DISK_FORMAT_VERSION) {
+                throw new IOException("Unknown cache entry version");
+            }
+            String storedUrl = in.readUTF();
+            if (!storedUrl.equals(url)) {
+                // Hash collision, treat as a miss
+                return null;
+            }
+            String etag = readOptionalString(in);
+            String lastModified = readOptionalString(in);
+            long lifetimeMillis = in.readLong();
+            long expiresAtMillis = in.readLong();
+            Charset charset = readCharset(in);
+            int bodyLength = in.readInt();
+            if (bodyLength < 0 || bodyLength > file.length()) {
+                // Corrupt length, don't let it size the buffer
+                throw new IOException("Invalid cache entry body length " + bodyLength);
+            }
+            byte[] body = new byte[bodyLength];
+            in.readFully(body);
+
+            // Mark as recently used for disk eviction
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(url, body, charset, etag, lastModified, lifetimeMillis, expiresAtMillis);
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable cache entry for " + url, e);
+            closeQuietly(in);
+            in = null;
+            deleteDiskEntry(file);
+            return null;
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeToDisk(Entry entry) {
+        if (diskDirectory == null) {
+            return;
+        }
+        byte[] body = entry.body;
+        if (body.length > maxDiskBytes) {
+            deleteDiskEntry(diskFileFor(entry.url));
+            return;
+        }
+
+        // Write to a temporary file first so a crash never leaves a half-written entry behind
+        File file = diskFileFor(entry.url);
+        File tempFile = new File(diskDirectory, file.getName() + DISK_TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(DISK_FORMAT_VERSION);
+            out.writeUTF(entry.url);
+            writeOptionalString(out, entry.etag);
+            writeOptionalString(out, entry.lastModified);
+            out.writeLong(entry.lifetimeMillis);
+            out.writeLong(entry.expiresAtMillis);
+            out.writeUTF(entry.charset.name());
+            out.writeInt(body.length);
+            out.write(body);
+            out.close();
+            out = null;
+
+            synchronized (this) {
+                long previousLength = file.length();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Could not rename " + tempFile);
+                }
+                diskBytes += file.length() - previousLength;
+            }
+            trimDisk();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Could not write cache entry for " + entry.url, e);
+            closeQuietly(out);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Deletes least recently used disk entries until the disk tier is within bounds
+     */
+    private void trimDisk() {
+        synchronized (this) {
+            if (diskBytes <= maxDiskBytes) {
+                return;
+            }
+        }
+        File[] files = listDiskEntries();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            synchronized (this) {
+                if (diskBytes <= maxDiskBytes) {
+                    return;
+                }
+            }
+            deleteDiskEntry(file);
+        }
+    }
+
+    private void deleteDiskEntry(File file) {
+        synchronized (this) {
+            long length = file.length();
+            if (file.delete()) {
+                diskBytes -= length;
+            }
+        }
+    }
+
+    private File[] listDiskEntries() {
+        File[] files = diskDirectory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(DISK_ENTRY_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    /**
+     * Disk entries are named after a hash of their URL so that any URL maps to a valid file name
+     */
+    private File diskFileFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes(WebServiceUtils.DEFAULT_CHARSET));
+            StringBuilder name = new StringBuilder(digest.length * 2 + DISK_ENTRY_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(diskDirectory, name.append(DISK_ENTRY_SUFFIX).toString());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Reads a charset name, reporting unknown or malformed names as I/O errors so the entry is discarded
+     */
+    private static Charset readCharset(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        try {
+            return Charset.forName(name);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Unsupported cache entry charset " + name);
+        }
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                // Nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * A cached response body, kept undecoded, along with its validators and freshness lifetime
+     */
+    static final class Entry {
+
+        final String url;
+        final byte[] body;
+        final Charset charset;
+        final String etag;
+        final String lastModified;
+        // How long the entry stays fresh once stored or revalidated
+        final long lifetimeMillis;
+        final long expiresAtMillis;
+        // Whether this entry was last read from the disk tier, for statistics
+        volatile boolean fromDisk;
+
+        Entry(String url, byte[] body, Charset charset, String etag, String lastModified, long lifetimeMillis) {
+            this(url, body, charset, etag, lastModified, lifetimeMillis, System.currentTimeMillis() + lifetimeMillis);
+        }
+
+        Entry(String url, byte[] body, Charset charset, String etag, String lastModified, long lifetimeMillis,
+                long expiresAtMillis) {
+            this.url = url;
+            this.body = body;
+            this.charset = charset;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.lifetimeMillis = lifetimeMillis;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAtMillis;
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * @return request headers that make a GET conditional on this entry having changed
+         */
+        Map<String, String> getConditionalHeaders() {
+            Map<String, String> headers = new HashMap<String, String>();
+            if (etag != null) {
+                headers.put(HEADER_IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null) {
+                headers.put(HEADER_IF_MODIFIED_SINCE, lastModified);
+            }
+            return headers;
+        }
+
+        /**
+         * @return a successful response carrying this entry's body
+         */
+        WebServiceResponse toResponse() {
+            WebServiceResponse response = new WebServiceResponse();
+            response.setHttpResponseCode(HttpURLConnection.HTTP_OK);
+            response.setSharedResponseBody(body, charset);
+            return response;
+        }
+
+        /**
+         * The URL is held as UTF-16, so it costs two bytes per char
+         */
+        long sizeInBytes() {
+            return ENTRY_OVERHEAD_BYTES + 2L * url.length() + body.length;
+        }
+    }
+}
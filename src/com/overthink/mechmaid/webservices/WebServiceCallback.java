@@ -0,0 +1,16 @@
+package com.overthink.mechmaid.webservices;
+
+/**
+ * Receives the result of an asynchronous web service call made through {@link WebServiceExecutor}. Callbacks are
+ * always delivered on the main (UI) thread.
+ */
+public interface WebServiceCallback {
+
+    /**
+     * Called on the main thread once the web service call has completed. Failed calls are delivered here as well, with
+     * the cause available from {@link WebServiceResponse#getException()}.
+     *
+     * @param response the response from the server
+     */
+    void onResponse(WebServiceResponse response);
+}
@@ -0,0 +1,130 @@
+package com.overthink.mechmaid.webservices;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Cancels web service calls, including calls that are already in flight. A call picks up the token that is current on
+ * its thread (see {@link #runWith(Callable)}); cancelling the token disconnects the call's connection, so a blocked
+ * read fails right away instead of running into its timeout. Cancelled calls complete with an
+ * {@link java.io.InterruptedIOException} and are never retried.
+ */
+public class WebServiceCancellationToken {
+
+    // Token of the calls made on each thread
+    private static final ThreadLocal<WebServiceCancellationToken> CURRENT =
+            new ThreadLocal<WebServiceCancellationToken>();
+
+    // Run when the token is cancelled. Guarded by this.
+    private final List<Runnable> cancellationListeners = new ArrayList<Runnable>();
+    private volatile boolean cancelled;
+
+    /**
+     * @return the token of calls made on the current thread, or null if there is none
+     */
+    public static WebServiceCancellationToken current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Creates a token that is cancelled along with this one, but can also be cancelled on its own
+     *
+     * @return the child token
+     */
+    public WebServiceCancellationToken newChild() {
+        final WebServiceCancellationToken child = new WebServiceCancellationToken();
+        final Runnable cancelChild = new Runnable() {
+            @Override
+            public void run() {
+                child.cancel();
+            }
+        };
+        if (!addCancellationListener(cancelChild)) {
+            child.cancel();
+        }
+        else {
+            // Stop holding on to the child once it's been cancelled by other means
+            child.addCancellationListener(new Runnable() {
+                @Override
+                public void run() {
+                    removeCancellationListener(cancelChild);
+                }
+            });
+        }
+        return child;
+    }
+
+    /**
+     * Runs a web service call with this token current on the calling thread
+     *
+     * @param call the call to run
+     * @return the call's result
+     * @throws Exception if the call throws
+     */
+    public <T> T runWith(Callable<T> call) throws Exception {
+        WebServiceCancellationToken previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return call.call();
+        }
+        finally {
+            if (previous == null) {
+                CURRENT.remove();
+            }
+            else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Cancels this token, aborting any call in flight under it. Cancelling twice has no further effect.
+     */
+    public void cancel() {
+        Runnable[] listeners;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            listeners = cancellationListeners.toArray(new Runnable[cancellationListeners.size()]);
+            cancellationListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @return true once the token has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Registers an action to run when this token is cancelled
+     *
+     * @param listener the action
+     * @return false if the token is already cancelled, in which case the action is not registered
+     */
+    synchronized boolean addCancellationListener(Runnable listener) {
+        if (cancelled) {
+            return false;
+        }
+        cancellationListeners.add(listener);
+        return true;
+    }
+
+    /**
+     * Unregisters an action registered with {@link #addCancellationListener(Runnable)}
+     *
+     * @param listener the action
+     * @return true if the action was still registered, in which case it has not run and never will; false if
+     * cancellation has already taken it to run
+     */
+    synchronized boolean removeCancellationListener(Runnable listener) {
+        return cancellationListeners.remove(listener);
+    }
+}
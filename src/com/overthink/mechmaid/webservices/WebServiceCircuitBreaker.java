@@ -0,0 +1,230 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the health of each host and fails calls fast while a host is unhealthy, instead of letting every caller wait
+ * out its own timeout and pile more load onto a degraded backend.
+ * <p>
+ * A host's circuit opens after a run of consecutive failures (I/O errors or 5xx responses). While open, calls to the
+ * host fail immediately with a {@link CircuitOpenException}. Once the open period has passed a single trial call is
+ * let through: if it succeeds the circuit closes again, otherwise it stays open for another period. Only the trial
+ * can close an open circuit; calls that were already in flight when it opened can't.
+ * <p>
+ * Calls that fail because the device has no network, such as failed host name lookups, say nothing about the host
+ * and are not counted, so that going offline doesn't leave every circuit open once the network is back.
+ */
+public class WebServiceCircuitBreaker {
+
+    private static final String TAG = WebServiceCircuitBreaker.class.getName();
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_MS = 30 * 1000;
+
+    private final int failureThreshold;
+    private final long openDurationMs;
+    private final ConcurrentHashMap<String, HostCircuit> circuits = new ConcurrentHashMap<String, HostCircuit>();
+
+    /**
+     * Constructs a circuit breaker with the default threshold and open period
+     */
+    public WebServiceCircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_MS);
+    }
+
+    /**
+     * Constructs a circuit breaker
+     *
+     * @param failureThreshold consecutive failures that open a host's circuit
+     * @param openDurationMs how long a circuit stays open before a trial call is allowed, in milliseconds
+     */
+    public WebServiceCircuitBreaker(int failureThreshold, long openDurationMs) {
+        if (failureThreshold < 1 || openDurationMs < 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDurationMs = openDurationMs;
+    }
+
+    /**
+     * Asks whether a call to a host may go ahead. Every call that is allowed must be followed by
+     * {@link #recordResult(String, WebServiceResponse)} or {@link #recordCancellation(String)} on the same thread.
+     *
+     * @param host the host being called
+     * @return true if the call may be made, false if it should fail fast
+     */
+    public boolean allowRequest(String host) {
+        return circuitFor(host).allowRequest();
+    }
+
+    /**
+     * Records the outcome of a call that was allowed through
+     *
+     * @param host the host that was called
+     * @param response the response of the call, or null if the call failed unexpectedly
+     */
+    public void recordResult(String host, WebServiceResponse response) {
+        HostCircuit circuit = circuitFor(host);
+        if (isNoNetwork(response)) {
+            circuit.recordCancellation();
+        }
+        else if (isFailure(response)) {
+            if (circuit.recordFailure()) {
+                Log.w(TAG, "Opening circuit for " + host + " for " + openDurationMs + " ms");
+            }
+        }
+        else {
+            circuit.recordSuccess();
+        }
+    }
+
+    /**
+     * Records that a call that was allowed through was cancelled before completing, which says nothing about the
+     * host's health but frees the trial slot if the call was a trial
+     *
+     * @param host the host that was called
+     */
+    public void recordCancellation(String host) {
+        circuitFor(host).recordCancellation();
+    }
+
+    /**
+     * @param host the host
+     * @return true if calls to the host are currently failing fast
+     */
+    public boolean isOpen(String host) {
+        HostCircuit circuit = circuits.get(host);
+        return circuit != null && circuit.isOpen();
+    }
+
+    /**
+     * Closes every circuit, e.g. after connectivity changes
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    /**
+     * @return true if a response counts against the host's health
+     */
+    private static boolean isFailure(WebServiceResponse response) {
+        if (response == null) {
+            return true;
+        }
+        int responseCode = response.getHttpResponseCode();
+        if (responseCode == 0) {
+            Exception exception = response.getException();
+            return exception instanceof IOException && !(exception instanceof MalformedURLException);
+        }
+        return responseCode >= 500 || responseCode == WebServiceRetryPolicy.HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @return true if a call failed because the device has no network rather than because of the host
+     */
+    private static boolean isNoNetwork(WebServiceResponse response) {
+        if (response == null || response.getHttpResponseCode() != 0) {
+            return false;
+        }
+        Exception exception = response.getException();
+        if (exception instanceof UnknownHostException || exception instanceof NoRouteToHostException) {
+            return true;
+        }
+        // e.g. "connect failed: ENETUNREACH (Network is unreachable)"
+        String message = exception instanceof ConnectException ? exception.getMessage() : null;
+        return message != null && (message.contains("ENETUNREACH") || message.contains("Network is unreachable"));
+    }
+
+    private HostCircuit circuitFor(String host) {
+        HostCircuit circuit = circuits.get(host);
+        if (circuit == null) {
+            HostCircuit created = new HostCircuit();
+            circuit = circuits.putIfAbsent(host, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit;
+    }
+
+    /**
+     * Circuit state of a single host
+     */
+    private class HostCircuit {
+
+        private int consecutiveFailures;
+        // When the circuit opened, or 0 while closed
+        private long openedAtMillis;
+        // The thread making the trial call while half open, or null if there is none in flight
+        private Thread trialThread;
+
+        synchronized boolean allowRequest() {
+            if (openedAtMillis == 0) {
+                return true;
+            }
+            if (trialThread == null && System.currentTimeMillis() - openedAtMillis >= openDurationMs) {
+                trialThread = Thread.currentThread();
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void recordSuccess() {
+            if (openedAtMillis != 0 && !isTrial()) {
+                // A call made before the circuit opened; only the trial can close it
+                return;
+            }
+            consecutiveFailures = 0;
+            openedAtMillis = 0;
+            trialThread = null;
+        }
+
+        /**
+         * @return true if this failure opened the circuit
+         */
+        synchronized boolean recordFailure() {
+            consecutiveFailures++;
+            boolean wasClosed = openedAtMillis == 0;
+            if (isTrial() || (wasClosed && consecutiveFailures >= failureThreshold)) {
+                // Open, or reopen after a failed trial
+                openedAtMillis = System.currentTimeMillis();
+                trialThread = null;
+                return wasClosed;
+            }
+            return false;
+        }
+
+        synchronized void recordCancellation() {
+            if (isTrial()) {
+                trialThread = null;
+            }
+        }
+
+        private boolean isTrial() {
+            return trialThread == Thread.currentThread();
+        }
+
+        synchronized boolean isOpen() {
+            return openedAtMillis != 0;
+        }
+    }
+
+    /**
+     * Set on the response of a call that failed fast because its host's circuit is open
+     */
+    public static class CircuitOpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public CircuitOpenException(String host) {
+            super("Circuit open for host " + host);
+        }
+    }
+}
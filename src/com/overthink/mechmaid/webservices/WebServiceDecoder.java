@@ -0,0 +1,25 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Turns a response body into a model object while it streams in, on the thread making the call. See
+ * {@link WebServiceUtils#makeHttpGetRequestFor(String, WebServiceDecoder)} and {@link JsonDecoder}.
+ *
+ * @param <T> the type of model object produced
+ */
+public interface WebServiceDecoder<T> {
+
+    /**
+     * Decodes a response body
+     *
+     * @param body the response body, already decompressed; it is closed by the caller
+     * @param charset the charset declared by the response, or UTF-8 if none was declared
+     * @param response the response being read, for its status code and headers
+     * @return the decoded object
+     * @throws IOException if the body cannot be read or is malformed
+     */
+    T decode(InputStream body, Charset charset, WebServiceResponse response) throws IOException;
+}
@@ -0,0 +1,17 @@
+package com.overthink.mechmaid.webservices;
+
+/**
+ * Follows the progress of a {@link WebServiceDownloader} download
+ */
+public interface WebServiceDownloadListener {
+
+    /**
+     * Called on a download thread each time a chunk has been written to disk. Chunks complete out of order when they
+     * are downloaded in parallel.
+     *
+     * @param url the URL being downloaded
+     * @param bytesDownloaded bytes on disk so far, including any resumed from an earlier attempt
+     * @param totalBytes size of the download, or -1 if the server didn't say
+     */
+    void onChunkCompleted(String url, long bytesDownloaded, long totalBytes);
+}
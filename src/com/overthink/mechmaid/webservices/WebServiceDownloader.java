@@ -0,0 +1,448 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads large resources straight to a file instead of into a String.
+ * <p>
+ * If the server accepts byte ranges and reports the size of the resource, the file is sized up front and split into
+ * chunks that are fetched in parallel, each written directly into its own memory-mapped region of the file. Completed
+ * chunks are recorded in a ".part" file next to the target, so a download that fails or is interrupted picks up where
+ * it left off the next time it is started, as long as the resource hasn't changed in between (checked with If-Range).
+ * Otherwise the resource is streamed to the file in one piece.
+ * <p>
+ * Downloads are synchronous and should be started from a background thread. Calls go through
+ * {@link WebServiceUtils}, so retries, circuit breaking and the installed transport all apply to each chunk.
+ */
+public class WebServiceDownloader {
+
+    private static final String TAG = WebServiceDownloader.class.getName();
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_PARALLEL_CHUNKS = 4;
+    // Partial download state file
+    private static final String PART_FILE_SUFFIX = ".part";
+    private static final int PART_FILE_VERSION = 1;
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+    // Headers
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String RANGE_UNIT_BYTES = "bytes";
+    // Ranges must arrive exactly as stored, not compressed on the fly
+    private static final String ENCODING_IDENTITY = "identity";
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+
+    private final int chunkSize;
+    private final ThreadPoolExecutor chunkPool;
+
+    /**
+     * Constructs a downloader with the default chunk size and parallelism
+     */
+    public WebServiceDownloader() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_PARALLEL_CHUNKS);
+    }
+
+    /**
+     * Constructs a downloader
+     *
+     * @param chunkSize size of each byte range, in bytes
+     * @param maxParallelChunks number of chunks downloaded at once, shared by all downloads
+     */
+    public WebServiceDownloader(int chunkSize, int maxParallelChunks) {
+        if (chunkSize < 1 || maxParallelChunks < 1) {
+            throw new IllegalArgumentException("Invalid downloader settings");
+        }
+        this.chunkSize = chunkSize;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        chunkPool = new ThreadPoolExecutor(maxParallelChunks, maxParallelChunks, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "WebServiceDownloader #" + threadCount.incrementAndGet());
+                    }
+                });
+        chunkPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Downloads a resource to a file, resuming an earlier partial download of the same resource if there is one
+     *
+     * @param url the URL of the resource, as a string
+     * @param target the file to write; it is complete once the returned response has no exception
+     * @param listener notified as chunks complete (optional)
+     * @return the outcome; {@link WebServiceResponse#getResponseBodyLength()} holds the size of the file
+     */
+    public WebServiceResponse download(String url, File target, WebServiceDownloadListener listener) {
+        // Find out whether the resource can be fetched in ranges
+        Map<String, String> probeHeaders = new HashMap<String, String>();
+        probeHeaders.put(WebServiceUtils.REQUEST_PROPERTY_KEY_ACCEPT_ENCODING, ENCODING_IDENTITY);
+        WebServiceResponse probe = WebServiceUtils.makeHttpRequestWith("HEAD", url, null, probeHeaders,
+                new WebServiceStreamHandler() {
+                    @Override
+                    public void onResponseBody(InputStream body, Charset charset, WebServiceResponse response) {
+                        // A HEAD response has no body
+                    }
+                });
+        if (probe.getException() != null) {
+            return probe;
+        }
+
+        long length = parseLength(probe.getHeaderField(HEADER_CONTENT_LENGTH));
+        String acceptRanges = probe.getHeaderField(HEADER_ACCEPT_RANGES);
+        if (length > 0 && acceptRanges != null && acceptRanges.toLowerCase().contains(RANGE_UNIT_BYTES)) {
+            String validator = probe.getHeaderField(HEADER_ETAG);
+            if (validator == null || validator.startsWith("W/")) {
+                // Weak validators can't be used with If-Range
+                validator = probe.getHeaderField(HEADER_LAST_MODIFIED);
+            }
+            return downloadRanges(url, target, length, validator, listener);
+        }
+
+        Log.i(TAG, "Server doesn't accept ranges, downloading in one piece: " + url);
+        return downloadWhole(url, target, listener);
+    }
+
+    /**
+     * Stops the download threads once running chunks complete
+     */
+    public void shutdown() {
+        chunkPool.shutdown();
+    }
+
+    /**
+     * Downloads a resource as parallel byte ranges into a pre-sized file
+     */
+    private WebServiceResponse downloadRanges(final String url, File target, final long length,
+                                              final String validator, final WebServiceDownloadListener listener) {
+        WebServiceResponse result = new WebServiceResponse();
+        PartFile part = null;
+        RandomAccessFile file = null;
+        // Aborts the chunks still in flight once one fails
+        final WebServiceCancellationToken token = new WebServiceCancellationToken();
+        try {
+            part = PartFile.open(new File(target.getPath() + PART_FILE_SUFFIX), length, chunkSize, validator);
+            file = new RandomAccessFile(target, "rw");
+            if (file.length() != length) {
+                file.setLength(length);
+            }
+            final FileChannel channel = file.getChannel();
+            final PartFile state = part;
+
+            final AtomicLong downloaded = new AtomicLong();
+            List<Future<Void>> chunks = new ArrayList<Future<Void>>();
+            for (int i = 0; i < state.chunkCount; i++) {
+                final long start = (long) i * chunkSize;
+                final int size = (int) Math.min(chunkSize, length - start);
+                if (state.isComplete(i)) {
+                    downloaded.addAndGet(size);
+                    continue;
+                }
+                final int chunk = i;
+                chunks.add(chunkPool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        token.runWith(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                downloadChunk(url, channel, start, size, validator);
+                                return null;
+                            }
+                        });
+                        state.markComplete(chunk);
+                        long total = downloaded.addAndGet(size);
+                        if (listener != null) {
+                            listener.onChunkCompleted(url, total, length);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            if (chunks.size() < state.chunkCount) {
+                Log.i(TAG, "Resuming download at " + downloaded.get() + " of " + length + " bytes: " + url);
+            }
+
+            IOException failure = null;
+            for (Future<Void> chunk : chunks) {
+                try {
+                    chunk.get();
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause() : new IOException(e.getCause());
+                        token.cancel();
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            part.delete();
+            result.setHttpResponseCode(HttpURLConnection.HTTP_OK);
+            result.setResponseBodyLength(length);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            token.cancel();
+            result.setException(e);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Download failed, " + (part == null ? 0 : part.completedCount()) + " chunks kept for resuming: "
+                    + url, e);
+            result.setException(e);
+        }
+        finally {
+            closeQuietly(part);
+            closeQuietly(file);
+        }
+        return result;
+    }
+
+    /**
+     * Downloads one byte range straight into its mapped region of the file
+     */
+    private static void downloadChunk(String url, FileChannel channel, final long start, final int size,
+                                      String validator) throws IOException {
+        final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(HEADER_RANGE, RANGE_UNIT_BYTES + "=" + start + "-" + (start + size - 1));
+        headers.put(WebServiceUtils.REQUEST_PROPERTY_KEY_ACCEPT_ENCODING, ENCODING_IDENTITY);
+        if (validator != null) {
+            // Sends the whole, changed resource instead of a range if the resource changed
+            headers.put(HEADER_IF_RANGE, validator);
+        }
+
+        WebServiceResponse response = WebServiceUtils.makeHttpRequestWith("GET", url, null, headers,
+                new WebServiceStreamHandler() {
+                    @Override
+                    public void onResponseBody(InputStream body, Charset charset, WebServiceResponse response)
+                            throws IOException {
+                        if (response.getHttpResponseCode() != HTTP_PARTIAL_CONTENT) {
+                            // Don't read a whole resource into one chunk's region
+                            return;
+                        }
+                        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                        int read;
+                        while (region.hasRemaining()
+                                && (read = body.read(buffer, 0, Math.min(buffer.length, region.remaining()))) != -1) {
+                            region.put(buffer, 0, read);
+                        }
+                    }
+                });
+
+        if (response.getException() instanceof IOException) {
+            throw (IOException) response.getException();
+        }
+        if (response.getException() != null) {
+            throw new IOException(response.getException());
+        }
+        if (response.getHttpResponseCode() != HTTP_PARTIAL_CONTENT) {
+            throw new IOException("Expected a byte range but got HTTP " + response.getHttpResponseCode()
+                    + "; the resource may have changed");
+        }
+        if (region.hasRemaining()) {
+            throw new IOException("Byte range at " + start + " ended " + region.remaining() + " bytes short");
+        }
+        // On disk before the chunk is recorded as complete
+        region.force();
+    }
+
+    /**
+     * Streams a resource to a file in one piece, for servers that don't accept ranges
+     */
+    private WebServiceResponse downloadWhole(final String url, File target, final WebServiceDownloadListener listener) {
+        FileOutputStream out;
+        try {
+            out = new FileOutputStream(target);
+        }
+        catch (IOException e) {
+            WebServiceResponse result = new WebServiceResponse();
+            result.setException(e);
+            return result;
+        }
+
+        final FileChannel channel = out.getChannel();
+        try {
+            return WebServiceUtils.makeHttpGetRequestWith(url, new WebServiceStreamHandler() {
+                @Override
+                public void onResponseBody(InputStream body, Charset charset, WebServiceResponse response)
+                        throws IOException {
+                    ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                    long written = 0;
+                    long reported = 0;
+                    int read;
+                    while ((read = body.read(buffer.array())) != -1) {
+                        buffer.limit(read);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        buffer.clear();
+                        written += read;
+                        if (listener != null && written - reported >= chunkSize) {
+                            listener.onChunkCompleted(url, written, -1);
+                            reported = written;
+                        }
+                    }
+                    if (listener != null && written > reported) {
+                        listener.onChunkCompleted(url, written, written);
+                    }
+                }
+            });
+        }
+        finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static long parseLength(String contentLength) {
+        if (contentLength == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                // Nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * Records which chunks of a download are on disk, as a header describing the download followed by one byte per
+     * chunk
+     */
+    private static class PartFile implements Closeable {
+
+        final int chunkCount;
+        private final File path;
+        private final RandomAccessFile file;
+        private final long headerLength;
+        // Guarded by this
+        private final boolean[] complete;
+
+        private PartFile(File path, RandomAccessFile file, int chunkCount, boolean[] complete) throws IOException {
+            this.path = path;
+            this.file = file;
+            this.chunkCount = chunkCount;
+            this.complete = complete;
+            this.headerLength = file.length() - chunkCount;
+        }
+
+        /**
+         * Opens the state of a download, starting over if the state on disk belongs to a different download
+         */
+        static PartFile open(File path, long length, int chunkSize, String validator) throws IOException {
+            int chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+            boolean[] complete = new boolean[chunkCount];
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                if (validator != null && matches(file, length, chunkSize, validator)) {
+                    for (int i = 0; i < chunkCount; i++) {
+                        complete[i] = file.readByte() != 0;
+                    }
+                    return new PartFile(path, file, chunkCount, complete);
+                }
+
+                // Without a validator there's no telling whether earlier chunks are still valid
+                file.setLength(0);
+                file.writeInt(PART_FILE_VERSION);
+                file.writeLong(length);
+                file.writeInt(chunkSize);
+                file.writeUTF(validator == null ? "" : validator);
+                file.write(new byte[chunkCount]);
+                file.getFD().sync();
+                return new PartFile(path, file, chunkCount, complete);
+            }
+            catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        private static boolean matches(RandomAccessFile file, long length, int chunkSize, String validator) {
+            try {
+                file.seek(0);
+                return file.length() > 0 && file.readInt() == PART_FILE_VERSION && file.readLong() == length
+                        && file.readInt() == chunkSize && file.readUTF().equals(validator)
+                        && file.length() - file.getFilePointer() == (length + chunkSize - 1) / chunkSize;
+            }
+            catch (IOException e) {
+                return false;
+            }
+        }
+
+        synchronized boolean isComplete(int chunk) {
+            return complete[chunk];
+        }
+
+        synchronized void markComplete(int chunk) throws IOException {
+            complete[chunk] = true;
+            file.seek(headerLength + chunk);
+            file.writeByte(1);
+        }
+
+        synchronized int completedCount() {
+            int count = 0;
+            for (boolean chunk : complete) {
+                if (chunk) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void delete() throws IOException {
+            close();
+            if (!path.delete()) {
+                Log.w(TAG, "Could not delete " + path);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single HTTP request and its response, as carried by a {@link WebServiceTransport}. Methods are called in the same
+ * order as on an {@link java.net.HttpURLConnection}: the request is set up, connected, its body (if any) is written and
+ * closed, and then the response is read. Only {@link #abort()} may be called from another thread.
+ */
+public interface WebServiceExchange {
+
+    /**
+     * @param connectTimeoutMs how long to wait for the connection to be established, in milliseconds
+     * @param readTimeoutMs how long to wait for data from the server, in milliseconds
+     */
+    void setTimeouts(int connectTimeoutMs, int readTimeoutMs);
+
+    /**
+     * @param method the HTTP method, e.g. "GET" or "POST"
+     * @throws IOException if the method is not supported
+     */
+    void setRequestMethod(String method) throws IOException;
+
+    /**
+     * Sets a request header, replacing any previous value
+     *
+     * @param name the header name
+     * @param value the header value
+     */
+    void setRequestHeader(String name, String value);
+
+    /**
+     * Declares that the request has a body
+     *
+     * @param contentLength the length of the body in bytes, or {@link WebServiceRequestBody#UNKNOWN_LENGTH} to send it
+     *                      chunked
+     */
+    void setRequestBodyLength(long contentLength);
+
+    /**
+     * Establishes the connection to the server
+     *
+     * @throws IOException if the connection cannot be established
+     */
+    void connect() throws IOException;
+
+    /**
+     * @return the stream the request body is written to; closing it completes the request
+     * @throws IOException if the request cannot be sent
+     */
+    OutputStream getRequestBodyStream() throws IOException;
+
+    /**
+     * Waits for the response headers
+     *
+     * @return the HTTP response code
+     * @throws IOException if no response is received
+     */
+    int getResponseCode() throws IOException;
+
+    /**
+     * @return the response headers, keyed by name, with the status line under the null key
+     */
+    Map<String, List<String>> getResponseHeaders();
+
+    /**
+     * @param name the header name, in any case
+     * @return the last value of the response header, or null if it is absent
+     */
+    String getResponseHeader(String name);
+
+    /**
+     * @return the response body as received, still content encoded
+     * @throws IOException if the body cannot be read, or the response code is 400 or above
+     */
+    InputStream getResponseBodyStream() throws IOException;
+
+    /**
+     * Releases the exchange once the call completes
+     *
+     * @param reuse true to keep the connection for later calls if possible, false to close it
+     */
+    void release(boolean reuse);
+
+    /**
+     * Tears down the connection, failing any blocked read or write. May be called from any thread.
+     */
+    void abort();
+}
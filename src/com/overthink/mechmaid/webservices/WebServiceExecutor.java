@@ -0,0 +1,588 @@
+package com.overthink.mechmaid.webservices;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the synchronous calls in {@link WebServiceUtils} on a shared, bounded pool of worker threads so that callers
+ * don't need to spin up their own AsyncTask or thread per request.
+ * <p>
+ * Each call returns a cancellable {@link Future} and can optionally post a {@link WebServiceCallback} to the main
+ * thread. The executor limits how many calls run at once, both overall and per host, and how many calls may wait in
+ * its queue. Calls submitted while the queue is full are not run; they complete immediately with a
+ * {@link RejectedExecutionException} set on the response, just like any other failed call. So are calls submitted
+ * after {@link #shutdown()}.
+ * <p>
+ * Calls have a {@link Priority}. Waiting calls start in priority order, and each priority can be limited to fewer
+ * running calls than the executor as a whole, so that background work always leaves room for the calls the user is
+ * waiting on. Background calls also leave one of each host's slots free, and interactive calls don't count the
+ * background calls of a host against its limit, so a sync against the app's only backend can't hold them up. When
+ * the queue is full, a new call bumps the most recently queued call of a lower priority. Calls can be tied to a
+ * {@link WebServiceCancellationToken}, e.g. one per screen: cancelling it drops the calls still queued and aborts the
+ * ones in flight. Cancelling a call's future with interruption aborts it in flight as well.
+ */
+public class WebServiceExecutor {
+
+    private static final String TAG = WebServiceExecutor.class.getName();
+
+    // Default limits
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST = 2;
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 64;
+    // Background calls get half of the slots by default, so a sync can't crowd out the calls the user waits on
+    private static final int DEFAULT_BACKGROUND_SHARE = 2;
+    // How long idle worker threads are kept around
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static WebServiceExecutor defaultExecutor;
+
+    private final ThreadPoolExecutor threadPool;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+    private final int maxQueuedRequests;
+    // Transport of the calls run by this executor, or null to use the installed one
+    private volatile WebServiceTransport transport;
+
+    // Calls waiting for a free slot, per priority in submission order. Guarded by this.
+    private final List<Deque<AsyncCall>> readyCalls = new ArrayList<Deque<AsyncCall>>();
+    // Maximum and current number of running calls per priority. Guarded by this.
+    private final int[] maxRequestsPerPriority = new int[Priority.values().length];
+    private final int[] runningCallsPerPriority = new int[Priority.values().length];
+    // Number of running calls per host, and how many of them are background calls. Guarded by this.
+    private final Map<String, Integer> runningCallsPerHost = new HashMap<String, Integer>();
+    private final Map<String, Integer> runningBackgroundCallsPerHost = new HashMap<String, Integer>();
+    // Number of running calls overall. Guarded by this.
+    private int runningCalls;
+    // Whether shutdown() has been called. Guarded by this.
+    private boolean shutdown;
+
+    /**
+     * Returns the shared executor, created on first use with the default limits
+     *
+     * @return the shared executor
+     */
+    public static synchronized WebServiceExecutor getDefault() {
+        if (defaultExecutor == null) {
+            defaultExecutor = new WebServiceExecutor(DEFAULT_MAX_CONCURRENT_REQUESTS,
+                    DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST, DEFAULT_MAX_QUEUED_REQUESTS);
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Constructs an executor with the given limits
+     *
+     * @param maxRequests maximum number of calls running at once
+     * @param maxRequestsPerHost maximum number of calls running at once against any single host
+     * @param maxQueuedRequests maximum number of calls waiting to run
+     */
+    public WebServiceExecutor(int maxRequests, int maxRequestsPerHost, int maxQueuedRequests) {
+        if (maxRequests < 1 || maxRequestsPerHost < 1 || maxQueuedRequests < 0) {
+            throw new IllegalArgumentException("Invalid web service executor limits");
+        }
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.maxQueuedRequests = maxQueuedRequests;
+        for (Priority priority : Priority.values()) {
+            readyCalls.add(new ArrayDeque<AsyncCall>());
+            maxRequestsPerPriority[priority.ordinal()] = maxRequests;
+        }
+        maxRequestsPerPriority[Priority.BACKGROUND.ordinal()] = Math.max(1, maxRequests / DEFAULT_BACKGROUND_SHARE);
+
+        // The pool never holds more tasks than it has threads, since calls are only handed over once a slot frees up
+        threadPool = new ThreadPoolExecutor(maxRequests, maxRequests, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        threadPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Asynchronously makes an HTTP GET request. See {@link WebServiceUtils#makeHttpGetRequestWith(String)}.
+     *
+     * @param url the URL of the web service to call, as a string
+     * @param callback called on the main thread when the call completes (optional)
+     * @return a future holding the response from the server; cancel it to drop the call
+     */
+    public Future<WebServiceResponse> submitHttpGetRequestWith(String url, WebServiceCallback callback) {
+        return submitHttpGetRequestWith(url, Priority.NORMAL, null, callback);
+    }
+
+    /**
+     * Asynchronously makes an HTTP GET request. See {@link WebServiceUtils#makeHttpGetRequestWith(String)}.
+     *
+     * @param url the URL of the web service to call, as a string
+     * @param priority the priority of the call
+     * @param token cancels the call, whether queued or in flight (optional)
+     * @param callback called on the main thread when the call completes (optional)
+     * @return a future holding the response from the server; cancel it to drop the call
+     */
+    public Future<WebServiceResponse> submitHttpGetRequestWith(final String url, Priority priority,
+                                                               WebServiceCancellationToken token,
+                                                               WebServiceCallback callback) {
+        return submit(url, new Callable<WebServiceResponse>() {
+            @Override
+            public WebServiceResponse call() {
+                return WebServiceUtils.makeHttpGetRequestWith(url);
+            }
+        }, priority, token, callback);
+    }
+
+    /**
+     * Asynchronously makes an HTTP POST request. See {@link WebServiceUtils#makeHttpPostRequestWith(String, String)}.
+     *
+     * @param url the URL of the web service to call, as a string
+     * @param requestBody the body of the request
+     * @param callback called on the main thread when the call completes (optional)
+     * @return a future holding the response from the server; cancel it to drop the call
+     */
+    public Future<WebServiceResponse> submitHttpPostRequestWith(String url, String requestBody,
+                                                                WebServiceCallback callback) {
+        return submitHttpPostRequestWith(url, requestBody, Priority.NORMAL, null, callback);
+    }
+
+    /**
+     * Asynchronously makes an HTTP POST request. See {@link WebServiceUtils#makeHttpPostRequestWith(String, String)}.
+     *
+     * @param url the URL of the web service to call, as a string
+     * @param requestBody the body of the request
+     * @param priority the priority of the call
+     * @param token cancels the call, whether queued or in flight (optional)
+     * @param callback called on the main thread when the call completes (optional)
+     * @return a future holding the response from the server; cancel it to drop the call
+     */
+    public Future<WebServiceResponse> submitHttpPostRequestWith(final String url, final String requestBody,
+                                                                Priority priority, WebServiceCancellationToken token,
+                                                                WebServiceCallback callback) {
+        return submit(url, new Callable<WebServiceResponse>() {
+            @Override
+            public WebServiceResponse call() {
+                return WebServiceUtils.makeHttpPostRequestWith(url, requestBody);
+            }
+        }, priority, token, callback);
+    }
+
+    /**
+     * Asynchronously makes an HTTP POST request. See
+     * {@link WebServiceUtils#makeHttpPostRequestWith(String, WebServiceRequestBody)}.
+     *
+     * @param url the URL of the web service to call, as a string
+     * @param requestBody the body of the request
+     * @param callback called on the main thread when the call completes (optional)
+     * @return a future holding the response from the server; cancel it to drop the call
+     */
+    public Future<WebServiceResponse> submitHttpPostRequestWith(final String url,
+                                                                final WebServiceRequestBody requestBody,
+                                                                WebServiceCallback callback) {
+        return submit(url, new Callable<WebServiceResponse>() {
+            @Override
+            public WebServiceResponse call() {
+                return WebServiceUtils.makeHttpPostRequestWith(url, requestBody);
+            }
+        }, callback);
+    }
+
+    /**
+     * Schedules a web service call against the host of the given URL, with normal priority
+     *
+     * @param url the URL the call will be made against, used to apply the per host limit
+     * @param request the synchronous call to run
+     * @param callback called on the main thread when the call completes (optional)
+     * @return a future holding the response from the server
+     */
+    public Future<WebServiceResponse> submit(String url, Callable<WebServiceResponse> request,
+                                             WebServiceCallback callback) {
+        return submit(url, request, Priority.NORMAL, null, callback);
+    }
+
+    /**
+     * Schedules a web service call against the host of the given URL
+     *
+     * @param url the URL the call will be made against, used to apply the per host limit
+     * @param request the synchronous call to run
+     * @param priority the priority of the call
+     * @param token cancels the call, whether queued or in flight (optional)
+     * @param callback called on the main thread when the call completes (optional)
+     * @return a future holding the response from the server
+     */
+    public Future<WebServiceResponse> submit(String url, Callable<WebServiceResponse> request, Priority priority,
+                                             WebServiceCancellationToken token, WebServiceCallback callback) {
+        return submit(url, request, priority, token, callback, null);
+    }
+
+    /**
+     * Schedules a web service call against the host of the given URL, and is told however the call completes
+     *
+     * @param url the URL the call will be made against, used to apply the per host limit
+     * @param request the synchronous call to run
+     * @param priority the priority of the call
+     * @param token cancels the call, whether queued or in flight (optional)
+     * @param callback called on the main thread when the call completes (optional)
+     * @param completionCallback called on the thread completing the call once it has run, been rejected or been
+     *                           cancelled; a cancelled call gets a response holding a CancellationException (optional)
+     * @return a future holding the response from the server
+     */
+    Future<WebServiceResponse> submit(String url, Callable<WebServiceResponse> request, Priority priority,
+                                      WebServiceCancellationToken token, WebServiceCallback callback,
+                                      WebServiceCallback completionCallback) {
+        final WebServiceTransport callTransport = transport;
+        if (callTransport != null) {
+            final Callable<WebServiceResponse> transportRequest = request;
+            request = new Callable<WebServiceResponse>() {
+                @Override
+                public WebServiceResponse call() throws Exception {
+                    return WebServiceUtils.runWithTransport(callTransport, transportRequest);
+                }
+            };
+        }
+
+        // Each call gets its own token, so that cancelling the future can abort the call in flight
+        WebServiceCancellationToken callToken = token == null ? new WebServiceCancellationToken() : token.newChild();
+        final AsyncCall call = new AsyncCall(WebServiceUtils.hostOf(url), request, priority, callToken, callback,
+                completionCallback);
+        if (!callToken.addCancellationListener(new Runnable() {
+            @Override
+            public void run() {
+                call.cancel(false);
+            }
+        })) {
+            call.cancel(false);
+            return call;
+        }
+
+        AsyncCall bumped = null;
+        boolean isShutdown;
+        synchronized (this) {
+            // A call submitted after shutdown is rejected below, without counting it against the limits
+            isShutdown = shutdown;
+            if (!isShutdown) {
+                if (canStartLocked(call)) {
+                    startLocked(call);
+                    return call;
+                }
+                if (getQueuedCallCount() >= maxQueuedRequests) {
+                    bumped = takeLowerPriorityCallLocked(priority);
+                }
+                if (getQueuedCallCount() < maxQueuedRequests) {
+                    readyCalls.get(priority.ordinal()).add(call);
+                    if (bumped == null) {
+                        return call;
+                    }
+                }
+            }
+        }
+
+        if (isShutdown) {
+            Log.e(TAG, "Web service executor shut down, rejecting request to " + url);
+            call.reject(new RejectedExecutionException("Web service executor shut down"));
+            return call;
+        }
+        if (bumped != null) {
+            Log.w(TAG, "Web service queue full, bumping " + bumped.priority + " request for " + priority + " request");
+            bumped.reject(new RejectedExecutionException("Bumped by a " + priority + " request"));
+            return call;
+        }
+
+        // Queue is full, fail the call without running it
+        Log.e(TAG, "Web service queue full, rejecting request to " + url);
+        call.reject(new RejectedExecutionException("Web service queue full (" + maxQueuedRequests + ")"));
+        return call;
+    }
+
+    /**
+     * Sets the transport carrying the calls submitted to this executor from now on, or reverts to the transport
+     * installed in {@link WebServiceUtils} when given null (the default)
+     *
+     * @param webServiceTransport the transport (may be null)
+     */
+    public void setTransport(WebServiceTransport webServiceTransport) {
+        transport = webServiceTransport;
+    }
+
+    /**
+     * Limits how many calls of a priority may run at once. By default interactive and normal calls may use every
+     * slot, and background calls half of them.
+     *
+     * @param priority the priority
+     * @param maxRequests maximum number of calls of the priority running at once
+     */
+    public synchronized void setMaxRequestsFor(Priority priority, int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("Invalid limit for " + priority + " requests: " + maxRequests);
+        }
+        maxRequestsPerPriority[priority.ordinal()] = maxRequests;
+    }
+
+    /**
+     * Cancels every queued call and stops the worker threads once running calls complete. The shared executor cannot
+     * be shut down.
+     */
+    public void shutdown() {
+        if (this == defaultExecutor) {
+            throw new IllegalStateException("The default web service executor cannot be shut down");
+        }
+        List<AsyncCall> queuedCalls = new ArrayList<AsyncCall>();
+        synchronized (this) {
+            // From here on, calls are rejected instead of queued or handed to the stopping thread pool
+            shutdown = true;
+            for (Deque<AsyncCall> calls : readyCalls) {
+                queuedCalls.addAll(calls);
+                calls.clear();
+            }
+        }
+        for (AsyncCall call : queuedCalls) {
+            call.cancel(false);
+        }
+        threadPool.shutdown();
+    }
+
+    /**
+     * @return the number of calls waiting to run
+     */
+    public synchronized int getQueuedCallCount() {
+        int count = 0;
+        for (Deque<AsyncCall> calls : readyCalls) {
+            count += calls.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of calls currently running
+     */
+    public synchronized int getRunningCallCount() {
+        return runningCalls;
+    }
+
+    /**
+     * Hands a call to the thread pool and counts it against the limits. Must hold the lock on this.
+     */
+    private void startLocked(AsyncCall call) {
+        runningCalls++;
+        addHostCall(runningCallsPerHost, call.host, 1);
+        if (call.priority == Priority.BACKGROUND) {
+            addHostCall(runningBackgroundCallsPerHost, call.host, 1);
+        }
+        runningCallsPerPriority[call.priority.ordinal()]++;
+        threadPool.execute(call);
+    }
+
+    /**
+     * @return true if the limits leave room to start a call. Must hold the lock on this.
+     */
+    private boolean canStartLocked(AsyncCall call) {
+        int priority = call.priority.ordinal();
+        if (runningCalls >= maxRequests || runningCallsPerPriority[priority] >= maxRequestsPerPriority[priority]) {
+            return false;
+        }
+        int hostCalls = hostCallsFor(runningCallsPerHost, call.host);
+        if (call.priority == Priority.INTERACTIVE) {
+            // Background calls never hold up a call the user is waiting on, even when they fill the host
+            return hostCalls - hostCallsFor(runningBackgroundCallsPerHost, call.host) < maxRequestsPerHost;
+        }
+        if (call.priority == Priority.BACKGROUND) {
+            // Leave one of the host's slots to the other priorities
+            return hostCalls < Math.max(1, maxRequestsPerHost - 1);
+        }
+        return hostCalls < maxRequestsPerHost;
+    }
+
+    /**
+     * Removes the most recently queued call of the lowest priority below the given one. Must hold the lock on this.
+     *
+     * @return the removed call, or null if no lower priority call is queued
+     */
+    private AsyncCall takeLowerPriorityCallLocked(Priority priority) {
+        for (int i = readyCalls.size() - 1; i > priority.ordinal(); i--) {
+            AsyncCall call = readyCalls.get(i).pollLast();
+            if (call != null) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the slot held by a finished call and starts as many waiting calls as the limits allow
+     */
+    private synchronized void finished(AsyncCall call) {
+        runningCalls--;
+        addHostCall(runningCallsPerHost, call.host, -1);
+        if (call.priority == Priority.BACKGROUND) {
+            addHostCall(runningBackgroundCallsPerHost, call.host, -1);
+        }
+        runningCallsPerPriority[call.priority.ordinal()]--;
+
+        // Promote waiting calls whose host and priority have room, highest priority first and in submission order
+        // otherwise
+        for (Deque<AsyncCall> calls : readyCalls) {
+            Iterator<AsyncCall> iterator = calls.iterator();
+            while (iterator.hasNext() && runningCalls < maxRequests) {
+                AsyncCall next = iterator.next();
+                if (canStartLocked(next)) {
+                    iterator.remove();
+                    startLocked(next);
+                }
+            }
+        }
+    }
+
+    private static int hostCallsFor(Map<String, Integer> callsPerHost, String host) {
+        Integer count = callsPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private static void addHostCall(Map<String, Integer> callsPerHost, String host, int delta) {
+        int count = hostCallsFor(callsPerHost, host) + delta;
+        if (count > 0) {
+            callsPerHost.put(host, count);
+        }
+        else {
+            callsPerHost.remove(host);
+        }
+    }
+
+    /**
+     * A queued or running web service call
+     */
+    private class AsyncCall extends FutureTask<WebServiceResponse> {
+
+        private final String host;
+        private final Priority priority;
+        private final WebServiceCancellationToken token;
+        private final WebServiceCallback callback;
+        private final WebServiceCallback completionCallback;
+
+        AsyncCall(String host, final Callable<WebServiceResponse> request, Priority priority,
+                  final WebServiceCancellationToken token, WebServiceCallback callback,
+                  WebServiceCallback completionCallback) {
+            super(new Callable<WebServiceResponse>() {
+                @Override
+                public WebServiceResponse call() throws Exception {
+                    return token.runWith(request);
+                }
+            });
+            this.host = host;
+            this.priority = priority;
+            this.token = token;
+            this.callback = callback;
+            this.completionCallback = completionCallback;
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            }
+            finally {
+                finished(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning) {
+                // Abort the call in flight
+                token.cancel();
+            }
+            return cancelled;
+        }
+
+        /**
+         * Completes this call with a failed response without running it
+         */
+        void reject(Exception e) {
+            WebServiceResponse response = new WebServiceResponse();
+            response.setException(e);
+            set(response);
+        }
+
+        @Override
+        protected void done() {
+            // Detach the call's token from its parent
+            token.cancel();
+            if (isCancelled()) {
+                // Drop the call if it never left the queue
+                synchronized (WebServiceExecutor.this) {
+                    readyCalls.get(priority.ordinal()).remove(this);
+                }
+            }
+            if (completionCallback != null) {
+                completionCallback.onResponse(getResponse());
+            }
+            if (callback != null && !isCancelled()) {
+                final WebServiceResponse response = getResponse();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResponse(response);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Returns the result of this completed call, turning an unexpected failure into a failed response
+         */
+        private WebServiceResponse getResponse() {
+            WebServiceResponse response;
+            try {
+                return get();
+            }
+            catch (CancellationException e) {
+                response = new WebServiceResponse();
+                response.setException(e);
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Web service call failed unexpectedly", e);
+                response = new WebServiceResponse();
+                response.setException(e);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Priority of a call, highest first
+     */
+    public enum Priority {
+        /** A call the user is waiting on **/
+        INTERACTIVE,
+        /** The default **/
+        NORMAL,
+        /** Prefetching and syncing that nobody is waiting on **/
+        BACKGROUND
+    }
+
+    /**
+     * Names worker threads so they can be told apart in traces
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "WebService #" + threadCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts the tail latency of idempotent GET requests by hedging: if a call hasn't completed after a delay, a second
+ * identical call is sent and whichever succeeds first is used, while the other is cancelled. Install with
+ * {@link WebServiceUtils#setHedger(WebServiceHedger)}.
+ * <p>
+ * The delay tracks a percentile of each endpoint's recent latencies, so only calls that are already slower than
+ * usual get hedged. Hedges are paid for out of a budget that grows by a fixed fraction of a request with every call,
+ * which caps the extra load on the backend at that fraction no matter how slow it gets. Hedges sent and won are
+ * reported to the installed {@link WebServiceMetricsListener}.
+ * <p>
+ * The losing call's response is released. Call {@link #shutdown()} on a hedger that is no longer used.
+ */
+public class WebServiceHedger {
+
+    private static final String TAG = WebServiceHedger.class.getName();
+
+    // Defaults
+    public static final double DEFAULT_DELAY_PERCENTILE = 0.95;
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+    public static final long DEFAULT_MIN_DELAY_MS = 50;
+    public static final long DEFAULT_MAX_DELAY_MS = 2000;
+    // Latencies an endpoint needs before its percentile is trusted; until then the maximum delay is used
+    private static final int MIN_SAMPLES = 20;
+    // Largest burst of hedges the budget can save up for
+    private static final double MAX_BUDGET = 10;
+    // Hedges running at once; hedges beyond this are skipped
+    private static final int MAX_CONCURRENT_HEDGES = 4;
+    // How long idle hedging threads are kept around
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final double delayPercentile;
+    private final double maxHedgeRatio;
+    private final long minDelayMs;
+    private final long maxDelayMs;
+
+    // Recent latencies per endpoint
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    // Hedges that may still be sent. Guarded by this.
+    private double budget = 1;
+
+    // Fires hedges once their delay has passed
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new HedgeThreadFactory());
+    // Runs hedged calls
+    private final ThreadPoolExecutor hedgePool = new ThreadPoolExecutor(0, MAX_CONCURRENT_HEDGES, KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new HedgeThreadFactory());
+
+    // Statistics
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+    private final AtomicLong suppressedHedgeCount = new AtomicLong();
+
+    /**
+     * Constructs a hedger with the default settings
+     */
+    public WebServiceHedger() {
+        this(DEFAULT_DELAY_PERCENTILE, DEFAULT_MAX_HEDGE_RATIO, DEFAULT_MIN_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * Constructs a hedger
+     *
+     * @param delayPercentile latency percentile, between 0 and 1, after which a call is hedged
+     * @param maxHedgeRatio largest fraction of calls that may be hedged, e.g. 0.05 for at most 5% extra calls
+     * @param minDelayMs lower bound of the hedging delay, in milliseconds
+     * @param maxDelayMs upper bound of the hedging delay, also used until an endpoint has enough latency samples
+     */
+    public WebServiceHedger(double delayPercentile, double maxHedgeRatio, long minDelayMs, long maxDelayMs) {
+        if (delayPercentile <= 0 || delayPercentile >= 1 || maxHedgeRatio < 0 || minDelayMs < 0
+                || maxDelayMs < minDelayMs) {
+            throw new IllegalArgumentException("Invalid hedging settings");
+        }
+        this.delayPercentile = delayPercentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        timer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Makes a call on the calling thread, hedging it with a second call on a background thread if it is slow
+     *
+     * @param method the HTTP method, used to group latencies by endpoint
+     * @param url the URL being called, used to group latencies by endpoint
+     * @param call the call to make; it is run at most twice, concurrently, and must be idempotent
+     * @return the response of the first call to succeed, or of the primary call if neither succeeded
+     */
+    public WebServiceResponse execute(final String method, final URL url, final Callable<WebServiceResponse> call) {
+        final String endpoint = WebServiceMetrics.endpointOf(method, url);
+        WebServiceCancellationToken parent = WebServiceCancellationToken.current();
+        final HedgedCall hedgedCall = new HedgedCall(parent);
+        // The hedge runs on another thread, but must go out the way the caller's call does
+        final Callable<WebServiceResponse> hedge =
+                WebServiceTimeoutPolicy.inheritTimeouts(WebServiceUtils.inheritTransport(call));
+
+        synchronized (this) {
+            budget = Math.min(MAX_BUDGET, budget + maxHedgeRatio);
+        }
+
+        // Schedule the hedge, to be cancelled if the primary call completes in time
+        ScheduledFuture<?> hedgeTimer = null;
+        try {
+            hedgeTimer = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    startHedge(method, url, hedge, hedgedCall);
+                }
+            }, delayFor(endpoint), TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // Shut down, make the call without a hedge
+        }
+
+        long startNanos = System.nanoTime();
+        WebServiceResponse primary = runWith(hedgedCall.primaryToken, call);
+        if (hedgeTimer != null) {
+            hedgeTimer.cancel(false);
+        }
+        WebServiceResponse response = hedgedCall.primaryCompleted(primary);
+        // What the caller waited, whichever call won; a winning hedge's own time leaves out its delay
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (hedgedCall.wasHedged()) {
+            boolean hedgeWon = response != primary;
+            if (hedgeWon) {
+                hedgeWinCount.incrementAndGet();
+                Log.i(TAG, "Hedged request won: " + url);
+            }
+            WebServiceMetricsListener listener = WebServiceUtils.getMetricsListener();
+            if (listener != null) {
+                listener.onRequestHedged(method, url, hedgeWon);
+            }
+        }
+        recordLatency(endpoint, response, latencyMs);
+
+        // Both calls are finished or abandoned by now; cancelling detaches their tokens from the caller's
+        hedgedCall.primaryToken.cancel();
+        hedgedCall.hedgeToken.cancel();
+        return response;
+    }
+
+    /**
+     * @return number of hedged calls sent
+     */
+    public long getHedgeCount() { return hedgeCount.get(); }
+
+    /**
+     * @return number of hedged calls whose response was used instead of the primary call's
+     */
+    public long getHedgeWinCount() { return hedgeWinCount.get(); }
+
+    /**
+     * @return number of calls that were slow enough to hedge but weren't, because the budget was exhausted
+     */
+    public long getSuppressedHedgeCount() { return suppressedHedgeCount.get(); }
+
+    /**
+     * Stops sending hedges and lets the hedging threads finish. Calls made afterwards are simply not hedged; hedges
+     * already in flight complete normally.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        hedgePool.shutdown();
+    }
+
+    /**
+     * Sends the hedge for a slow call, if the budget allows it
+     */
+    private void startHedge(final String method, final URL url, final Callable<WebServiceResponse> call,
+                            final HedgedCall hedgedCall) {
+        if (!tryAcquireBudget()) {
+            suppressedHedgeCount.incrementAndGet();
+            return;
+        }
+        if (!hedgedCall.hedgeStarting()) {
+            // The primary call completed while the timer was firing
+            refundBudget();
+            return;
+        }
+
+        try {
+            hedgePool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "Hedging slow HTTP " + method + " request: " + url);
+                    hedgeCount.incrementAndGet();
+                    hedgedCall.hedgeCompleted(runWith(hedgedCall.hedgeToken, call));
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // Too many hedges in flight already
+            suppressedHedgeCount.incrementAndGet();
+            refundBudget();
+            hedgedCall.hedgeAbandoned();
+        }
+    }
+
+    /**
+     * @return how long to wait for an endpoint before hedging, in milliseconds
+     */
+    private long delayFor(String endpoint) {
+        LatencyHistogram histogram = latencies.get(endpoint);
+        if (histogram == null || histogram.getCount() < MIN_SAMPLES) {
+            return maxDelayMs;
+        }
+        return Math.max(minDelayMs, Math.min(maxDelayMs, histogram.getPercentile(delayPercentile)));
+    }
+
+    private void recordLatency(String endpoint, WebServiceResponse response, long latencyMs) {
+        if (!isSuccessful(response)) {
+            return;
+        }
+        LatencyHistogram histogram = latencies.get(endpoint);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = latencies.putIfAbsent(endpoint, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(latencyMs);
+    }
+
+    private synchronized boolean tryAcquireBudget() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    private synchronized void refundBudget() {
+        budget = Math.min(MAX_BUDGET, budget + 1);
+    }
+
+    private static boolean isSuccessful(WebServiceResponse response) {
+        return response != null && response.getException() == null && response.getHttpResponseCode() > 0
+                && response.getHttpResponseCode() < 500;
+    }
+
+    /**
+     * Runs a call with the given cancellation token current, turning an unexpected failure into a failed response
+     */
+    private static WebServiceResponse runWith(WebServiceCancellationToken token, Callable<WebServiceResponse> call) {
+        try {
+            return token.runWith(call);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Web service call failed unexpectedly", e);
+            WebServiceResponse response = new WebServiceResponse();
+            response.setException(e);
+            return response;
+        }
+    }
+
+    /**
+     * Coordinates the primary call and its hedge, so that exactly one response wins and the other call is cancelled
+     * and its response released
+     */
+    private static class HedgedCall {
+
+        final WebServiceCancellationToken primaryToken;
+        final WebServiceCancellationToken hedgeToken;
+
+        // All guarded by this
+        private boolean hedgeStarted;
+        private boolean hedgeDone;
+        private WebServiceResponse hedgeResponse;
+        private WebServiceResponse winner;
+
+        HedgedCall(WebServiceCancellationToken parent) {
+            // Cancelling the caller's token cancels both calls
+            primaryToken = parent != null ? parent.newChild() : new WebServiceCancellationToken();
+            hedgeToken = parent != null ? parent.newChild() : new WebServiceCancellationToken();
+        }
+
+        /**
+         * @return false if the primary call has already completed, in which case the hedge must not be sent
+         */
+        synchronized boolean hedgeStarting() {
+            if (winner != null) {
+                return false;
+            }
+            hedgeStarted = true;
+            return true;
+        }
+
+        /**
+         * Undoes {@link #hedgeStarting()} when the hedge couldn't be sent after all
+         */
+        synchronized void hedgeAbandoned() {
+            hedgeStarted = false;
+            hedgeDone = true;
+            notifyAll();
+        }
+
+        synchronized boolean wasHedged() {
+            return hedgeStarted;
+        }
+
+        /**
+         * Records the hedge's response and, if it succeeded first, cancels the primary call
+         *
+         * @param response the hedge's response, or null if it couldn't be sent
+         */
+        void hedgeCompleted(WebServiceResponse response) {
+            boolean won;
+            boolean lost;
+            synchronized (this) {
+                hedgeDone = true;
+                hedgeResponse = response;
+                lost = winner != null;
+                won = !lost && isSuccessful(response);
+                if (won) {
+                    winner = response;
+                }
+                notifyAll();
+            }
+            if (won) {
+                primaryToken.cancel();
+            }
+            else if (lost) {
+                release(response);
+            }
+        }
+
+        /**
+         * Records the primary call's response and picks the response to return. If the primary call failed while the
+         * hedge is still running, waits for the hedge.
+         *
+         * @param primary the primary call's response
+         * @return the winning response
+         */
+        WebServiceResponse primaryCompleted(WebServiceResponse primary) {
+            boolean cancelHedge = false;
+            WebServiceResponse loser = null;
+            try {
+                synchronized (this) {
+                    if (winner != null) {
+                        // The hedge won and cancelled the primary call
+                        loser = primary;
+                        return winner;
+                    }
+                    if (!hedgeStarted || isSuccessful(primary)) {
+                        winner = primary;
+                        // A hedge still running releases its own response once it sees it lost
+                        cancelHedge = hedgeStarted && !hedgeDone;
+                        loser = hedgeResponse;
+                        return primary;
+                    }
+
+                    // The primary call failed, give the hedge its chance
+                    while (!hedgeDone) {
+                        try {
+                            wait();
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            cancelHedge = true;
+                            break;
+                        }
+                    }
+                    winner = isSuccessful(hedgeResponse) ? hedgeResponse : primary;
+                    loser = winner == primary ? hedgeResponse : primary;
+                    return winner;
+                }
+            }
+            finally {
+                if (cancelHedge) {
+                    hedgeToken.cancel();
+                }
+                release(loser);
+            }
+        }
+
+        private static void release(WebServiceResponse response) {
+            if (response != null) {
+                response.release();
+            }
+        }
+    }
+
+    /**
+     * Names hedging threads so they can be told apart in traces
+     */
+    private static class HedgeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "WebServiceHedge #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates web service timings in memory, per endpoint, to find slow endpoints. An endpoint is the method, host and
+ * path of a call; query strings are ignored so that calls differing only in their parameters are grouped together.
+ * <p>
+ * Install with {@link WebServiceUtils#setMetricsListener(WebServiceMetricsListener)} and periodically read
+ * {@link #getEndpointMetrics()} or {@link #logSummary()}.
+ */
+public class WebServiceMetrics implements WebServiceMetricsListener {
+
+    private static final String TAG = WebServiceMetrics.class.getName();
+
+    private final ConcurrentHashMap<String, EndpointMetrics> endpoints =
+            new ConcurrentHashMap<String, EndpointMetrics>();
+
+    @Override
+    public void onRequestCompleted(String method, URL url, WebServiceResponse response) {
+        getOrCreate(endpointOf(method, url)).record(response);
+    }
+
+    @Override
+    public void onRequestHedged(String method, URL url, boolean hedgeWon) {
+        getOrCreate(endpointOf(method, url)).recordHedge(hedgeWon);
+    }
+
+    @Override
+    public void onRequestThrottled(String method, URL url, long delayMs, boolean rejected) {
+        getOrCreate(endpointOf(method, url)).recordThrottle(delayMs, rejected);
+    }
+
+    /**
+     * @return the metrics collected so far, keyed by endpoint and sorted by endpoint
+     */
+    public Map<String, EndpointMetrics> getEndpointMetrics() {
+        return Collections.unmodifiableMap(new TreeMap<String, EndpointMetrics>(endpoints));
+    }
+
+    /**
+     * Returns the metrics of a single endpoint
+     *
+     * @param method the HTTP method
+     * @param url any URL of the endpoint
+     * @return the endpoint's metrics, or null if it hasn't been called
+     */
+    public EndpointMetrics getEndpointMetrics(String method, String url) {
+        return endpoints.get(endpointOf(method, url));
+    }
+
+    /**
+     * Clears all collected metrics
+     */
+    public void reset() {
+        endpoints.clear();
+    }
+
+    /**
+     * Logs one line per endpoint with its latency percentiles
+     */
+    public void logSummary() {
+        for (Map.Entry<String, EndpointMetrics> endpoint : getEndpointMetrics().entrySet()) {
+            Log.i(TAG, endpoint.getKey() + ": " + endpoint.getValue());
+        }
+    }
+
+    EndpointMetrics getOrCreate(String endpoint) {
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if (metrics == null) {
+            EndpointMetrics created = new EndpointMetrics();
+            metrics = endpoints.putIfAbsent(endpoint, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the endpoint a call belongs to, e.g. "GET api.example.com/shops/jobs"
+     */
+    static String endpointOf(String method, URL url) {
+        return method + " " + url.getHost() + url.getPath();
+    }
+
+    /**
+     * @return the endpoint of a URL given as a string, or the URL itself if it is malformed
+     */
+    static String endpointOf(String method, String url) {
+        try {
+            return endpointOf(method, new URL(url));
+        }
+        catch (MalformedURLException e) {
+            return method + " " + url;
+        }
+    }
+
+    /**
+     * Latency histograms and totals for a single endpoint
+     */
+    public static class EndpointMetrics {
+
+        private final LatencyHistogram totalTime = new LatencyHistogram();
+        private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+        private final AtomicLong failureCount = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong hedgeCount = new AtomicLong();
+        private final AtomicLong hedgeWinCount = new AtomicLong();
+        private final AtomicLong delayedCount = new AtomicLong();
+        private final AtomicLong totalDelayMs = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        void record(WebServiceResponse response) {
+            totalTime.record(response.getTotalTimeMs());
+            if (response.getException() != null) {
+                failureCount.incrementAndGet();
+            }
+            else {
+                timeToFirstByte.record(response.getTimeToFirstByteMs());
+            }
+            bytesSent.addAndGet(response.getRequestBodyBytesSent());
+            bytesReceived.addAndGet(response.getResponseBodyBytesReceived());
+        }
+
+        void recordHedge(boolean hedgeWon) {
+            hedgeCount.incrementAndGet();
+            if (hedgeWon) {
+                hedgeWinCount.incrementAndGet();
+            }
+        }
+
+        void recordThrottle(long delayMs, boolean rejected) {
+            if (rejected) {
+                rejectedCount.incrementAndGet();
+            }
+            else {
+                delayedCount.incrementAndGet();
+                totalDelayMs.addAndGet(delayMs);
+            }
+        }
+
+        /** Total call time, from opening the connection to reading the last byte of the body **/
+        public LatencyHistogram getTotalTime() { return totalTime; }
+
+        /** Time from sending the request to receiving the response headers, for calls that got a response **/
+        public LatencyHistogram getTimeToFirstByte() { return timeToFirstByte; }
+
+        /** Number of calls that failed with an exception **/
+        public long getFailureCount() { return failureCount.get(); }
+
+        /** Request body bytes sent over the network **/
+        public long getBytesSent() { return bytesSent.get(); }
+
+        /** Response body bytes received over the network **/
+        public long getBytesReceived() { return bytesReceived.get(); }
+
+        /** Number of calls that were hedged with a second call **/
+        public long getHedgeCount() { return hedgeCount.get(); }
+
+        /** Number of hedged calls whose hedge responded first **/
+        public long getHedgeWinCount() { return hedgeWinCount.get(); }
+
+        /** Number of call attempts delayed by the rate limiter **/
+        public long getThrottleDelayedCount() { return delayedCount.get(); }
+
+        /** Total time call attempts spent waiting for the rate limiter, in milliseconds **/
+        public long getThrottleDelayMs() { return totalDelayMs.get(); }
+
+        /** Number of call attempts rejected by the rate limiter **/
+        public long getThrottleRejectedCount() { return rejectedCount.get(); }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "total[%s] ttfb[%s] failures=%d sent=%dB received=%dB hedges=%d/%d"
+                    + " throttled=%d/%dms rejected=%d", totalTime, timeToFirstByte, getFailureCount(), getBytesSent(),
+                    getBytesReceived(), getHedgeWinCount(), getHedgeCount(), getThrottleDelayedCount(),
+                    getThrottleDelayMs(), getThrottleRejectedCount());
+        }
+    }
+}
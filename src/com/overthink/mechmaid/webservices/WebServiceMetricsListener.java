@@ -0,0 +1,41 @@
+package com.overthink.mechmaid.webservices;
+
+import java.net.URL;
+
+/**
+ * Notified after every web service call made through {@link WebServiceUtils}, successful or not. Install one with
+ * {@link WebServiceUtils#setMetricsListener(WebServiceMetricsListener)}. Listeners are called on the thread that made
+ * the call, so they must be thread safe and quick. Calls whose URL is malformed fail without being reported.
+ */
+public interface WebServiceMetricsListener {
+
+    /**
+     * Called once a call has completed
+     *
+     * @param method the HTTP method of the call
+     * @param url the URL that was called
+     * @param response the response, carrying the call's timings and byte counts
+     */
+    void onRequestCompleted(String method, URL url, WebServiceResponse response);
+
+    /**
+     * Called when a slow call was hedged with a second, identical call, once it is known which of the two was used.
+     * Both calls are also reported to {@link #onRequestCompleted(String, URL, WebServiceResponse)}.
+     *
+     * @param method the HTTP method of the call
+     * @param url the URL that was called
+     * @param hedgeWon true if the hedge's response was used, false if the original call's was
+     */
+    void onRequestHedged(String method, URL url, boolean hedgeWon);
+
+    /**
+     * Called when a call attempt was held back by the {@link WebServiceRateLimiter}. Delayed attempts go on to be
+     * reported to {@link #onRequestCompleted(String, URL, WebServiceResponse)}; rejected ones are not.
+     *
+     * @param method the HTTP method of the call
+     * @param url the URL of the call
+     * @param delayMs how long the attempt waited for the rate limit, in milliseconds, or 0 if it was rejected
+     * @param rejected true if the attempt failed because waiting would have taken too long
+     */
+    void onRequestThrottled(String method, URL url, long delayMs, boolean rejected);
+}
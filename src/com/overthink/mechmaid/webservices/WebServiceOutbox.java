@@ -0,0 +1,546 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable queue of POST requests that must reach the server eventually, even if the device is offline or the
+ * process dies before they can be sent.
+ * <p>
+ * Requests are appended to an on-disk, append-only log and synced before {@link #enqueue(String, String)} returns.
+ * {@link #flush()} replays the log in order, in batches sent with bounded concurrency, and records how far the server
+ * has acknowledged it. Log segments whose requests have all been acknowledged are deleted. The log is streamed from
+ * disk, so thousands of queued requests never need to be held in memory at once.
+ * <p>
+ * Delivery is at least once: a request sent successfully after an earlier request in its batch failed is sent again
+ * on the next flush. Requests the server rejects for good, as malformed (400, 413, 415, 422) or as conflicting with
+ * its state (409, 410), are dropped, since resending them can't help. Any other failure, including an expired session
+ * (401, 403) or a missing endpoint (404), stops the flush and keeps the request for the next one.
+ * Call {@link #flushAsync()} whenever connectivity returns, e.g. from a CONNECTIVITY_ACTION broadcast receiver.
+ */
+public class WebServiceOutbox {
+
+    private static final String TAG = WebServiceOutbox.class.getName();
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 2;
+    // Size at which a new log segment is started
+    private static final long MAX_SEGMENT_BYTES = 256 * 1024;
+    // Larger lengths can only come from a corrupt record
+    private static final int MAX_RECORD_BODY_BYTES = 16 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String ACK_FILE_NAME = "outbox.ack";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Not defined by HttpURLConnection
+    private static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+
+    private final File directory;
+    private final int batchSize;
+    private final ExecutorService senderPool;
+    // Runs flushAsync(); separate from senderPool so that a flush never waits on requests queued behind itself
+    private final ExecutorService flushExecutor;
+    // Only one flush runs at a time
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    // All guarded by this
+    // Sequence number of the next enqueued request; sequence numbers start at 1
+    private long nextSequence;
+    // Highest sequence number acknowledged by the server
+    private long acknowledgedSequence;
+    // Segment currently being appended to, and its size
+    private File currentSegment;
+    private long currentSegmentBytes;
+
+    /**
+     * Opens an outbox with the default batch size and concurrency, recovering any requests queued by earlier processes
+     *
+     * @param directory directory holding the outbox log (e.g. a subdirectory of Context.getFilesDir())
+     * @throws IOException if the log cannot be opened
+     */
+    public WebServiceOutbox(File directory) throws IOException {
+        this(directory, DEFAULT_BATCH_SIZE, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /**
+     * Opens an outbox, recovering any requests queued by earlier processes
+     *
+     * @param directory directory holding the outbox log (e.g. a subdirectory of Context.getFilesDir())
+     * @param batchSize number of requests read from the log and sent per batch
+     * @param maxConcurrentRequests number of requests of a batch sent at once
+     * @throws IOException if the log cannot be opened
+     */
+    public WebServiceOutbox(File directory, int batchSize, int maxConcurrentRequests) throws IOException {
+        if (batchSize < 1 || maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("Invalid outbox limits");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create outbox directory " + directory);
+        }
+        this.directory = directory;
+        this.batchSize = batchSize;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "WebServiceOutbox #" + threadCount.incrementAndGet());
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        senderPool = pool;
+
+        ThreadPoolExecutor flushPool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "WebServiceOutbox flush");
+                    }
+                });
+        flushPool.allowCoreThreadTimeOut(true);
+        flushExecutor = flushPool;
+
+        recover();
+    }
+
+    /**
+     * Durably queues a POST request. The request is on disk when this method returns.
+     *
+     * @param url the URL to post to
+     * @param requestBody the body of the request
+     * @throws IOException if the request cannot be written to the log
+     */
+    public void enqueue(String url, String requestBody) throws IOException {
+        enqueue(url, requestBody.getBytes(WebServiceUtils.DEFAULT_CHARSET));
+    }
+
+    /**
+     * Durably queues a POST request. The request is on disk when this method returns.
+     *
+     * @param url the URL to post to
+     * @param requestBody the body of the request, already encoded
+     * @throws IOException if the request cannot be written to the log
+     */
+    public synchronized void enqueue(String url, byte[] requestBody) throws IOException {
+        if (currentSegment == null || currentSegmentBytes >= MAX_SEGMENT_BYTES) {
+            currentSegment = segmentFile(nextSequence);
+            currentSegmentBytes = 0;
+        }
+
+        byte[] record = encodeRecord(nextSequence, url, requestBody);
+        FileOutputStream out = new FileOutputStream(currentSegment, true);
+        try {
+            out.write(record);
+            // Don't report success until the request would survive a crash
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        currentSegmentBytes += record.length;
+        nextSequence++;
+    }
+
+    /**
+     * Sends queued requests in the background
+     */
+    public void flushAsync() {
+        flushExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Sends queued requests, in order, until the outbox is empty or a request fails. Returns right away if a flush is
+     * already running. Must not be called on the main thread, nor from a task running on this outbox's senders.
+     *
+     * @return number of requests acknowledged by this flush
+     */
+    public int flush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return 0;
+        }
+        int acknowledged = 0;
+        LogReader reader = null;
+        try {
+            reader = new LogReader(getAcknowledgedSequence());
+            List<Record> batch;
+            while (!(batch = reader.read(batchSize)).isEmpty()) {
+                int sent = sendBatch(batch);
+                acknowledged += sent;
+                if (sent < batch.size()) {
+                    // Keep the rest for the next flush, in order
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Could not read outbox log", e);
+        }
+        finally {
+            if (reader != null) {
+                reader.close();
+            }
+            flushing.set(false);
+        }
+        Log.i(TAG, "Outbox flush acknowledged " + acknowledged + " requests, " + getPendingCount() + " pending");
+        return acknowledged;
+    }
+
+    /**
+     * @return number of queued requests not yet acknowledged by the server
+     */
+    public synchronized long getPendingCount() {
+        return nextSequence - 1 - acknowledgedSequence;
+    }
+
+    /**
+     * Sends a batch concurrently and acknowledges the longest prefix of it that went through
+     *
+     * @return number of requests acknowledged
+     */
+    private int sendBatch(List<Record> batch) throws IOException {
+        List<Future<WebServiceResponse>> responses = new ArrayList<Future<WebServiceResponse>>(batch.size());
+        for (final Record record : batch) {
+            responses.add(senderPool.submit(new Callable<WebServiceResponse>() {
+                @Override
+                public WebServiceResponse call() {
+                    return WebServiceUtils.makeHttpPostRequestWith(record.url, record.body);
+                }
+            }));
+        }
+
+        int acknowledged = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            WebServiceResponse response;
+            try {
+                response = responses.get(i).get();
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Outbox request failed unexpectedly", e);
+                break;
+            }
+            if (!isDelivered(batch.get(i), response)) {
+                break;
+            }
+            acknowledged++;
+        }
+
+        if (acknowledged > 0) {
+            acknowledge(batch.get(acknowledged - 1).sequence);
+        }
+        return acknowledged;
+    }
+
+    /**
+     * @return true if the server has dealt with a request for good, successfully or not
+     */
+    private static boolean isDelivered(Record record, WebServiceResponse response) {
+        int responseCode = response.getHttpResponseCode();
+        if (response.getException() == null && responseCode >= 200 && responseCode < 300) {
+            return true;
+        }
+        if (isPermanentRejection(responseCode)) {
+            Log.e(TAG, "Dropping outbox request " + record.sequence + " rejected with HTTP " + responseCode);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a response code says the request itself is unacceptable, so that it will never succeed
+     */
+    private static boolean isPermanentRejection(int responseCode) {
+        switch (responseCode) {
+            case HttpURLConnection.HTTP_BAD_REQUEST:
+            case HttpURLConnection.HTTP_CONFLICT:
+            case HttpURLConnection.HTTP_GONE:
+            case HttpURLConnection.HTTP_ENTITY_TOO_LARGE:
+            case HttpURLConnection.HTTP_UNSUPPORTED_TYPE:
+            case HTTP_UNPROCESSABLE_ENTITY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Durably records that every request up to a sequence number has been delivered, then deletes fully acknowledged
+     * log segments
+     */
+    private synchronized void acknowledge(long sequence) throws IOException {
+        File ackFile = new File(directory, ACK_FILE_NAME);
+        File tempFile = new File(directory, ACK_FILE_NAME + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeLong(sequence);
+            data.flush();
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(ackFile)) {
+            throw new IOException("Could not update " + ackFile);
+        }
+        acknowledgedSequence = sequence;
+
+        // A segment is done once the next segment starts at or before the first unacknowledged request
+        File[] segments = listSegments();
+        for (int i = 0; i + 1 < segments.length; i++) {
+            if (firstSequenceOf(segments[i + 1]) <= acknowledgedSequence + 1) {
+                if (segments[i].equals(currentSegment)) {
+                    currentSegment = null;
+                }
+                if (!segments[i].delete()) {
+                    Log.w(TAG, "Could not delete outbox segment " + segments[i]);
+                }
+            }
+        }
+        if (getPendingCount() == 0 && segments.length > 0) {
+            // Everything is acknowledged, start over with a fresh segment
+            File last = segments[segments.length - 1];
+            if (last.delete()) {
+                currentSegment = null;
+            }
+        }
+    }
+
+    /**
+     * Restores the outbox state from disk, discarding a record left half written by a crash
+     */
+    private synchronized void recover() throws IOException {
+        acknowledgedSequence = 0;
+        File ackFile = new File(directory, ACK_FILE_NAME);
+        if (ackFile.isFile()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(ackFile));
+            try {
+                acknowledgedSequence = in.readLong();
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        nextSequence = acknowledgedSequence + 1;
+        File[] segments = listSegments();
+        if (segments.length == 0) {
+            return;
+        }
+
+        // Only the last segment can have been interrupted mid-write
+        File last = segments[segments.length - 1];
+        long sequence = firstSequenceOf(last);
+        long validBytes = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(last)));
+        try {
+            Record record;
+            while ((record = readRecord(in)) != null) {
+                sequence = record.sequence + 1;
+                validBytes += record.encodedLength;
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        if (validBytes < last.length()) {
+            Log.w(TAG, "Truncating torn write at the end of " + last);
+            RandomAccessFile file = new RandomAccessFile(last, "rw");
+            try {
+                file.setLength(validBytes);
+            }
+            finally {
+                file.close();
+            }
+        }
+        nextSequence = Math.max(nextSequence, sequence);
+        currentSegment = last;
+        currentSegmentBytes = validBytes;
+    }
+
+    private synchronized long getAcknowledgedSequence() {
+        return acknowledgedSequence;
+    }
+
+    private File segmentFile(long firstSequence) {
+        // Zero padded so that segments sort by name
+        return new File(directory, String.format(Locale.US, "%s%020d%s", SEGMENT_PREFIX, firstSequence,
+                SEGMENT_SUFFIX));
+    }
+
+    private static long firstSequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return the log segments, oldest first
+     */
+    private File[] listSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        File[] segments = Arrays.copyOf(files, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Encodes a record as: body length, sequence number, URL, body, and a CRC32 of everything before it
+     */
+    private static byte[] encodeRecord(long sequence, String url, byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + url.length() + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(body.length);
+        out.writeLong(sequence);
+        out.writeUTF(url);
+        out.write(body);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the next record of a segment
+     *
+     * @return the record, or null at the end of the segment or at a record that was never completely written
+     */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int bodyLength = in.readInt();
+            if (bodyLength < 0 || bodyLength > MAX_RECORD_BODY_BYTES) {
+                // Garbage left by a torn write
+                return null;
+            }
+            long sequence = in.readLong();
+            String url = in.readUTF();
+            byte[] body = new byte[bodyLength];
+            in.readFully(body);
+            long storedCrc = in.readLong();
+
+            byte[] header = encodeRecord(sequence, url, body);
+            CRC32 crc = new CRC32();
+            crc.update(header, 0, header.length - 8);
+            if (crc.getValue() != storedCrc) {
+                return null;
+            }
+            return new Record(sequence, url, body, header.length);
+        }
+        catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A queued request
+     */
+    private static class Record {
+
+        final long sequence;
+        final String url;
+        final byte[] body;
+        final int encodedLength;
+
+        Record(long sequence, String url, byte[] body, int encodedLength) {
+            this.sequence = sequence;
+            this.url = url;
+            this.body = body;
+            this.encodedLength = encodedLength;
+        }
+    }
+
+    /**
+     * Streams unacknowledged records from the log segments, oldest first
+     */
+    private class LogReader {
+
+        private final long afterSequence;
+        private final List<File> segments;
+        private DataInputStream in;
+
+        LogReader(long afterSequence) {
+            this.afterSequence = afterSequence;
+            this.segments = new ArrayList<File>(Arrays.asList(listSegments()));
+        }
+
+        /**
+         * @return up to the given number of records, or an empty list once the log is exhausted
+         */
+        List<Record> read(int maxRecords) throws IOException {
+            List<Record> records = new ArrayList<Record>(maxRecords);
+            while (records.size() < maxRecords) {
+                if (in == null) {
+                    if (segments.isEmpty()) {
+                        break;
+                    }
+                    File segment = segments.remove(0);
+                    if (!segment.isFile()) {
+                        continue;
+                    }
+                    in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+                }
+                Record record = readRecord(in);
+                if (record == null) {
+                    close();
+                }
+                else if (record.sequence > afterSequence) {
+                    records.add(record);
+                }
+            }
+            return records;
+        }
+
+        void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    // Nothing more can be done
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast calls are made to each host, so that a sync loop or a bug can't flood a backend and get every user
+ * throttled by it. Install with {@link WebServiceUtils#setRateLimiter(WebServiceRateLimiter)}.
+ * <p>
+ * Each host has a token bucket that refills at a steady rate up to a burst size, and every call attempt (retries
+ * included) takes a token. A call that finds the bucket empty waits for the next token if that comes within the
+ * maximum delay, on the calling thread, and otherwise fails fast with a {@link RateLimitedException}. With a maximum
+ * delay of 0, calls over the rate are rejected outright. Individual endpoints can be given tighter limits, which apply
+ * on top of their host's.
+ * <p>
+ * Taking a token is a single compare-and-set on the bucket, without locking.
+ */
+public class WebServiceRateLimiter {
+
+    private static final String TAG = WebServiceRateLimiter.class.getName();
+
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 10;
+    public static final int DEFAULT_BURST = 20;
+    public static final long DEFAULT_MAX_DELAY_MS = 5 * 1000;
+
+    private final double requestsPerSecond;
+    private final int burst;
+    private final long maxDelayNanos;
+    private final ConcurrentHashMap<String, TokenBucket> hostBuckets = new ConcurrentHashMap<String, TokenBucket>();
+    // Buckets of endpoints with limits of their own, keyed as in WebServiceMetrics
+    private final ConcurrentHashMap<String, TokenBucket> endpointBuckets =
+            new ConcurrentHashMap<String, TokenBucket>();
+
+    /**
+     * Constructs a rate limiter with the default rate, burst and maximum delay for every host
+     */
+    public WebServiceRateLimiter() {
+        this(DEFAULT_REQUESTS_PER_SECOND, DEFAULT_BURST, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * Constructs a rate limiter
+     *
+     * @param requestsPerSecond sustained rate of calls allowed to each host
+     * @param burst calls allowed to a host at once after it has been idle
+     * @param maxDelayMs longest a call waits for a token before being rejected, in milliseconds; 0 rejects any call
+     *                   over the rate
+     */
+    public WebServiceRateLimiter(double requestsPerSecond, int burst, long maxDelayMs) {
+        if (!(requestsPerSecond > 0) || burst < 1 || maxDelayMs < 0) {
+            throw new IllegalArgumentException("Invalid rate limiter settings");
+        }
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = burst;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+    }
+
+    /**
+     * Gives a host a rate of its own instead of the default one
+     *
+     * @param host the host
+     * @param requestsPerSecond sustained rate of calls allowed to the host
+     * @param burst calls allowed to the host at once after it has been idle
+     */
+    public void setHostLimit(String host, double requestsPerSecond, int burst) {
+        hostBuckets.put(host, new TokenBucket(requestsPerSecond, burst));
+    }
+
+    /**
+     * Limits the calls to a single endpoint, on top of the limit of its host. An endpoint is the method, host and path
+     * of a call, as in {@link WebServiceMetrics}.
+     *
+     * @param method the HTTP method
+     * @param url any URL of the endpoint
+     * @param requestsPerSecond sustained rate of calls allowed to the endpoint
+     * @param burst calls allowed to the endpoint at once after it has been idle
+     */
+    public void setEndpointLimit(String method, String url, double requestsPerSecond, int burst) {
+        endpointBuckets.put(WebServiceMetrics.endpointOf(method, url), new TokenBucket(requestsPerSecond, burst));
+    }
+
+    /**
+     * Takes a token for a call, waiting for one if needed
+     *
+     * @param method the HTTP method of the call
+     * @param url the URL of the call
+     * @return how long the call was delayed, in milliseconds
+     * @throws RateLimitedException if no token is available within the maximum delay
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public long acquire(String method, URL url) throws RateLimitedException, InterruptedException {
+        String host = url.getHost();
+        long nowNanos = System.nanoTime();
+        long delayNanos = 0;
+        TokenBucket endpointBucket = null;
+        if (!endpointBuckets.isEmpty()) {
+            endpointBucket = endpointBuckets.get(WebServiceMetrics.endpointOf(method, url));
+            if (endpointBucket != null) {
+                delayNanos = endpointBucket.reserve(nowNanos, maxDelayNanos);
+                if (delayNanos < 0) {
+                    throw new RateLimitedException(host);
+                }
+            }
+        }
+        long hostDelayNanos = bucketFor(host).reserve(nowNanos, maxDelayNanos);
+        if (hostDelayNanos < 0) {
+            if (endpointBucket != null) {
+                endpointBucket.refund();
+            }
+            throw new RateLimitedException(host);
+        }
+        delayNanos = Math.max(delayNanos, hostDelayNanos);
+        if (delayNanos == 0) {
+            return 0;
+        }
+        long delayMs = TimeUnit.NANOSECONDS.toMillis(delayNanos);
+        Log.i(TAG, "Delaying HTTP " + method + " request to " + host + " by " + delayMs + " ms");
+        TimeUnit.NANOSECONDS.sleep(delayNanos);
+        return delayMs;
+    }
+
+    /**
+     * Refills every bucket, e.g. after connectivity changes
+     */
+    public void reset() {
+        for (TokenBucket bucket : hostBuckets.values()) {
+            bucket.reset();
+        }
+        for (TokenBucket bucket : endpointBuckets.values()) {
+            bucket.reset();
+        }
+    }
+
+    private TokenBucket bucketFor(String host) {
+        TokenBucket bucket = hostBuckets.get(host);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(requestsPerSecond, burst);
+            bucket = hostBuckets.putIfAbsent(host, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * A token bucket kept as the time at which it will next be full, so that taking a token is a single
+     * compare-and-set: the bucket has a token available whenever that time is less than a full burst ahead.
+     */
+    private static class TokenBucket {
+
+        // Nanoseconds for one token to refill
+        private final long intervalNanos;
+        // Nanoseconds for an empty bucket to refill completely
+        private final long burstNanos;
+        // System.nanoTime() at which the bucket will be full, if no more tokens are taken
+        private final AtomicLong fullAtNanos;
+
+        TokenBucket(double requestsPerSecond, int burst) {
+            if (!(requestsPerSecond > 0) || burst < 1) {
+                throw new IllegalArgumentException("Invalid rate limit");
+            }
+            intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+            burstNanos = intervalNanos * burst;
+            fullAtNanos = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Takes a token, or the next one to refill if the bucket is empty
+         *
+         * @return nanoseconds until the token is available, or -1 if that is longer than the maximum delay, in which
+         *         case no token was taken
+         */
+        long reserve(long nowNanos, long maxDelayNanos) {
+            while (true) {
+                long fullAt = fullAtNanos.get();
+                // A bucket that filled up in the past holds no more than a full burst
+                long newFullAt = (fullAt - nowNanos > 0 ? fullAt : nowNanos) + intervalNanos;
+                long delayNanos = newFullAt - nowNanos - burstNanos;
+                if (delayNanos > maxDelayNanos) {
+                    return -1;
+                }
+                if (fullAtNanos.compareAndSet(fullAt, newFullAt)) {
+                    return Math.max(0, delayNanos);
+                }
+            }
+        }
+
+        /**
+         * Gives back a token taken by a call that didn't go ahead
+         */
+        void refund() {
+            fullAtNanos.addAndGet(-intervalNanos);
+        }
+
+        void reset() {
+            fullAtNanos.set(System.nanoTime());
+        }
+    }
+
+    /**
+     * Thrown for a call rejected because its host or endpoint is over its rate limit
+     */
+    public static class RateLimitedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public RateLimitedException(String host) {
+            super("Rate limit exceeded for host " + host);
+        }
+    }
+}
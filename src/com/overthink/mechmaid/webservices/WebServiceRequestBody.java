@@ -0,0 +1,152 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a web service request. Bodies are written straight to the connection, so a body that produces its
+ * content as it goes (by overriding {@link #writeTo(OutputStream)}) is uploaded with constant memory.
+ * <p>
+ * Bodies of known length are sent with a Content-Length header; bodies of {@link #UNKNOWN_LENGTH} are sent with
+ * chunked transfer encoding. Use the static factory methods for content that is already in memory.
+ */
+public abstract class WebServiceRequestBody {
+
+    /** Content length of bodies whose size isn't known until they have been written **/
+    public static final long UNKNOWN_LENGTH = -1;
+
+    // Size of the chunks streamed to the connection when copying direct buffers
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * @return the exact number of bytes {@link #writeTo(OutputStream)} will write, or {@link #UNKNOWN_LENGTH}
+     */
+    public abstract long getContentLength();
+
+    /**
+     * Writes this body to the request. Implementations must not close the stream.
+     *
+     * @param out the request body stream
+     * @throws IOException if the body cannot be written, which fails the call
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Whether {@link #writeTo(OutputStream)} can be called more than once, which is required to retry a failed call.
+     * Bodies created by the factory methods are repeatable; other bodies are assumed not to be unless they say so.
+     *
+     * @return true if this body can be written again
+     */
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    /**
+     * @return the Content-Type header sent with this body
+     */
+    public String getContentType() {
+        return WebServiceUtils.REQUEST_PROPERTY_APPLICATION;
+    }
+
+    /**
+     * Creates a body holding a string, encoded once as UTF-8
+     *
+     * @param content the body content
+     * @return the request body
+     */
+    public static WebServiceRequestBody create(final String content) {
+        final byte[] bytes = content.getBytes(WebServiceUtils.DEFAULT_CHARSET);
+        return new ByteArrayRequestBody(bytes, 0, bytes.length) {
+            @Override
+            public String toString() {
+                return content;
+            }
+        };
+    }
+
+    /**
+     * Creates a body holding a byte array. The array is not copied and must not be modified until the call completes.
+     *
+     * @param content the body content
+     * @return the request body
+     */
+    public static WebServiceRequestBody create(byte[] content) {
+        return new ByteArrayRequestBody(content, 0, content.length);
+    }
+
+    /**
+     * Creates a body holding the remaining bytes of a buffer. The buffer's position is left untouched, so the body can
+     * be written more than once; its content must not be modified until the call completes.
+     *
+     * @param content the body content
+     * @return the request body
+     */
+    public static WebServiceRequestBody create(ByteBuffer content) {
+        if (content.hasArray()) {
+            return new ByteArrayRequestBody(content.array(), content.arrayOffset() + content.position(),
+                    content.remaining());
+        }
+
+        final ByteBuffer buffer = content.slice();
+        return new WebServiceRequestBody() {
+            @Override
+            public long getContentLength() {
+                return buffer.remaining();
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                ByteBuffer source = buffer.duplicate();
+                byte[] chunk = new byte[Math.min(COPY_BUFFER_SIZE, source.remaining())];
+                while (source.hasRemaining()) {
+                    int length = Math.min(chunk.length, source.remaining());
+                    source.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        long length = getContentLength();
+        return length == UNKNOWN_LENGTH ? "<streamed body>" : "<" + length + " byte body>";
+    }
+
+    /**
+     * A body backed by a region of a byte array
+     */
+    private static class ByteArrayRequestBody extends WebServiceRequestBody {
+
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        ByteArrayRequestBody(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, offset, length);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses identical requests that are in flight at the same time into a single call. The first caller for a key
+ * makes the call on its own thread; callers arriving while it is still running wait for it and receive the very same
+ * {@link WebServiceResponse}. Once the call completes the key is released, so later requests go out again.
+ * <p>
+ * A response received by more than one caller is marked as shared, so that {@link WebServiceResponse#release()} by
+ * one of them leaves the body in place for the others.
+ * <p>
+ * The call runs under a {@link WebServiceCancellationToken} of its own rather than the first caller's. A caller whose
+ * token is cancelled stops waiting and gets an {@link InterruptedIOException}; the call itself is only aborted once
+ * every caller waiting for it has been cancelled.
+ */
+public class WebServiceRequestCoalescer {
+
+    private static final String TAG = WebServiceRequestCoalescer.class.getName();
+
+    private final ConcurrentHashMap<String, InFlightCall> inFlightRequests =
+            new ConcurrentHashMap<String, InFlightCall>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong coalescedRequestCount = new AtomicLong();
+
+    /**
+     * Makes a call, or joins the identical call already in flight
+     *
+     * @param key identifies identical requests, e.g. the URL of a GET request
+     * @param request the synchronous call to make if none is in flight for the key
+     * @return the response shared by every caller of this key
+     */
+    public WebServiceResponse execute(String key, Callable<WebServiceResponse> request) {
+        requestCount.incrementAndGet();
+        WebServiceCancellationToken callerToken = WebServiceCancellationToken.current();
+        InFlightCall task = new InFlightCall(request);
+        while (true) {
+            InFlightCall inFlight = inFlightRequests.putIfAbsent(key, task);
+
+            if (inFlight == null) {
+                // This caller leads, run the call on its thread
+                Runnable leave = task.leaveOnCancellationOf(callerToken);
+                try {
+                    task.run();
+                }
+                finally {
+                    inFlightRequests.remove(key, task);
+                    if (leave != null) {
+                        callerToken.removeCancellationListener(leave);
+                    }
+                }
+                return callerToken != null && callerToken.isCancelled() ? cancelledResponse() : getResponse(task);
+            }
+
+            if (inFlight.join()) {
+                Log.i(TAG, "Joining in-flight request: " + key);
+                coalescedRequestCount.incrementAndGet();
+                return inFlight.await(callerToken);
+            }
+
+            // The call completed as we arrived, clear it out of the way and make a call of our own
+            inFlightRequests.remove(key, inFlight);
+        }
+    }
+
+    /**
+     * @return number of requests that went through this coalescer
+     */
+    public long getRequestCount() { return requestCount.get(); }
+
+    /**
+     * @return number of requests that joined an identical in-flight request instead of making their own call
+     */
+    public long getCoalescedRequestCount() { return coalescedRequestCount.get(); }
+
+    /**
+     * Waits for a call to complete, turning an interruption or unexpected failure into a failed response
+     */
+    private static WebServiceResponse getResponse(FutureTask<WebServiceResponse> task) {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failedResponse(e);
+        }
+        catch (ExecutionException e) {
+            Log.e(TAG, "Web service call failed unexpectedly", e);
+            return failedResponse(e);
+        }
+    }
+
+    private static WebServiceResponse failedResponse(Exception e) {
+        WebServiceResponse response = new WebServiceResponse();
+        response.setException(e);
+        return response;
+    }
+
+    private static WebServiceResponse cancelledResponse() {
+        return failedResponse(new InterruptedIOException("Call cancelled"));
+    }
+
+    /**
+     * An in-flight call, counting the callers waiting for it
+     */
+    private static class InFlightCall extends FutureTask<WebServiceResponse> {
+
+        // Cancelled once every caller has been cancelled
+        private final WebServiceCancellationToken token;
+
+        // Callers still waiting for the response, the leading one included. Guarded by this.
+        private int waitingCallers = 1;
+        // Whether more callers may join; false once the call completed or was abandoned. Guarded by this.
+        private boolean joinable = true;
+        private boolean joined;
+        // Wakes callers that joined, once the call completes. Guarded by this.
+        private final List<CountDownLatch> joinedCallers = new ArrayList<CountDownLatch>();
+
+        InFlightCall(Callable<WebServiceResponse> request) {
+            this(request, new WebServiceCancellationToken());
+        }
+
+        private InFlightCall(final Callable<WebServiceResponse> request, final WebServiceCancellationToken token) {
+            super(new Callable<WebServiceResponse>() {
+                @Override
+                public WebServiceResponse call() throws Exception {
+                    return token.runWith(request);
+                }
+            });
+            this.token = token;
+        }
+
+        /**
+         * @return true if the caller joined the call, false if the call already completed or was abandoned
+         */
+        synchronized boolean join() {
+            if (!joinable) {
+                return false;
+            }
+            waitingCallers++;
+            joined = true;
+            return true;
+        }
+
+        /**
+         * Makes a caller stop counting towards the call when its token is cancelled
+         *
+         * @return the listener registered with the token, or null if there is none to remove later
+         */
+        Runnable leaveOnCancellationOf(WebServiceCancellationToken callerToken) {
+            if (callerToken == null) {
+                return null;
+            }
+            Runnable leave = leaveOnce(null);
+            if (!callerToken.addCancellationListener(leave)) {
+                leave.run();
+                return null;
+            }
+            return leave;
+        }
+
+        /**
+         * Waits for the call to complete, or for the caller's token to be cancelled
+         */
+        WebServiceResponse await(WebServiceCancellationToken callerToken) {
+            if (callerToken == null) {
+                return getResponse(this);
+            }
+            final CountDownLatch wake = new CountDownLatch(1);
+            synchronized (this) {
+                joinedCallers.add(wake);
+            }
+            Runnable leave = leaveOnce(wake);
+            if (!callerToken.addCancellationListener(leave)) {
+                leave.run();
+            }
+            try {
+                if (!isDone()) {
+                    wake.await();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                leave.run();
+                return failedResponse(e);
+            }
+            finally {
+                callerToken.removeCancellationListener(leave);
+                synchronized (this) {
+                    joinedCallers.remove(wake);
+                }
+            }
+            return isDone() ? getResponse(this) : cancelledResponse();
+        }
+
+        /**
+         * Makes a listener that has one caller leave the call. The caller leaves only once however often the listener
+         * runs, as both the caller's interruption and its token's cancellation can run it.
+         *
+         * @param wake woken each time the listener runs (optional)
+         * @return the listener
+         */
+        private Runnable leaveOnce(final CountDownLatch wake) {
+            final AtomicBoolean left = new AtomicBoolean();
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (left.compareAndSet(false, true)) {
+                        leave();
+                    }
+                    if (wake != null) {
+                        wake.countDown();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Stops counting a cancelled caller, and aborts the call once no caller is left waiting for it
+         */
+        private void leave() {
+            synchronized (this) {
+                if (--waitingCallers > 0) {
+                    return;
+                }
+                joinable = false;
+            }
+            token.cancel();
+        }
+
+        @Override
+        protected void set(WebServiceResponse response) {
+            // Seal the call before anyone can see its response
+            synchronized (this) {
+                joinable = false;
+                if (joined && response != null) {
+                    response.markShared();
+                }
+            }
+            super.set(response);
+        }
+
+        @Override
+        protected void done() {
+            CountDownLatch[] wakes;
+            synchronized (this) {
+                wakes = joinedCallers.toArray(new CountDownLatch[joinedCallers.size()]);
+            }
+            for (CountDownLatch wake : wakes) {
+                wake.countDown();
+            }
+        }
+    }
+}
@@ -1,13 +1,47 @@
 package com.overthink.mechmaid.webservices;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Contains all pertinent data returned in web service call.
+ * <p>
+ * Response bodies read by {@link WebServiceUtils} are held as bytes borrowed from the {@link WebServiceBufferPool}
+ * and only decoded into a String, using the charset from the Content-Type header, the first time
+ * {@link #getRawResponseBody()} is called. Callers that forward or parse the bytes themselves can use
+ * {@link #getResponseBodyStream()} and skip decoding altogether. Calling {@link #release()} once done with the body
+ * hands its buffer back to the pool.
  */
 public class WebServiceResponse {
 
+    // Decoded body, and the undecoded body with its length and charset. Guarded by this.
     private String rawResponseBody;
+    private byte[] responseBodyBytes;
+    private int responseBodyByteCount;
+    private Charset responseBodyCharset;
+    // Whether the response is handed to several callers, in which case its buffer is never recycled
+    private volatile boolean shared;
     private  int httpResponseCode;
     private Exception exception;
+    private Map<String, List<String>> headers;
+    // Body sizes, before and after compression
+    private long requestBodyLength;
+    private long requestBodyBytesSent;
+    private long responseBodyBytesReceived;
+    private long responseBodyLength;
+    // Time spent in each phase of the call, in milliseconds
+    private long connectTimeMs;
+    private long requestWriteTimeMs;
+    private long timeToFirstByteMs;
+    private long bodyReadTimeMs;
+    private long totalTimeMs;
+    // Number of attempts made, including retries
+    private int attemptCount;
 
     public int getHttpResponseCode() { return httpResponseCode; }
 
@@ -17,7 +51,208 @@ public class WebServiceResponse {
 
     public void setException(Exception exception) { this.exception = exception; }
 
-    public String getRawResponseBody() { return rawResponseBody; }
+    /**
+     * @return the response body, decoded on first call; still available after {@link #release()} once decoded
+     */
+    public synchronized String getRawResponseBody() {
+        if (rawResponseBody == null && responseBodyBytes != null) {
+            rawResponseBody = new String(responseBodyBytes, 0, responseBodyByteCount, responseBodyCharset);
+        }
+        return rawResponseBody;
+    }
+
+    public synchronized void setRawResponseBody(String rawResponseBody) {
+        releaseBodyBytes();
+        this.rawResponseBody = rawResponseBody;
+    }
+
+    /**
+     * Sets an undecoded body held in a pooled buffer, which the response takes ownership of
+     *
+     * @param buffer a buffer from {@link WebServiceBufferPool#getDefault()}
+     * @param length length of the body in the buffer
+     * @param charset charset to decode the body with
+     */
+    synchronized void setPooledResponseBody(byte[] buffer, int length, Charset charset) {
+        releaseBodyBytes();
+        rawResponseBody = null;
+        responseBodyBytes = buffer;
+        responseBodyByteCount = length;
+        responseBodyCharset = charset;
+    }
+
+    /**
+     * Sets an undecoded body the response doesn't own, such as one held by the {@link WebServiceCache}. It is decoded
+     * on first use like a pooled body, but never handed back to the pool.
+     *
+     * @param body the body
+     * @param charset charset to decode the body with
+     */
+    synchronized void setSharedResponseBody(byte[] body, Charset charset) {
+        setPooledResponseBody(body, body.length, charset);
+        shared = true;
+    }
+
+    /**
+     * @return a copy of the undecoded response body, empty if the response has none
+     */
+    synchronized byte[] copyResponseBodyBytes() {
+        if (responseBodyBytes != null) {
+            byte[] copy = new byte[responseBodyByteCount];
+            System.arraycopy(responseBodyBytes, 0, copy, 0, responseBodyByteCount);
+            return copy;
+        }
+        if (rawResponseBody != null) {
+            return rawResponseBody.getBytes(WebServiceUtils.DEFAULT_CHARSET);
+        }
+        return new byte[0];
+    }
+
+    /**
+     * @return the charset of the bytes returned by {@link #copyResponseBodyBytes()}
+     */
+    synchronized Charset getResponseBodyCharset() {
+        return responseBodyBytes != null ? responseBodyCharset : WebServiceUtils.DEFAULT_CHARSET;
+    }
+
+    /**
+     * Reads the undecoded response body. The stream must not be used after {@link #release()}.
+     *
+     * @return the body, or null if the response has none
+     */
+    public synchronized InputStream getResponseBodyStream() {
+        if (responseBodyBytes != null) {
+            return new ByteArrayInputStream(responseBodyBytes, 0, responseBodyByteCount);
+        }
+        if (rawResponseBody != null) {
+            return new ByteArrayInputStream(rawResponseBody.getBytes(WebServiceUtils.DEFAULT_CHARSET));
+        }
+        return null;
+    }
+
+    /**
+     * Writes the undecoded response body, if any, without copying it
+     *
+     * @param out the stream to write to; it is not closed
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeResponseBodyTo(OutputStream out) throws IOException {
+        byte[] bytes;
+        int length;
+        synchronized (this) {
+            if (responseBodyBytes == null) {
+                bytes = rawResponseBody == null ? null : rawResponseBody.getBytes(WebServiceUtils.DEFAULT_CHARSET);
+                length = bytes == null ? 0 : bytes.length;
+            }
+            else {
+                bytes = responseBodyBytes;
+                length = responseBodyByteCount;
+            }
+        }
+        if (bytes != null) {
+            out.write(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Returns the buffer holding the undecoded body to the pool. Afterwards only a body already decoded by
+     * {@link #getRawResponseBody()} remains available. Responses shared between callers, such as coalesced GET
+     * responses, keep their buffer. Releasing is optional; unreleased buffers are simply garbage collected.
+     */
+    public synchronized void release() {
+        if (!shared) {
+            releaseBodyBytes();
+        }
+    }
+
+    /**
+     * Marks the response as handed to several callers, so that none of them can release its buffer from under the
+     * others
+     */
+    void markShared() {
+        shared = true;
+    }
+
+    private void releaseBodyBytes() {
+        if (responseBodyBytes != null) {
+            if (!shared) {
+                WebServiceBufferPool.getDefault().release(responseBodyBytes);
+            }
+            responseBodyBytes = null;
+        }
+    }
+
+    public Map<String, List<String>> getHeaders() { return headers; }
+
+    public void setHeaders(Map<String, List<String>> headers) { this.headers = headers; }
+
+    /** Size of the request body before compression, in bytes **/
+    public long getRequestBodyLength() { return requestBodyLength; }
+
+    public void setRequestBodyLength(long requestBodyLength) { this.requestBodyLength = requestBodyLength; }
+
+    /** Size of the request body as sent over the network, in bytes **/
+    public long getRequestBodyBytesSent() { return requestBodyBytesSent; }
+
+    public void setRequestBodyBytesSent(long requestBodyBytesSent) { this.requestBodyBytesSent = requestBodyBytesSent; }
+
+    /** Size of the response body as received over the network, in bytes **/
+    public long getResponseBodyBytesReceived() { return responseBodyBytesReceived; }
+
+    public void setResponseBodyBytesReceived(long responseBodyBytesReceived) {
+        this.responseBodyBytesReceived = responseBodyBytesReceived;
+    }
+
+    /** Size of the response body after decompression, in bytes **/
+    public long getResponseBodyLength() { return responseBodyLength; }
+
+    public void setResponseBodyLength(long responseBodyLength) { this.responseBodyLength = responseBodyLength; }
+
+    /** Time taken to establish the connection, including DNS and TLS, in milliseconds **/
+    public long getConnectTimeMs() { return connectTimeMs; }
+
+    public void setConnectTimeMs(long connectTimeMs) { this.connectTimeMs = connectTimeMs; }
+
+    /** Time taken to write the request body, in milliseconds **/
+    public long getRequestWriteTimeMs() { return requestWriteTimeMs; }
+
+    public void setRequestWriteTimeMs(long requestWriteTimeMs) { this.requestWriteTimeMs = requestWriteTimeMs; }
+
+    /** Time from sending the request to receiving the response headers, in milliseconds **/
+    public long getTimeToFirstByteMs() { return timeToFirstByteMs; }
+
+    public void setTimeToFirstByteMs(long timeToFirstByteMs) { this.timeToFirstByteMs = timeToFirstByteMs; }
+
+    /** Time taken to read the response body, in milliseconds **/
+    public long getBodyReadTimeMs() { return bodyReadTimeMs; }
+
+    public void setBodyReadTimeMs(long bodyReadTimeMs) { this.bodyReadTimeMs = bodyReadTimeMs; }
+
+    /** Time taken by the whole call (its last attempt, if it was retried), in milliseconds **/
+    public long getTotalTimeMs() { return totalTimeMs; }
+
+    public void setTotalTimeMs(long totalTimeMs) { this.totalTimeMs = totalTimeMs; }
+
+    /** Number of attempts made to complete the call, including retries **/
+    public int getAttemptCount() { return attemptCount; }
+
+    public void setAttemptCount(int attemptCount) { this.attemptCount = attemptCount; }
 
-    public void setRawResponseBody(String rawResponseBody) { this.rawResponseBody = rawResponseBody; }
+    /**
+     * Returns the last value of the named response header
+     *
+     * @param name header name, matched case-insensitively
+     * @return the header value, or null if the header was not sent
+     */
+    public String getHeaderField(String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(header.getValue().size() - 1);
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,121 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.util.Random;
+
+/**
+ * Decides whether a failed web service call is retried and how long to wait before retrying. Waits grow exponentially
+ * with each attempt and are fully jittered (a random wait between zero and the exponential bound), so that clients
+ * failing at the same moment don't retry in lockstep and hammer a struggling backend.
+ * <p>
+ * A call is only retried if it failed before any response body reached the caller: on an I/O error before the
+ * response headers arrived, or on a 429, 502, 503 or 504 response. By default only idempotent methods are retried,
+ * since a POST that timed out may well have been processed.
+ */
+public class WebServiceRetryPolicy {
+
+    // Retryable HTTP response codes
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /** Makes every call exactly once **/
+    public static final WebServiceRetryPolicy NO_RETRIES = new WebServiceRetryPolicy(1, 0, 0, false);
+    /** Up to three attempts of idempotent calls, waiting at most 250 ms and then 500 ms between attempts **/
+    public static final WebServiceRetryPolicy DEFAULT = new WebServiceRetryPolicy(3, 250, 2000, false);
+
+    private static final Random RANDOM = new Random();
+
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final boolean retryNonIdempotentMethods;
+
+    /**
+     * Constructs a retry policy
+     *
+     * @param maxAttempts maximum number of attempts per call, including the first
+     * @param initialBackoffMs upper bound of the wait before the first retry, doubled for each following retry
+     * @param maxBackoffMs cap on the upper bound of any wait
+     * @param retryNonIdempotentMethods true to also retry methods such as POST
+     */
+    public WebServiceRetryPolicy(int maxAttempts, long initialBackoffMs, long maxBackoffMs,
+                                 boolean retryNonIdempotentMethods) {
+        if (maxAttempts < 1 || initialBackoffMs < 0 || maxBackoffMs < initialBackoffMs) {
+            throw new IllegalArgumentException("Invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.retryNonIdempotentMethods = retryNonIdempotentMethods;
+    }
+
+    public int getMaxAttempts() { return maxAttempts; }
+
+    /**
+     * Decides whether a failed attempt should be retried
+     *
+     * @param method the HTTP method of the call
+     * @param response the response of the attempt
+     * @param attempt the number of the attempt that just completed, starting at 1
+     * @param repeatable whether the request body, if any, can be sent again
+     * @return true if the call should be attempted again
+     */
+    public boolean shouldRetry(String method, WebServiceResponse response, int attempt, boolean repeatable) {
+        if (attempt >= maxAttempts || !repeatable) {
+            return false;
+        }
+        if (!retryNonIdempotentMethods && !isIdempotent(method)) {
+            return false;
+        }
+        return isRetryableFailure(response);
+    }
+
+    /**
+     * Picks how long to wait before the next attempt
+     *
+     * @param attempt the number of the attempt that just failed, starting at 1
+     * @return the wait in milliseconds
+     */
+    public long getBackoffMs(int attempt) {
+        long bound = initialBackoffMs << Math.min(attempt - 1, 30);
+        if (bound <= 0 || bound > maxBackoffMs) {
+            bound = maxBackoffMs;
+        }
+        synchronized (RANDOM) {
+            return (long) (RANDOM.nextDouble() * bound);
+        }
+    }
+
+    /**
+     * @return true if the response failed in a way that's worth retrying and didn't reach the caller's body handler
+     */
+    static boolean isRetryableFailure(WebServiceResponse response) {
+        Exception exception = response.getException();
+        int responseCode = response.getHttpResponseCode();
+        if (responseCode == 0) {
+            // Failed before the server answered
+            return exception instanceof IOException && !(exception instanceof MalformedURLException)
+                    && !(exception instanceof WebServiceCircuitBreaker.CircuitOpenException);
+        }
+        return isRetryableResponseCode(responseCode);
+    }
+
+    /**
+     * @return true for response codes signalling a temporary server side problem
+     */
+    static boolean isRetryableResponseCode(int responseCode) {
+        return responseCode == HTTP_TOO_MANY_REQUESTS
+                || responseCode == HttpURLConnection.HTTP_BAD_GATEWAY
+                || responseCode == HttpURLConnection.HTTP_UNAVAILABLE
+                || responseCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * @return true for methods that can safely be sent more than once
+     */
+    public static boolean isIdempotent(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method) || "DELETE".equals(method)
+                || "OPTIONS".equals(method);
+    }
+}
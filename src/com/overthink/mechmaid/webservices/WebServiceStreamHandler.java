@@ -0,0 +1,24 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Consumes a response body as it is downloaded, so large payloads can be parsed incrementally instead of being
+ * buffered into a single String first. Handlers run on the thread making the web service call.
+ */
+public interface WebServiceStreamHandler {
+
+    /**
+     * Called once the server has responded successfully. The stream is closed by {@link WebServiceUtils} when this
+     * method returns, so it must not be kept. Wrap it in an {@link java.io.InputStreamReader} using the given charset
+     * to read the body as text.
+     *
+     * @param body the response body
+     * @param charset the charset declared in the response's Content-Type header, or UTF-8 if none was declared
+     * @param response the response being built; the HTTP response code is already set
+     * @throws IOException if the body cannot be read, which fails the call
+     */
+    void onResponseBody(InputStream body, Charset charset, WebServiceResponse response) throws IOException;
+}
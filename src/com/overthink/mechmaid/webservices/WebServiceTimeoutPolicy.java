@@ -0,0 +1,297 @@
+package com.overthink.mechmaid.webservices;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the connect and read timeouts of each web service call.
+ * <p>
+ * A fixed policy always uses the same timeouts. An adaptive policy learns them per host, the way TCP computes its
+ * retransmission timeout: it keeps a smoothed average and mean deviation of the connect time and of the time to first
+ * byte, and sets each timeout to the average plus four deviations, kept between a floor and a ceiling. A host that
+ * times out has its timeout doubled, and the back-off wears off by half with each call that completes. Until a host
+ * has been sampled, the initial timeouts are used.
+ * <p>
+ * The time to first byte is mostly the server's processing time, which differs from one endpoint of a host to
+ * another, so the read timeout is only ever raised above the initial read timeout: a host whose usual calls are fast
+ * must not time out its slow ones.
+ * <p>
+ * Timeouts of individual calls can be overridden with {@link #runWithTimeouts(int, int, Callable)}.
+ */
+public class WebServiceTimeoutPolicy {
+
+    private static final String TAG = WebServiceTimeoutPolicy.class.getName();
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 3000;
+    public static final int DEFAULT_MIN_TIMEOUT_MS = 500;
+    public static final int DEFAULT_MAX_TIMEOUT_MS = 20000;
+    // Smallest allowance for deviation, so that a host with very steady timings still gets some slack
+    private static final int MIN_DEVIATION_ALLOWANCE_MS = 100;
+
+    /** Always uses the default connect and read timeouts **/
+    public static final WebServiceTimeoutPolicy FIXED =
+            new WebServiceTimeoutPolicy(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+
+    // Timeouts of the calls made on each thread, overriding the policy
+    private static final ThreadLocal<int[]> OVERRIDE = new ThreadLocal<int[]>();
+
+    private final int initialConnectTimeoutMs;
+    private final int initialReadTimeoutMs;
+    private final int minTimeoutMs;
+    private final int maxTimeoutMs;
+    private final boolean adaptive;
+    private final ConcurrentHashMap<String, HostTimeouts> hosts = new ConcurrentHashMap<String, HostTimeouts>();
+
+    /**
+     * Constructs a fixed policy
+     *
+     * @param connectTimeoutMs connect timeout of every call, in milliseconds
+     * @param readTimeoutMs read timeout of every call, in milliseconds
+     */
+    public WebServiceTimeoutPolicy(int connectTimeoutMs, int readTimeoutMs) {
+        this(connectTimeoutMs, readTimeoutMs, 0, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * Constructs an adaptive policy
+     *
+     * @param initialConnectTimeoutMs connect timeout used until a host has been sampled, in milliseconds
+     * @param initialReadTimeoutMs read timeout used until a host has been sampled, in milliseconds
+     * @param minTimeoutMs floor of the learned connect timeouts, in milliseconds; learned read timeouts never drop
+     *                     below the initial read timeout
+     * @param maxTimeoutMs ceiling of the learned timeouts, in milliseconds
+     */
+    public WebServiceTimeoutPolicy(int initialConnectTimeoutMs, int initialReadTimeoutMs, int minTimeoutMs,
+                                   int maxTimeoutMs) {
+        this(initialConnectTimeoutMs, initialReadTimeoutMs, minTimeoutMs, maxTimeoutMs, true);
+    }
+
+    private WebServiceTimeoutPolicy(int initialConnectTimeoutMs, int initialReadTimeoutMs, int minTimeoutMs,
+                                    int maxTimeoutMs, boolean adaptive) {
+        if (initialConnectTimeoutMs < 1 || initialReadTimeoutMs < 1 || minTimeoutMs < 0
+                || maxTimeoutMs < minTimeoutMs) {
+            throw new IllegalArgumentException("Invalid timeout policy");
+        }
+        this.initialConnectTimeoutMs = initialConnectTimeoutMs;
+        this.initialReadTimeoutMs = initialReadTimeoutMs;
+        this.minTimeoutMs = minTimeoutMs;
+        this.maxTimeoutMs = maxTimeoutMs;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Creates an adaptive policy starting from the default timeouts, with the default floor and ceiling
+     *
+     * @return the policy
+     */
+    public static WebServiceTimeoutPolicy adaptive() {
+        return new WebServiceTimeoutPolicy(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS,
+                DEFAULT_MIN_TIMEOUT_MS, DEFAULT_MAX_TIMEOUT_MS);
+    }
+
+    /**
+     * Runs web service calls with the given timeouts on the calling thread, whatever the installed policy
+     *
+     * @param connectTimeoutMs connect timeout, in milliseconds
+     * @param readTimeoutMs read timeout, in milliseconds
+     * @param call the calls to run
+     * @return the call's result
+     * @throws Exception if the call throws
+     */
+    public static <T> T runWithTimeouts(int connectTimeoutMs, int readTimeoutMs, Callable<T> call) throws Exception {
+        if (connectTimeoutMs < 1 || readTimeoutMs < 1) {
+            throw new IllegalArgumentException("Invalid timeouts");
+        }
+        int[] previous = OVERRIDE.get();
+        OVERRIDE.set(new int[] { connectTimeoutMs, readTimeoutMs });
+        try {
+            return call.call();
+        }
+        finally {
+            if (previous == null) {
+                OVERRIDE.remove();
+            }
+            else {
+                OVERRIDE.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Wraps a call so that it runs with the timeouts overridden on the calling thread, wherever it is run from. Used
+     * to hand calls over to other threads.
+     *
+     * @param call the call
+     * @return the call, bound to the current thread's timeouts if they are overridden
+     */
+    static <T> Callable<T> inheritTimeouts(final Callable<T> call) {
+        final int[] override = OVERRIDE.get();
+        if (override == null) {
+            return call;
+        }
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return runWithTimeouts(override[0], override[1], call);
+            }
+        };
+    }
+
+    public boolean isAdaptive() { return adaptive; }
+
+    /**
+     * @param host the host being called
+     * @return the connect timeout of the next call to the host, in milliseconds
+     */
+    public int getConnectTimeoutMs(String host) {
+        int[] override = OVERRIDE.get();
+        if (override != null) {
+            return override[0];
+        }
+        if (!adaptive) {
+            return initialConnectTimeoutMs;
+        }
+        HostTimeouts timeouts = hosts.get(host);
+        return timeouts == null ? initialConnectTimeoutMs : timeouts.connect.getTimeoutMs();
+    }
+
+    /**
+     * @param host the host being called
+     * @return the read timeout of the next call to the host, in milliseconds
+     */
+    public int getReadTimeoutMs(String host) {
+        int[] override = OVERRIDE.get();
+        if (override != null) {
+            return override[1];
+        }
+        if (!adaptive) {
+            return initialReadTimeoutMs;
+        }
+        HostTimeouts timeouts = hosts.get(host);
+        return timeouts == null ? initialReadTimeoutMs : timeouts.firstByte.getTimeoutMs();
+    }
+
+    /**
+     * Records how long it took to connect to a host. Reused connections connect instantly and teach nothing, so zero
+     * times are ignored.
+     *
+     * @param host the host that was called
+     * @param connectTimeMs the connect time, in milliseconds
+     */
+    public void recordConnectTime(String host, long connectTimeMs) {
+        if (adaptive && connectTimeMs > 0) {
+            timeoutsFor(host).connect.recordSample(connectTimeMs);
+        }
+    }
+
+    /**
+     * Records how long a host took to start responding once the request was sent
+     *
+     * @param host the host that was called
+     * @param timeToFirstByteMs the time to first byte, in milliseconds
+     */
+    public void recordTimeToFirstByte(String host, long timeToFirstByteMs) {
+        if (adaptive) {
+            timeoutsFor(host).firstByte.recordSample(timeToFirstByteMs);
+        }
+    }
+
+    /**
+     * Records that a call to a host timed out, which backs off the timeout that expired
+     *
+     * @param host the host that was called
+     * @param connected true if the call timed out while reading, false if it timed out while connecting
+     */
+    public void recordTimeout(String host, boolean connected) {
+        if (adaptive) {
+            HostTimeouts timeouts = timeoutsFor(host);
+            int timeoutMs = (connected ? timeouts.firstByte : timeouts.connect).backOff();
+            Log.w(TAG, String.format("%s timeout for %s backed off to %d ms", connected ? "Read" : "Connect", host,
+                    timeoutMs));
+        }
+    }
+
+    /**
+     * Forgets everything learned about every host, e.g. after connectivity changes
+     */
+    public void reset() {
+        hosts.clear();
+    }
+
+    private HostTimeouts timeoutsFor(String host) {
+        HostTimeouts timeouts = hosts.get(host);
+        if (timeouts == null) {
+            HostTimeouts created = new HostTimeouts();
+            timeouts = hosts.putIfAbsent(host, created);
+            if (timeouts == null) {
+                timeouts = created;
+            }
+        }
+        return timeouts;
+    }
+
+    /**
+     * Learned timeouts of a single host
+     */
+    private class HostTimeouts {
+
+        final TimeoutEstimator connect = new TimeoutEstimator(initialConnectTimeoutMs, minTimeoutMs);
+        final TimeoutEstimator firstByte = new TimeoutEstimator(initialReadTimeoutMs,
+                Math.max(minTimeoutMs, initialReadTimeoutMs));
+    }
+
+    /**
+     * Smoothed average and mean deviation of one kind of delay, as in RFC 6298
+     */
+    private class TimeoutEstimator {
+
+        private final int initialTimeoutMs;
+        private final int floorMs;
+        // Guarded by this
+        private boolean sampled;
+        private double smoothedMs;
+        private double deviationMs;
+        // Doubles with each timeout, and halves with each sample down to 1
+        private int backoff = 1;
+
+        TimeoutEstimator(int initialTimeoutMs, int floorMs) {
+            this.initialTimeoutMs = initialTimeoutMs;
+            this.floorMs = floorMs;
+        }
+
+        synchronized void recordSample(long sampleMs) {
+            if (!sampled) {
+                smoothedMs = sampleMs;
+                deviationMs = sampleMs / 2.0;
+                sampled = true;
+            }
+            else {
+                deviationMs = 0.75 * deviationMs + 0.25 * Math.abs(smoothedMs - sampleMs);
+                smoothedMs = 0.875 * smoothedMs + 0.125 * sampleMs;
+            }
+            // Wear off gradually, so that fast calls in between don't undo a back-off straight away
+            backoff = Math.max(1, backoff / 2);
+        }
+
+        /**
+         * @return the backed off timeout
+         */
+        synchronized int backOff() {
+            if (getTimeoutMs() < maxTimeoutMs) {
+                backoff *= 2;
+            }
+            return getTimeoutMs();
+        }
+
+        synchronized int getTimeoutMs() {
+            double timeoutMs = sampled
+                    ? smoothedMs + Math.max(MIN_DEVIATION_ALLOWANCE_MS, 4 * deviationMs)
+                    : initialTimeoutMs;
+            // Backed off from the floor too, so that calls timing out at the floor get more time
+            return (int) Math.max(floorMs, Math.min(maxTimeoutMs, Math.max(floorMs, timeoutMs) * backoff));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.overthink.mechmaid.webservices;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Carries the HTTP exchanges made by {@link WebServiceUtils}. Everything above the wire (retries, circuit breaking,
+ * caching, compression and metrics) is handled by {@link WebServiceUtils}, so a transport only has to move bytes.
+ * <p>
+ * {@link UrlConnectionTransport} is the default. {@link NioTransport} multiplexes many calls over a few selector
+ * threads. A transport can be installed for every call with {@link WebServiceUtils#setTransport(WebServiceTransport)},
+ * for the calls of one executor with {@link WebServiceExecutor#setTransport(WebServiceTransport)}, or for a single
+ * call with {@link WebServiceUtils#runWithTransport(WebServiceTransport, java.util.concurrent.Callable)}.
+ */
+public interface WebServiceTransport {
+
+    /**
+     * Creates an exchange with the server of a URL. Nothing is sent until the exchange is connected.
+     *
+     * @param url the URL to call
+     * @return the exchange
+     * @throws IOException if the URL cannot be handled by this transport
+     */
+    WebServiceExchange openExchange(URL url) throws IOException;
+}
@@ -0,0 +1,278 @@
+package com.overthink.mechmaid.webservices;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A web service URL with named parameters, such as {@code http://api.example.com/shops/{id}/jobs?date={date}}. The
+ * template is parsed once and then expanded with parameter values into a ready-made {@link URL}, which the
+ * {@link WebServiceUtils} request methods accept without parsing it again.
+ * <p>
+ * Parameter values are percent-encoded for where they appear: a value in the path can't add path segments, and a value
+ * in the query can't add parameters. Templates are immutable and can be shared between threads, typically as
+ * constants next to the code calling the endpoint.
+ */
+public class WebServiceUrlTemplate {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    // ASCII characters left as they are in path and query parameter values; all others are percent-encoded
+    private static final boolean[] PATH_SAFE = safeCharacters("!$&'()*+,;=:@");
+    private static final boolean[] QUERY_SAFE = safeCharacters("!$'()*,;:@/?");
+
+    // Buffer that URLs are expanded into, reused by each thread
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    private final String template;
+    private final String protocol;
+    private final String host;
+    private final int port;
+    // Literal text of the path and query, around the parameters; one more than there are parameter slots
+    private final String[] literals;
+    // Index into parameterNames of the parameter at each slot
+    private final int[] slotParameters;
+    // Whether each slot is in the query (or fragment) rather than the path
+    private final boolean[] slotInQuery;
+    private final String[] parameterNames;
+
+    private WebServiceUrlTemplate(String template, URL base, List<String> literals, List<Integer> slotParameters,
+                                  List<Boolean> slotInQuery, List<String> parameterNames) {
+        this.template = template;
+        this.protocol = base.getProtocol();
+        this.host = base.getHost();
+        this.port = base.getPort();
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.slotParameters = new int[slotParameters.size()];
+        this.slotInQuery = new boolean[slotInQuery.size()];
+        for (int i = 0; i < this.slotParameters.length; i++) {
+            this.slotParameters[i] = slotParameters.get(i);
+            this.slotInQuery[i] = slotInQuery.get(i);
+        }
+        this.parameterNames = parameterNames.toArray(new String[parameterNames.size()]);
+    }
+
+    /**
+     * Parses a URL template
+     *
+     * @param template an absolute URL whose path and query may contain parameters in braces, like {@code {id}}
+     * @return the compiled template
+     * @throws IllegalArgumentException if the template is malformed, or has parameters in its scheme or host
+     */
+    public static WebServiceUrlTemplate compile(String template) {
+        int schemeEnd = template.indexOf("://");
+        if (schemeEnd < 0) {
+            throw new IllegalArgumentException("URL template must be absolute: " + template);
+        }
+        int fileStart = template.indexOf('/', schemeEnd + 3);
+        if (fileStart < 0) {
+            fileStart = template.length();
+        }
+        URL base;
+        try {
+            base = new URL(template.substring(0, fileStart));
+        }
+        catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Malformed URL template: " + template, e);
+        }
+        if (template.substring(0, fileStart).indexOf('{') >= 0) {
+            throw new IllegalArgumentException("URL template has parameters before its path: " + template);
+        }
+
+        List<String> literals = new ArrayList<String>();
+        List<Integer> slotParameters = new ArrayList<Integer>();
+        List<Boolean> slotInQuery = new ArrayList<Boolean>();
+        List<String> parameterNames = new ArrayList<String>();
+        boolean inQuery = false;
+        int literalStart = fileStart;
+        while (true) {
+            int open = template.indexOf('{', literalStart);
+            int queryStart = indexOfQuery(template, literalStart, open < 0 ? template.length() : open);
+            inQuery |= queryStart >= 0;
+            if (open < 0) {
+                literals.add(template.substring(literalStart));
+                break;
+            }
+            int close = template.indexOf('}', open);
+            if (close < 0 || close == open + 1 || template.substring(open + 1, close).indexOf('{') >= 0) {
+                throw new IllegalArgumentException("Malformed parameter in URL template: " + template);
+            }
+            literals.add(template.substring(literalStart, open));
+            String name = template.substring(open + 1, close);
+            int parameter = parameterNames.indexOf(name);
+            if (parameter < 0) {
+                parameter = parameterNames.size();
+                parameterNames.add(name);
+            }
+            slotParameters.add(parameter);
+            slotInQuery.add(inQuery);
+            literalStart = close + 1;
+        }
+        return new WebServiceUrlTemplate(template, base, literals, slotParameters, slotInQuery, parameterNames);
+    }
+
+    /**
+     * Parses a URL template relative to a base URL
+     *
+     * @param baseUrl absolute URL of the web service, like {@code http://api.example.com/v1}
+     * @param pathTemplate path and query below the base URL, like {@code /shops/{id}}
+     * @return the compiled template
+     * @throws IllegalArgumentException if the template is malformed
+     */
+    public static WebServiceUrlTemplate compile(String baseUrl, String pathTemplate) {
+        if (baseUrl.endsWith("/") && pathTemplate.startsWith("/")) {
+            return compile(baseUrl + pathTemplate.substring(1));
+        }
+        return compile(baseUrl + pathTemplate);
+    }
+
+    /**
+     * Expands the template into a URL
+     *
+     * @param values a value for each parameter, in the order the parameters first appear in the template. Numbers are
+     *               written in decimal, anything else as its {@link String#valueOf(Object)}.
+     * @return the URL
+     * @throws IllegalArgumentException if there isn't exactly one non-null value per parameter
+     */
+    public URL expand(Object... values) {
+        StringBuilder file = expandFile(values);
+        try {
+            return new URL(protocol, host, port, file.toString());
+        }
+        catch (MalformedURLException e) {
+            // The protocol was accepted when the template was compiled
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Expands the template into a URL string, for APIs that take one
+     *
+     * @param values a value for each parameter, as for {@link #expand(Object...)}
+     * @return the URL, as a string
+     * @throws IllegalArgumentException if there isn't exactly one non-null value per parameter
+     */
+    public String expandToString(Object... values) {
+        return expand(values).toExternalForm();
+    }
+
+    /**
+     * @return the names of the template's parameters, in the order their values are expected
+     */
+    public String[] getParameterNames() {
+        return parameterNames.clone();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    private StringBuilder expandFile(Object[] values) {
+        if (values.length != parameterNames.length) {
+            throw new IllegalArgumentException("Expected " + parameterNames.length + " values for URL template "
+                    + template + " but got " + values.length);
+        }
+        StringBuilder file = BUFFER.get();
+        file.setLength(0);
+        for (int slot = 0; slot < slotParameters.length; slot++) {
+            file.append(literals[slot]);
+            int parameter = slotParameters[slot];
+            Object value = values[parameter];
+            if (value == null) {
+                throw new IllegalArgumentException("No value for parameter " + parameterNames[parameter]
+                        + " of URL template " + template);
+            }
+            if (value instanceof Integer || value instanceof Long) {
+                // Digits never need encoding
+                file.append(((Number) value).longValue());
+            }
+            else {
+                appendEncoded(file, String.valueOf(value), slotInQuery[slot] ? QUERY_SAFE : PATH_SAFE);
+            }
+        }
+        file.append(literals[literals.length - 1]);
+        return file;
+    }
+
+    /**
+     * Appends a value, percent-encoding its UTF-8 bytes except for the given safe ASCII characters
+     */
+    private static void appendEncoded(StringBuilder out, String value, boolean[] safe) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (safe[c]) {
+                    out.append(c);
+                }
+                else {
+                    appendEscaped(out, c);
+                }
+            }
+            else if (c < 0x800) {
+                appendEscaped(out, 0xC0 | (c >> 6));
+                appendEscaped(out, 0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendEscaped(out, 0xF0 | (codePoint >> 18));
+                appendEscaped(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendEscaped(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEscaped(out, 0x80 | (codePoint & 0x3F));
+            }
+            else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired surrogate, encoded as '?' like String.getBytes() does
+                appendEscaped(out, '?');
+            }
+            else {
+                appendEscaped(out, 0xE0 | (c >> 12));
+                appendEscaped(out, 0x80 | ((c >> 6) & 0x3F));
+                appendEscaped(out, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder out, int b) {
+        out.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+
+    /**
+     * @return index of the first '?' or '#' in the given range, or -1 if there is none
+     */
+    private static int indexOfQuery(String template, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = template.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean[] safeCharacters(String extra) {
+        boolean[] safe = new boolean[128];
+        for (char c = 'a'; c <= 'z'; c++) {
+            safe[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            safe[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            safe[c] = true;
+        }
+        safe['-'] = true;
+        safe['.'] = true;
+        safe['_'] = true;
+        safe['~'] = true;
+        for (int i = 0; i < extra.length(); i++) {
+            safe[extra.charAt(i)] = true;
+        }
+        return safe;
+    }
+}
@@ -7,23 +7,68 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Provides helper methods to make web calls. All calls are synchronous and thus should only be run in the context of
- * an asynchronous thread.
+ * an asynchronous thread, such as the shared pool provided by {@link WebServiceExecutor}.
  */
 public class WebServiceUtils {
 
     public static final String TAG = WebServiceUtils.class.getName();
     // Empty web service request body
     public static final String EMPTY_REQUEST_BODY = "";
-    // Connection time out and download time out
-    private static final int CONNECT_TIMEOUT = 2000;
-    private static final int READ_TIMEOUT = 3000;
     // Request properties
     public static final String REQUEST_PROPERTY_KEY_CONTENT_TYPE = "Content-Type";
     public static final String REQUEST_PROPERTY_APPLICATION = "application/json";
+    public static final String REQUEST_PROPERTY_KEY_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String REQUEST_PROPERTY_KEY_CONTENT_ENCODING = "Content-Encoding";
+    public static final String ENCODING_GZIP = "gzip";
+    // Request bodies are sent uncompressed unless a compression threshold is set
+    public static final int REQUEST_COMPRESSION_DISABLED = -1;
+
+    // Charset of response bodies that don't declare one
+    public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE_CHARSET_PARAMETER = "charset=";
+
+    // Reads the response body into a pooled buffer, decoded on demand by WebServiceResponse#getRawResponseBody()
+    private static final WebServiceStreamHandler RAW_RESPONSE_BODY_HANDLER = new WebServiceStreamHandler() {
+        @Override
+        public void onResponseBody(InputStream body, Charset charset, WebServiceResponse response)
+                throws IOException {
+            readIntoPooledBuffer(body, charset, response);
+        }
+    };
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    // Whether completed connections go back to the pool instead of being torn down
+    private static volatile boolean connectionReuseEnabled = true;
+    // Optional cache for GET responses
+    private static volatile WebServiceCache responseCache;
+    // Shares identical in-flight GET requests between callers
+    private static final WebServiceRequestCoalescer GET_REQUEST_COALESCER = new WebServiceRequestCoalescer();
+    private static volatile boolean getRequestCoalescingEnabled = true;
+    // Compression settings
+    private static volatile boolean responseCompressionEnabled = true;
+    private static volatile int requestCompressionThreshold = REQUEST_COMPRESSION_DISABLED;
+    // Optional listener for call timings
+    private static volatile WebServiceMetricsListener metricsListener;
+    // Failure handling
+    private static volatile WebServiceRetryPolicy retryPolicy = WebServiceRetryPolicy.DEFAULT;
+    private static volatile WebServiceCircuitBreaker circuitBreaker = new WebServiceCircuitBreaker();
+    private static volatile WebServiceRateLimiter rateLimiter;
+    // Optional hedging of slow GET requests
+    private static volatile WebServiceHedger hedger;
+    // Connection time out and download time out
+    private static volatile WebServiceTimeoutPolicy timeoutPolicy = WebServiceTimeoutPolicy.FIXED;
+    // Carries the exchanges, unless the calling thread has its own transport
+    private static volatile WebServiceTransport transport = new UrlConnectionTransport();
+    private static final ThreadLocal<WebServiceTransport> CURRENT_TRANSPORT = new ThreadLocal<WebServiceTransport>();
 
     /**
      * Make a web call to the provided URL, using the specified method, and return pertinent web service response data
@@ -35,147 +80,592 @@ public class WebServiceUtils {
      * @return the response from the server
      */
     public static WebServiceResponse makeHttpPostRequestWith(String url, String requestBody) {
-        // HTTP response code (e.g., 200, 401, 404, etc)
-        int responseCode;
-        // Result of web service call (response data, response code, and exception if any)
-        WebServiceResponse response = new WebServiceResponse();
-        // URL connection to web service and response code
-        HttpURLConnection connection = null;
+        return makeHttpPostRequestWith(url, requestBody, RAW_RESPONSE_BODY_HANDLER);
+    }
 
-        // Log request
-        Log.i(TAG, "Making HTTP POST request with URL: " + url);
-        // Log request body
-        Log.i(TAG, "Request body: " + requestBody);
+    /**
+     * Make an HTTP POST request to the provided URL and stream the response body to the given handler instead of
+     * reading it into {@link WebServiceResponse#getRawResponseBody()}
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param requestBody the body of the request (optional)
+     * @param handler consumes the response body if the call succeeds
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpPostRequestWith(String url, String requestBody,
+                                                             WebServiceStreamHandler handler) {
+        return makeHttpPostRequestWith(url, requestBody == null ? null : WebServiceRequestBody.create(requestBody),
+                handler);
+    }
 
-        try {
-            // Create a URL from the supplied string
-            URL webServiceUrl = new URL(url);
+    /**
+     * Make an HTTP POST request with a body that is already encoded
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param requestBody the body of the request
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpPostRequestWith(String url, byte[] requestBody) {
+        return makeHttpPostRequestWith(url, WebServiceRequestBody.create(requestBody));
+    }
 
-            // Initiate connection
-            connection = (HttpURLConnection) webServiceUrl.openConnection();
-            connection.setConnectTimeout(CONNECT_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
+    /**
+     * Make an HTTP POST request with a body that is already encoded
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param requestBody the body of the request, from its position to its limit
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpPostRequestWith(String url, ByteBuffer requestBody) {
+        return makeHttpPostRequestWith(url, WebServiceRequestBody.create(requestBody));
+    }
 
-            // Indicate that this is a POST request.
-            connection.setRequestMethod("POST");
+    /**
+     * Make an HTTP POST request whose body is written straight to the connection, see {@link WebServiceRequestBody}
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param requestBody the body of the request (optional)
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpPostRequestWith(String url, WebServiceRequestBody requestBody) {
+        return makeHttpPostRequestWith(url, requestBody, RAW_RESPONSE_BODY_HANDLER);
+    }
 
-            // Set body length
-            connection.setFixedLengthStreamingMode(requestBody.getBytes().length);
-            connection.setRequestProperty(REQUEST_PROPERTY_KEY_CONTENT_TYPE, REQUEST_PROPERTY_APPLICATION);
+    /**
+     * Make an HTTP POST request whose body is written straight to the connection, and stream the response body to the
+     * given handler
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param requestBody the body of the request (optional)
+     * @param handler consumes the response body if the call succeeds
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpPostRequestWith(String url, WebServiceRequestBody requestBody,
+                                                             WebServiceStreamHandler handler) {
+        return makeHttpRequestWith("POST", url, requestBody, null, handler);
+    }
 
-            // Write out data
-            OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream());
-            outputStream.write(requestBody.getBytes());
-            outputStream.flush();
-            outputStream.close();
+    /**
+     * Make an HTTP POST request to a URL that is already parsed, such as one expanded from a
+     * {@link WebServiceUrlTemplate}
+     *
+     * @param url the URL of the web service to call
+     * @param requestBody the body of the request (optional)
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpPostRequestWith(URL url, String requestBody) {
+        return makeHttpPostRequestWith(url, requestBody == null ? null : WebServiceRequestBody.create(requestBody));
+    }
 
-            // Handle HTTP response code TODO: Handle response code in calling method?
-            responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
-                Log.e(TAG, String.format("HTTP Unauthorized (%d)", responseCode));
-            }
-            else if (responseCode != HttpURLConnection.HTTP_OK) {
-                Log.e(TAG, String.format("HTTP Error %s", responseCode));
+    /**
+     * Make an HTTP POST request to a URL that is already parsed, with a body written straight to the connection
+     *
+     * @param url the URL of the web service to call
+     * @param requestBody the body of the request (optional)
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpPostRequestWith(URL url, WebServiceRequestBody requestBody) {
+        return makeHttpRequestWith("POST", url.toExternalForm(), url, requestBody, null, RAW_RESPONSE_BODY_HANDLER);
+    }
+
+    /**
+     * Make a web call to the provided URL, using the specified method, and return pertinent web service response data
+     *
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpGetRequestWith(String url) {
+        // Parsed once here, for the cache, the hedger and every attempt of the call
+        URL parsedUrl;
+        try {
+            parsedUrl = new URL(url);
+        }
+        catch (MalformedURLException e) {
+            return malformedUrlResponse(e);
+        }
+        return makeHttpGetRequestWith(url, parsedUrl);
+    }
+
+    /**
+     * Make an HTTP GET request to a URL that is already parsed, such as one expanded from a
+     * {@link WebServiceUrlTemplate}
+     *
+     * @param url the URL of the web service to call
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpGetRequestWith(URL url) {
+        return makeHttpGetRequestWith(url.toExternalForm(), url);
+    }
+
+    /**
+     * Make an HTTP GET request, sharing it with concurrent callers of the same URL if coalescing is enabled
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param parsedUrl the same URL, parsed
+     * @return the response from the cache or the server
+     */
+    private static WebServiceResponse makeHttpGetRequestWith(final String url, final URL parsedUrl) {
+        if (getRequestCoalescingEnabled) {
+            // Callers requesting the same URL at the same time share a single call
+            return GET_REQUEST_COALESCER.execute(url, new Callable<WebServiceResponse>() {
+                @Override
+                public WebServiceResponse call() {
+                    return makeUncoalescedHttpGetRequestWith(url, parsedUrl);
+                }
+            });
+        }
+        return makeUncoalescedHttpGetRequestWith(url, parsedUrl);
+    }
+
+    /**
+     * Make an HTTP GET request, going through the response cache if one is installed
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param parsedUrl the same URL, parsed
+     * @return the response from the cache or the server
+     */
+    private static WebServiceResponse makeUncoalescedHttpGetRequestWith(String url, URL parsedUrl) {
+        WebServiceCache cache = responseCache;
+        if (cache != null) {
+            return makeCachedHttpGetRequestWith(cache, url, parsedUrl);
+        }
+        return makeHedgeableHttpGetRequestWith(url, parsedUrl, null);
+    }
+
+    /**
+     * Make an HTTP GET request over the network, hedging it if a hedger is installed
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param parsedUrl the same URL, parsed
+     * @param requestHeaders additional request headers (optional)
+     * @return the response from the server
+     */
+    private static WebServiceResponse makeHedgeableHttpGetRequestWith(final String url, final URL parsedUrl,
+                                                                      final Map<String, String> requestHeaders) {
+        Callable<WebServiceResponse> call = new Callable<WebServiceResponse>() {
+            @Override
+            public WebServiceResponse call() {
+                return makeHttpRequestWith("GET", url, parsedUrl, null, requestHeaders, RAW_RESPONSE_BODY_HANDLER);
             }
+        };
+        WebServiceHedger currentHedger = hedger;
+        if (currentHedger != null) {
+            return currentHedger.execute("GET", parsedUrl, call);
+        }
+        return makeHttpRequestWith("GET", url, parsedUrl, null, requestHeaders, RAW_RESPONSE_BODY_HANDLER);
+    }
 
-            // Add HTTP response code to return data
-            response.setHttpResponseCode(responseCode);
+    /**
+     * Make an HTTP GET request to the provided URL and stream the response body to the given handler instead of
+     * reading it into {@link WebServiceResponse#getRawResponseBody()}
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param handler consumes the response body if the call succeeds
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpGetRequestWith(String url, WebServiceStreamHandler handler) {
+        return makeHttpRequestWith("GET", url, null, null, handler);
+    }
 
-            // get raw response body
-            InputStream in = new BufferedInputStream(connection.getInputStream());
-            String responseBody = new Scanner(in).useDelimiter("\\A").next();
+    /**
+     * Make an HTTP GET request to a URL that is already parsed and stream the response body to the given handler
+     *
+     * @param url the URL of the web service to call
+     * @param handler consumes the response body if the call succeeds
+     * @return the response from the server
+     */
+    public static WebServiceResponse makeHttpGetRequestWith(URL url, WebServiceStreamHandler handler) {
+        return makeHttpRequestWith("GET", url.toExternalForm(), url, null, null, handler);
+    }
 
-            // Add response body to return data
-            response.setRawResponseBody(responseBody);
+    /**
+     * Make an HTTP GET request to the provided URL and decode the response body into a model object as it downloads,
+     * on the calling thread. The body is not kept in {@link WebServiceResponse#getRawResponseBody()}.
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param decoder decodes the response body if the call succeeds, see {@link JsonDecoder}
+     * @return the response from the server and the decoded body
+     */
+    public static <T> TypedWebServiceResponse<T> makeHttpGetRequestFor(String url, WebServiceDecoder<T> decoder) {
+        DecodingHandler<T> handler = new DecodingHandler<T>(decoder);
+        WebServiceResponse response = makeHttpRequestWith("GET", url, null, null, handler);
+        return handler.toTypedResponse(response);
+    }
 
-            return response;
+    /**
+     * Make an HTTP GET request to a URL that is already parsed and decode the response body into a model object as it
+     * downloads, on the calling thread
+     *
+     * @param url the URL of the web service to call
+     * @param decoder decodes the response body if the call succeeds, see {@link JsonDecoder}
+     * @return the response from the server and the decoded body
+     */
+    public static <T> TypedWebServiceResponse<T> makeHttpGetRequestFor(URL url, WebServiceDecoder<T> decoder) {
+        DecodingHandler<T> handler = new DecodingHandler<T>(decoder);
+        WebServiceResponse response = makeHttpRequestWith("GET", url.toExternalForm(), url, null, null, handler);
+        return handler.toTypedResponse(response);
+    }
+
+    /**
+     * Make an HTTP POST request to the provided URL and decode the response body into a model object as it downloads,
+     * on the calling thread
+     *
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param requestBody the body of the request (optional)
+     * @param decoder decodes the response body if the call succeeds, see {@link JsonDecoder}
+     * @return the response from the server and the decoded body
+     */
+    public static <T> TypedWebServiceResponse<T> makeHttpPostRequestFor(String url, String requestBody,
+                                                                        WebServiceDecoder<T> decoder) {
+        DecodingHandler<T> handler = new DecodingHandler<T>(decoder);
+        WebServiceResponse response = makeHttpPostRequestWith(url, requestBody, handler);
+        return handler.toTypedResponse(response);
+    }
+
+    /**
+     * Serve a GET request from the response cache when the cached copy is fresh, otherwise go to the network,
+     * revalidating the cached copy if it has validators, and store the result
+     *
+     * @param cache the response cache
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param parsedUrl the same URL, parsed
+     * @return the response from the cache or the server
+     */
+    private static WebServiceResponse makeCachedHttpGetRequestWith(WebServiceCache cache, String url, URL parsedUrl) {
+        WebServiceCache.Entry cached = cache.get(url);
+        if (cached != null && cached.isFresh()) {
+            Log.i(TAG, "Serving HTTP GET request from cache: " + url);
+            cache.recordHit(cached);
+            return cached.toResponse();
         }
-        catch (MalformedURLException e) {
-            Log.e(TAG, "Malformed request URL");
-            response.setException(e);
+
+        // Ask the server whether a stale copy is still good
+        Map<String, String> requestHeaders = null;
+        if (cached != null && cached.hasValidators()) {
+            requestHeaders = cached.getConditionalHeaders();
         }
-        catch (SocketTimeoutException e) {
-            Log.d(TAG, "data retrieval or connection timed out\n" + e.toString());
-            response.setException(e);
+
+        WebServiceResponse response = makeHedgeableHttpGetRequestWith(url, parsedUrl, requestHeaders);
+        if (response.getException() == null) {
+            if (cached != null && response.getHttpResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                cache.recordRevalidation();
+                cache.update(cached, response);
+                response.setHttpResponseCode(HttpURLConnection.HTTP_OK);
+                response.setSharedResponseBody(cached.body, cached.charset);
+                return response;
+            }
+            if (response.getHttpResponseCode() == HttpURLConnection.HTTP_OK) {
+                // Kept undecoded, so that caching doesn't decode a body the caller may never read as text
+                cache.put(url, response.copyResponseBodyBytes(), response.getResponseBodyCharset(), response);
+            }
         }
-        catch (IOException e) {
-            Log.e(TAG, "I/O Exception in openConnection()");
-            response.setException(e);
+        cache.recordMiss();
+        return response;
+    }
+
+    /**
+     * Make a web call to the provided URL, using the specified method, and hand the response body to the given handler.
+     * Calls to hosts whose circuit is open fail fast, and failed attempts are retried according to the retry policy.
+     *
+     * @param method the HTTP method, "GET" or "POST"
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param requestBody the body of the request, or null to send none
+     * @param requestHeaders additional request headers (optional)
+     * @param handler consumes the response body if the call succeeds
+     * @return the response from the server
+     */
+    static WebServiceResponse makeHttpRequestWith(String method, String url, WebServiceRequestBody requestBody,
+                                                  Map<String, String> requestHeaders,
+                                                  WebServiceStreamHandler handler) {
+        // Parsed once here, for every attempt of the call
+        URL parsedUrl;
+        try {
+            parsedUrl = new URL(url);
         }
-        finally {
-            // Log HTTP response code
-            Log.i(TAG, "Web service response code: " + response.getHttpResponseCode());
+        catch (MalformedURLException e) {
+            return malformedUrlResponse(e);
+        }
+        return makeHttpRequestWith(method, url, parsedUrl, requestBody, requestHeaders, handler);
+    }
 
-            // Log response body
-            Log.i(TAG, "Web service response: " + response.getRawResponseBody());
+    /**
+     * Make a web call as {@link #makeHttpRequestWith(String, String, WebServiceRequestBody, Map,
+     * WebServiceStreamHandler)} does, reusing a URL that is already parsed
+     *
+     * @param method the HTTP method, "GET" or "POST"
+     * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param parsedUrl the same URL, parsed
+     * @param requestBody the body of the request, or null to send none
+     * @param requestHeaders additional request headers (optional)
+     * @param handler consumes the response body if the call succeeds
+     * @return the response from the server
+     */
+    static WebServiceResponse makeHttpRequestWith(String method, String url, URL parsedUrl,
+                                                  WebServiceRequestBody requestBody,
+                                                  Map<String, String> requestHeaders,
+                                                  WebServiceStreamHandler handler) {
+        String host = parsedUrl.getHost();
+        WebServiceRetryPolicy policy = retryPolicy;
+        WebServiceCircuitBreaker breaker = circuitBreaker;
+        WebServiceRateLimiter limiter = rateLimiter;
+        WebServiceCancellationToken token = WebServiceCancellationToken.current();
+        boolean repeatable = requestBody == null || requestBody.isRepeatable();
+
+        for (int attempt = 1; ; attempt++) {
+            if (token != null && token.isCancelled()) {
+                Log.i(TAG, "HTTP " + method + " request cancelled: " + url);
+                WebServiceResponse response = new WebServiceResponse();
+                response.setException(new InterruptedIOException("Call cancelled"));
+                response.setAttemptCount(attempt - 1);
+                return response;
+            }
+            if (limiter != null) {
+                // Before the circuit breaker, so a rejected call can't hold a trial slot
+                WebServiceResponse throttled = throttle(limiter, method, url, parsedUrl);
+                if (throttled != null) {
+                    throttled.setAttemptCount(attempt - 1);
+                    return throttled;
+                }
+            }
+            if (breaker != null && !breaker.allowRequest(host)) {
+                Log.w(TAG, "Circuit open, failing HTTP " + method + " request fast: " + url);
+                WebServiceResponse response = new WebServiceResponse();
+                response.setException(new WebServiceCircuitBreaker.CircuitOpenException(host));
+                response.setAttemptCount(attempt - 1);
+                return response;
+            }
+
+            WebServiceResponse response = null;
+            try {
+                response = attemptHttpRequestWith(method, url, parsedUrl, requestBody, requestHeaders, handler);
+            }
+            finally {
+                // Always report back, even if a handler threw, so a trial call can't leave the circuit stuck. An
+                // aborted call says nothing about the host's health.
+                if (breaker != null) {
+                    if (token != null && token.isCancelled()) {
+                        breaker.recordCancellation(host);
+                    }
+                    else {
+                        breaker.recordResult(host, response);
+                    }
+                }
+            }
+            response.setAttemptCount(attempt);
 
-            // Always close connection on completion
-            if (connection != null) {
-                connection.disconnect();
+            boolean cancelled = token != null && token.isCancelled();
+            if (cancelled || !policy.shouldRetry(method, response, attempt, repeatable)) {
+                return response;
+            }
+
+            // Back off before trying again
+            long backoffMs = policy.getBackoffMs(attempt);
+            Log.i(TAG, String.format("Retrying HTTP %s request in %d ms (attempt %d of %d)", method, backoffMs,
+                    attempt + 1, policy.getMaxAttempts()));
+            try {
+                Thread.sleep(backoffMs);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return response;
             }
         }
-        return response;
     }
 
     /**
-     * Make a web call to the provided URL, using the specified method, and return pertinent web service response data
+     * Waits for the rate limiter to let a call attempt through
      *
+     * @param limiter the rate limiter
+     * @param method the HTTP method of the call
+     * @param url the URL of the call, as a string
+     * @param parsedUrl the same URL, parsed
+     * @return null if the attempt may go ahead, otherwise the failed response of a rejected or interrupted call
+     */
+    private static WebServiceResponse throttle(WebServiceRateLimiter limiter, String method, String url,
+                                               URL parsedUrl) {
+        WebServiceMetricsListener listener = metricsListener;
+        try {
+            long delayMs = limiter.acquire(method, parsedUrl);
+            if (delayMs > 0 && listener != null) {
+                listener.onRequestThrottled(method, parsedUrl, delayMs, false);
+            }
+            return null;
+        }
+        catch (WebServiceRateLimiter.RateLimitedException e) {
+            Log.w(TAG, "Rate limit exceeded, failing HTTP " + method + " request fast: " + url);
+            if (listener != null) {
+                listener.onRequestThrottled(method, parsedUrl, 0, true);
+            }
+            WebServiceResponse response = new WebServiceResponse();
+            response.setException(e);
+            return response;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            WebServiceResponse response = new WebServiceResponse();
+            response.setException(new InterruptedIOException("Interrupted waiting for rate limit"));
+            return response;
+        }
+    }
+
+    /**
+     * Make a single attempt at a web call to the provided URL, using the specified method, and hand the response body
+     * to the given handler
      *
+     * @param method the HTTP method, "GET" or "POST"
      * @param url the URL_TEMPLATE of the web service to call, as a string
+     * @param parsedUrl the same URL, parsed
+     * @param requestBody the body of the request, or null to send none
+     * @param requestHeaders additional request headers (optional)
+     * @param handler consumes the response body if the call succeeds
      * @return the response from the server
      */
-    public static WebServiceResponse makeHttpGetRequestWith(String url) {
+    private static WebServiceResponse attemptHttpRequestWith(String method, String url, URL parsedUrl,
+                                                             WebServiceRequestBody requestBody,
+                                                             Map<String, String> requestHeaders,
+                                                             WebServiceStreamHandler handler) {
+        // HTTP response code (e.g., 200, 401, 404, etc)
         int responseCode;
         // Result of web service call (response data, response code, and exception if any)
         WebServiceResponse response = new WebServiceResponse();
-        // URL connection to web service and response code
-        HttpURLConnection connection = null;
+        // Exchange with the web service
+        WebServiceExchange exchange = null;
+        // Start of the call, for timing
+        long startNanos = System.nanoTime();
+        // Aborts the call if its cancellation token is cancelled
+        WebServiceCancellationToken token = WebServiceCancellationToken.current();
+        Runnable abort = null;
+        // Timeouts of the call, and whether it got as far as connecting, to tell which timeout expired
+        WebServiceTimeoutPolicy timeouts = timeoutPolicy;
+        String host = parsedUrl.getHost();
+        boolean connected = false;
 
         // Log request
-        Log.i(TAG, "Making HTTP GET request with URL: " + url);
+        Log.i(TAG, "Making HTTP " + method + " request with URL: " + url);
+        if (requestBody != null) {
+            // Log request body
+            Log.i(TAG, "Request body: " + requestBody);
+        }
 
         try {
-            // Create a URL from the supplied string
-            URL webServiceUrl = new URL(url);
-
             // Initiate connection
-            connection = (HttpURLConnection) webServiceUrl.openConnection();
+            exchange = getTransport().openExchange(parsedUrl);
+            if (token != null) {
+                final WebServiceExchange cancellableExchange = exchange;
+                Runnable abortExchange = new Runnable() {
+                    @Override
+                    public void run() {
+                        cancellableExchange.abort();
+                    }
+                };
+                if (!token.addCancellationListener(abortExchange)) {
+                    throw new InterruptedIOException("Call cancelled");
+                }
+                abort = abortExchange;
+            }
 
             // Set timeout limits
-            connection.setConnectTimeout(CONNECT_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
+            exchange.setTimeouts(timeouts.getConnectTimeoutMs(host), timeouts.getReadTimeoutMs(host));
+
+            // Indicate which request method is being used
+            exchange.setRequestMethod(method);
+
+            // Add any additional request headers
+            if (requestHeaders != null) {
+                for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                    exchange.setRequestHeader(header.getKey(), header.getValue());
+                }
+            }
+
+            // Negotiate a compressed response; setting this ourselves means we have to decompress it ourselves too.
+            // Callers asking for a specific encoding, e.g. for byte ranges, get what they asked for.
+            if (responseCompressionEnabled
+                    && (requestHeaders == null || !requestHeaders.containsKey(REQUEST_PROPERTY_KEY_ACCEPT_ENCODING))) {
+                exchange.setRequestHeader(REQUEST_PROPERTY_KEY_ACCEPT_ENCODING, ENCODING_GZIP);
+            }
 
-            // Indicate that this is a GET request
-            connection.setRequestMethod("GET");
+            // Pick how the request body will be streamed, which must happen before connecting
+            boolean compressRequestBody = false;
+            if (requestBody != null) {
+                long contentLength = requestBody.getContentLength();
+                exchange.setRequestHeader(REQUEST_PROPERTY_KEY_CONTENT_TYPE, requestBody.getContentType());
+
+                // Compress large bodies. The compressed size isn't known up front, so they are always sent chunked.
+                int compressionThreshold = requestCompressionThreshold;
+                compressRequestBody = compressionThreshold != REQUEST_COMPRESSION_DISABLED
+                        && (contentLength == WebServiceRequestBody.UNKNOWN_LENGTH
+                        || contentLength >= compressionThreshold);
+                if (compressRequestBody) {
+                    exchange.setRequestHeader(REQUEST_PROPERTY_KEY_CONTENT_ENCODING, ENCODING_GZIP);
+                    exchange.setRequestBodyLength(WebServiceRequestBody.UNKNOWN_LENGTH);
+                }
+                else {
+                    // Set body length
+                    exchange.setRequestBodyLength(contentLength);
+                }
+            }
+
+            // Connect explicitly so connection setup is timed separately from the request itself
+            long phaseStartNanos = System.nanoTime();
+            exchange.connect();
+            connected = true;
+            response.setConnectTimeMs(millisSince(phaseStartNanos));
+            timeouts.recordConnectTime(host, response.getConnectTimeMs());
+
+            if (requestBody != null) {
+                // Write out data
+                phaseStartNanos = System.nanoTime();
+                CountingOutputStream sent = new CountingOutputStream(exchange.getRequestBodyStream());
+                OutputStream outputStream = compressRequestBody ? new GZIPOutputStream(sent) : sent;
+                CountingOutputStream written = new CountingOutputStream(outputStream);
+                requestBody.writeTo(written);
+                written.close();
+                response.setRequestBodyLength(written.getCount());
+                response.setRequestBodyBytesSent(sent.getCount());
+                response.setRequestWriteTimeMs(millisSince(phaseStartNanos));
+            }
 
             // Handle HTTP response code TODO: Handle response code in calling method?
-            responseCode = connection.getResponseCode();
+            phaseStartNanos = System.nanoTime();
+            responseCode = exchange.getResponseCode();
+            response.setTimeToFirstByteMs(millisSince(phaseStartNanos));
+            timeouts.recordTimeToFirstByte(host, response.getTimeToFirstByteMs());
             if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
                 Log.e(TAG, String.format("HTTP Unauthorized (%d)", responseCode));
             }
+            else if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.i(TAG, "HTTP Not Modified");
+            }
             else if (responseCode != HttpURLConnection.HTTP_OK) {
                 Log.e(TAG, String.format("HTTP Error %s", responseCode));
             }
 
-            // Add HTTP response code to return data
+            // Add HTTP response code and headers to return data
             response.setHttpResponseCode(responseCode);
+            response.setHeaders(exchange.getResponseHeaders());
 
-            // get raw response body
-            InputStream in = new BufferedInputStream(connection.getInputStream());
-            String responseBody = new Scanner(in).useDelimiter("\\A").next();
-
-            // Add response body to return data
-            response.setRawResponseBody(responseBody);
+            // Hand the response body to the handler, decompressing it on the fly if needed
+            phaseStartNanos = System.nanoTime();
+            CountingInputStream received = new CountingInputStream(exchange.getResponseBodyStream());
+            CountingInputStream body = received;
+            if (ENCODING_GZIP.equalsIgnoreCase(exchange.getResponseHeader(REQUEST_PROPERTY_KEY_CONTENT_ENCODING))
+                    && responseCode != HttpURLConnection.HTTP_NO_CONTENT
+                    && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                body = new CountingInputStream(new GZIPInputStream(received));
+            }
+            handler.onResponseBody(body,
+                    getCharsetFromContentType(exchange.getResponseHeader(REQUEST_PROPERTY_KEY_CONTENT_TYPE)), response);
+            response.setResponseBodyBytesReceived(received.getCount());
+            response.setResponseBodyLength(body.getCount());
+            response.setBodyReadTimeMs(millisSince(phaseStartNanos));
 
             return response;
         }
-        catch (MalformedURLException e) {
-            Log.e(TAG, "Malformed request URL");
-            response.setException(e);
-        }
         catch (SocketTimeoutException e) {
             Log.d(TAG, "data retrieval or connection timed out\n" + e.toString());
             response.setException(e);
+            timeouts.recordTimeout(host, connected);
         }
         catch (IOException e) {
             Log.e(TAG, "I/O Exception in openConnection()");
@@ -186,13 +676,443 @@ public class WebServiceUtils {
             Log.i(TAG, "Web service response code: " + response.getHttpResponseCode());
 
             // Log response body
-            Log.i(TAG, "Web service response: " + response.getRawResponseBody());
+            // Only the size, so that the body isn't decoded just to be logged
+            Log.i(TAG, "Web service response: " + response.getResponseBodyLength() + " bytes");
+
+            // Always release connection on completion, unless the abort listener ran and has torn it down already
+            boolean aborted = abort != null && !token.removeCancellationListener(abort);
+            if (exchange != null && !aborted) {
+                exchange.release(connectionReuseEnabled);
+            }
 
-            // Always close connection on completion
-            if (connection != null) {
-                connection.disconnect();
+            // Report timings
+            response.setTotalTimeMs(millisSince(startNanos));
+            WebServiceMetricsListener listener = metricsListener;
+            if (listener != null) {
+                listener.onRequestCompleted(method, parsedUrl, response);
             }
         }
         return response;
     }
+
+    /**
+     * @return milliseconds elapsed since the given System.nanoTime() reading
+     */
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * Fails a call whose URL is malformed, before any attempt is made. Such calls are not reported to the metrics
+     * listener, as they have no endpoint.
+     *
+     * @param e the exception thrown parsing the URL
+     * @return the failed response
+     */
+    private static WebServiceResponse malformedUrlResponse(MalformedURLException e) {
+        Log.e(TAG, "Malformed request URL");
+        WebServiceResponse response = new WebServiceResponse();
+        response.setException(e);
+        return response;
+    }
+
+    /**
+     * Extracts the host of a URL, used to apply per host policies
+     *
+     * @param url the URL, as a string
+     * @return the host, or an empty string if the URL is malformed
+     */
+    static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        }
+        catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Reads the charset parameter from a Content-Type header value, e.g. "application/json; charset=ISO-8859-1"
+     *
+     * @param contentType the Content-Type header value (may be null)
+     * @return the declared charset, or UTF-8 if none is declared or it is not supported
+     */
+    public static Charset getCharsetFromContentType(String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.regionMatches(true, 0, CONTENT_TYPE_CHARSET_PARAMETER, 0,
+                        CONTENT_TYPE_CHARSET_PARAMETER.length())) {
+                    String charsetName = parameter.substring(CONTENT_TYPE_CHARSET_PARAMETER.length()).replace("\"", "");
+                    try {
+                        return Charset.forName(charsetName);
+                    }
+                    catch (IllegalArgumentException e) {
+                        Log.w(TAG, "Unsupported response charset " + charsetName + ", using " + DEFAULT_CHARSET);
+                    }
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * Reads an entire stream into a String using the given charset
+     *
+     * @param in the stream to read; it is not closed
+     * @param charset the charset of the stream's contents
+     * @return the contents of the stream
+     * @throws IOException if the stream cannot be read
+     */
+    public static String readFully(InputStream in, Charset charset) throws IOException {
+        Reader reader = new InputStreamReader(in, charset);
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            builder.append(buffer, 0, read);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads an entire stream into a buffer from the {@link WebServiceBufferPool} and hands it to the response
+     *
+     * @param in the stream to read; it is not closed
+     * @param charset the charset of the stream's contents
+     * @param response the response taking ownership of the buffer
+     * @throws IOException if the stream cannot be read
+     */
+    private static void readIntoPooledBuffer(InputStream in, Charset charset, WebServiceResponse response)
+            throws IOException {
+        WebServiceBufferPool pool = WebServiceBufferPool.getDefault();
+        // The declared length is only a hint, as it is the compressed size of compressed bodies
+        int sizeHint = WebServiceBufferPool.MIN_BUFFER_SIZE;
+        String contentLength = response.getHeaderField(HEADER_CONTENT_LENGTH);
+        if (contentLength != null) {
+            try {
+                sizeHint = (int) Math.min(WebServiceBufferPool.MAX_BUFFER_SIZE,
+                        Math.max(sizeHint, Long.parseLong(contentLength.trim())));
+            }
+            catch (NumberFormatException e) {
+                // Keep the default
+            }
+        }
+
+        byte[] buffer = pool.acquire(sizeHint);
+        int length = 0;
+        try {
+            int read;
+            while (true) {
+                if (length == buffer.length) {
+                    // Move up a size class
+                    byte[] larger = pool.acquire(buffer.length * 2);
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    pool.release(buffer);
+                    buffer = larger;
+                }
+                read = in.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    break;
+                }
+                length += read;
+            }
+        }
+        catch (IOException e) {
+            pool.release(buffer);
+            throw e;
+        }
+        response.setPooledResponseBody(buffer, length, charset);
+    }
+
+    /**
+     * Installs a cache for GET responses, or removes it when given null. See {@link WebServiceCache}.
+     *
+     * @param cache the cache to use for subsequent GET requests (may be null)
+     */
+    public static void setResponseCache(WebServiceCache cache) {
+        responseCache = cache;
+    }
+
+    /**
+     * @return the installed response cache, or null if caching is off
+     */
+    public static WebServiceCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Sets the policy deciding which failed calls are retried and how long to back off in between. Defaults to
+     * {@link WebServiceRetryPolicy#DEFAULT}; use {@link WebServiceRetryPolicy#NO_RETRIES} to turn retries off.
+     *
+     * @param policy the retry policy
+     */
+    public static void setRetryPolicy(WebServiceRetryPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Retry policy must not be null");
+        }
+        retryPolicy = policy;
+    }
+
+    /**
+     * Installs the circuit breaker used to fail calls fast while their host is unhealthy, or turns circuit breaking off
+     * when given null. A breaker with the default settings is installed initially.
+     *
+     * @param breaker the circuit breaker (may be null)
+     */
+    public static void setCircuitBreaker(WebServiceCircuitBreaker breaker) {
+        circuitBreaker = breaker;
+    }
+
+    /**
+     * @return the installed circuit breaker, or null if circuit breaking is off
+     */
+    public static WebServiceCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Installs a hedger for slow GET requests, or turns hedging off (the default) when given null. Only
+     * {@link #makeHttpGetRequestWith(String)} is hedged; streamed requests are not, as their handlers would have to
+     * consume two bodies at once. A hedger replaced here keeps its threads until its
+     * {@link WebServiceHedger#shutdown()} is called.
+     *
+     * @param webServiceHedger the hedger (may be null)
+     */
+    public static void setHedger(WebServiceHedger webServiceHedger) {
+        hedger = webServiceHedger;
+    }
+
+    /**
+     * @return the installed hedger, or null if hedging is off
+     */
+    public static WebServiceHedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * Sets the policy picking the connect and read timeouts of each call. Defaults to
+     * {@link WebServiceTimeoutPolicy#FIXED}; use {@link WebServiceTimeoutPolicy#adaptive()} to learn the timeouts of
+     * each host from its observed round trip times.
+     *
+     * @param policy the timeout policy
+     */
+    public static void setTimeoutPolicy(WebServiceTimeoutPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Timeout policy must not be null");
+        }
+        timeoutPolicy = policy;
+    }
+
+    /**
+     * @return the installed timeout policy
+     */
+    public static WebServiceTimeoutPolicy getTimeoutPolicy() {
+        return timeoutPolicy;
+    }
+
+    /**
+     * Installs the transport carrying every call that isn't made under a transport of its own. Defaults to
+     * {@link UrlConnectionTransport}.
+     *
+     * @param webServiceTransport the transport
+     */
+    public static void setTransport(WebServiceTransport webServiceTransport) {
+        if (webServiceTransport == null) {
+            throw new IllegalArgumentException("Transport must not be null");
+        }
+        transport = webServiceTransport;
+    }
+
+    /**
+     * @return the transport carrying calls made on the current thread
+     */
+    public static WebServiceTransport getTransport() {
+        WebServiceTransport current = CURRENT_TRANSPORT.get();
+        return current != null ? current : transport;
+    }
+
+    /**
+     * Runs web service calls over the given transport on the calling thread, whatever the installed transport
+     *
+     * @param webServiceTransport the transport
+     * @param call the calls to run
+     * @return the call's result
+     * @throws Exception if the call throws
+     */
+    public static <T> T runWithTransport(WebServiceTransport webServiceTransport, Callable<T> call)
+            throws Exception {
+        WebServiceTransport previous = CURRENT_TRANSPORT.get();
+        CURRENT_TRANSPORT.set(webServiceTransport);
+        try {
+            return call.call();
+        }
+        finally {
+            if (previous == null) {
+                CURRENT_TRANSPORT.remove();
+            }
+            else {
+                CURRENT_TRANSPORT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Wraps a call so that it runs over the transport current on the calling thread, wherever it is run from. Used to
+     * hand calls over to other threads.
+     *
+     * @param call the call
+     * @return the call, bound to the current thread's transport if it has one
+     */
+    static <T> Callable<T> inheritTransport(final Callable<T> call) {
+        final WebServiceTransport current = CURRENT_TRANSPORT.get();
+        if (current == null) {
+            return call;
+        }
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return runWithTransport(current, call);
+            }
+        };
+    }
+
+    /**
+     * Installs a rate limiter that paces the calls to each host, or removes it when given null. There is none by
+     * default.
+     *
+     * @param limiter the rate limiter (may be null)
+     */
+    public static void setRateLimiter(WebServiceRateLimiter limiter) {
+        rateLimiter = limiter;
+    }
+
+    /**
+     * @return the installed rate limiter, or null if none is installed
+     */
+    public static WebServiceRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Installs a listener notified with the timings and byte counts of every call, or removes it when given null. See
+     * {@link WebServiceMetrics} for a listener that aggregates per endpoint latency percentiles.
+     *
+     * @param listener the listener (may be null)
+     */
+    public static void setMetricsListener(WebServiceMetricsListener listener) {
+        metricsListener = listener;
+    }
+
+    /**
+     * @return the installed metrics listener, or null if none is installed
+     */
+    public static WebServiceMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    /**
+     * Enables or disables coalescing of GET requests. When enabled (the default), concurrent calls to
+     * {@link #makeHttpGetRequestWith(String)} for the same URL share one network call and all receive the same
+     * {@link WebServiceResponse}, which callers must therefore treat as read-only. Streamed GET requests are never
+     * coalesced.
+     *
+     * @param enabled true to share identical in-flight GET requests, false to always make a separate call
+     */
+    public static void setGetRequestCoalescingEnabled(boolean enabled) {
+        getRequestCoalescingEnabled = enabled;
+    }
+
+    /**
+     * @return the coalescer shared by GET requests, for its statistics
+     */
+    public static WebServiceRequestCoalescer getGetRequestCoalescer() {
+        return GET_REQUEST_COALESCER;
+    }
+
+    /**
+     * Enables or disables gzip compressed responses. When enabled (the default), every request advertises
+     * "Accept-Encoding: gzip" and compressed responses are decompressed while they stream in. Response handlers always
+     * see the decompressed body; {@link WebServiceResponse#getResponseBodyBytesReceived()} reports the size on the
+     * wire.
+     *
+     * @param enabled true to ask for gzip compressed responses
+     */
+    public static void setResponseCompressionEnabled(boolean enabled) {
+        responseCompressionEnabled = enabled;
+    }
+
+    /**
+     * Sets the request body size at which POST bodies are gzip compressed and sent with "Content-Encoding: gzip".
+     * Compressed bodies, and bodies of unknown length, are sent with chunked transfer encoding. Only enable this for
+     * servers known to accept compressed request bodies.
+     *
+     * @param thresholdBytes smallest body, in bytes, to compress, or {@link #REQUEST_COMPRESSION_DISABLED} to never
+     *                       compress (the default)
+     */
+    public static void setRequestCompressionThreshold(int thresholdBytes) {
+        if (thresholdBytes < 0 && thresholdBytes != REQUEST_COMPRESSION_DISABLED) {
+            throw new IllegalArgumentException("Invalid request compression threshold: " + thresholdBytes);
+        }
+        requestCompressionThreshold = thresholdBytes;
+    }
+
+    /**
+     * Enables or disables connection reuse. When enabled (the default), response streams are fully drained and closed
+     * after each call so that the underlying socket returns to the connection pool and later calls to the same host
+     * skip the TCP and TLS handshakes. When disabled, every connection is disconnected once its call completes.
+     *
+     * @param enabled true to keep connections alive between calls, false to disconnect after every call
+     */
+    public static void setConnectionReuseEnabled(boolean enabled) {
+        connectionReuseEnabled = enabled;
+        System.setProperty("http.keepAlive", String.valueOf(enabled));
+    }
+
+    /**
+     * @return true if connections are returned to the pool after each call
+     */
+    public static boolean isConnectionReuseEnabled() {
+        return connectionReuseEnabled;
+    }
+
+    /**
+     * Configures the connection pool shared by all HTTP connections in the process. The platform reads these settings
+     * when the pool is first created, so this must be called before the first web service call is made (for example
+     * in Application.onCreate()). Left alone, the platform keeps 5 idle connections per host for 5 minutes.
+     *
+     * @param maxIdleConnections maximum number of idle connections kept alive per host
+     * @param keepAliveDurationMs how long an idle connection is kept before being evicted, in milliseconds
+     */
+    public static void setConnectionPoolLimits(int maxIdleConnections, long keepAliveDurationMs) {
+        if (maxIdleConnections < 0 || keepAliveDurationMs < 0) {
+            throw new IllegalArgumentException("Connection pool limits must not be negative");
+        }
+        System.setProperty("http.maxConnections", String.valueOf(maxIdleConnections));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveDurationMs));
+    }
+
+    /**
+     * Decodes the body of a successful response and keeps the result for the caller
+     */
+    private static class DecodingHandler<T> implements WebServiceStreamHandler {
+
+        private final WebServiceDecoder<T> decoder;
+        private T result;
+
+        DecodingHandler(WebServiceDecoder<T> decoder) {
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void onResponseBody(InputStream body, Charset charset, WebServiceResponse response)
+                throws IOException {
+            result = decoder.decode(body, charset, response);
+        }
+
+        TypedWebServiceResponse<T> toTypedResponse(WebServiceResponse response) {
+            // A failed retry must not leave an earlier attempt's result behind
+            return new TypedWebServiceResponse<T>(response, response.getException() == null ? result : null);
+        }
+    }
 }
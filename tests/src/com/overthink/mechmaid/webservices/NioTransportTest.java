@@ -0,0 +1,281 @@
+package com.overthink.mechmaid.webservices;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that {@link NioTransport} exchanges can be aborted or closed at any point, against a stand-in server on the
+ * loopback interface
+ */
+public class NioTransportTest extends TestCase {
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 10000;
+    // How long an aborted exchange may take to give up
+    private static final long ABORT_LATENCY_MS = 2000;
+    private static final int CONCURRENT_CLOSE_ROUNDS = 200;
+
+    private NioTransport transport;
+    private StandInServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        transport = new NioTransport(1);
+        server = new StandInServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.shutdown();
+        server.close();
+        super.tearDown();
+    }
+
+    public void testCancelBeforeConnect() throws Exception {
+        WebServiceExchange exchange = openGet(server.url());
+        exchange.abort();
+        try {
+            exchange.connect();
+            fail("An exchange aborted before connecting must not connect");
+        }
+        catch (InterruptedIOException e) {
+            // Expected
+        }
+        exchange.release(false);
+        assertEquals(0, server.getAcceptedCount());
+
+        assertSelectorAlive();
+    }
+
+    public void testAbortDuringConnect() throws Exception {
+        ServerSocket unresponsive = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        List<Socket> backlog = fillBacklog(unresponsive);
+        try {
+            final WebServiceExchange exchange = openGet(
+                    new URL("http://127.0.0.1:" + unresponsive.getLocalPort() + "/"));
+            final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread caller = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        exchange.connect();
+                    }
+                    catch (IOException e) {
+                        failure.set(e);
+                    }
+                    done.countDown();
+                }
+            });
+            caller.start();
+
+            // Let the connect get under way, then give up on it
+            assertFalse("Connect should hang while the backlog is full", done.await(200, TimeUnit.MILLISECONDS));
+            exchange.abort();
+            assertTrue("Abort should end a pending connect", done.await(ABORT_LATENCY_MS, TimeUnit.MILLISECONDS));
+            assertTrue(failure.get() instanceof InterruptedIOException);
+            exchange.release(false);
+        }
+        finally {
+            for (Socket socket : backlog) {
+                socket.close();
+            }
+            unresponsive.close();
+        }
+
+        assertSelectorAlive();
+    }
+
+    public void testConcurrentClose() throws Exception {
+        final AtomicInteger unexpectedFailures = new AtomicInteger();
+        for (int round = 0; round < CONCURRENT_CLOSE_ROUNDS; round++) {
+            final WebServiceExchange exchange = openGet(server.url());
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<Thread>();
+            // Connect, abort and release all at once, in whatever order the threads happen to run
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    try {
+                        exchange.connect();
+                        exchange.getResponseCode();
+                    }
+                    catch (IOException e) {
+                        // Expected whenever the abort wins
+                    }
+                    catch (RuntimeException e) {
+                        unexpectedFailures.incrementAndGet();
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    exchange.abort();
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    exchange.release(false);
+                }
+            }));
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join(ABORT_LATENCY_MS);
+                assertFalse("Round " + round + " hung", thread.isAlive());
+            }
+        }
+        assertEquals(0, unexpectedFailures.get());
+
+        assertSelectorAlive();
+    }
+
+    /**
+     * Fails unless a plain call still completes, i.e. no race above killed the selector thread
+     */
+    private void assertSelectorAlive() throws IOException {
+        WebServiceExchange exchange = openGet(server.url());
+        try {
+            exchange.connect();
+            assertEquals(200, exchange.getResponseCode());
+        }
+        finally {
+            exchange.release(false);
+        }
+    }
+
+    private WebServiceExchange openGet(URL url) throws IOException {
+        WebServiceExchange exchange = transport.openExchange(url);
+        exchange.setTimeouts(CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+        exchange.setRequestMethod("GET");
+        return exchange;
+    }
+
+    /**
+     * Opens connections to a server that never accepts them until its backlog is full, so that further connects hang
+     */
+    private static List<Socket> fillBacklog(ServerSocket serverSocket) throws IOException {
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < 50; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(serverSocket.getLocalSocketAddress(), 200);
+                sockets.add(socket);
+            }
+            catch (SocketTimeoutException e) {
+                socket.close();
+                return sockets;
+            }
+        }
+        throw new IllegalStateException("Could not fill the listen backlog");
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Answers every request with a short 200 response and closes the connection
+     */
+    private static class StandInServer implements Runnable {
+
+        private static final byte[] RESPONSE =
+                "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok".getBytes();
+
+        private final ServerSocket serverSocket;
+        private final AtomicInteger acceptedCount = new AtomicInteger();
+
+        StandInServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "StandInServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        URL url() throws IOException {
+            return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+        }
+
+        int getAcceptedCount() {
+            return acceptedCount.get();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                }
+                catch (IOException e) {
+                    // Closed
+                    return;
+                }
+                acceptedCount.incrementAndGet();
+                try {
+                    readRequestHead(socket.getInputStream());
+                    OutputStream out = socket.getOutputStream();
+                    out.write(RESPONSE);
+                    out.flush();
+                }
+                catch (IOException e) {
+                    // The client gave up, e.g. an aborted exchange
+                }
+                finally {
+                    try {
+                        socket.close();
+                    }
+                    catch (IOException e) {
+                        // Nothing more can be done
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads up to the blank line ending the request head; requests in these tests have no body
+         */
+        private static void readRequestHead(InputStream in) throws IOException {
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b == -1) {
+                    return;
+                }
+                matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+        }
+    }
+}